@@ -0,0 +1,123 @@
+package jiffy.bench;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import jiffy.DirectoryServer;
+import jiffy.InMemoryCluster;
+import jiffy.JiffyClient;
+import jiffy.StorageServer;
+import org.apache.thrift.TException;
+
+/**
+ * The Jiffy cluster that benchmarks run against.
+ *
+ * By default a directory server and a storage server are launched on loopback from the
+ * {@code jiffy.directory.exec} and {@code jiffy.storage.exec} executables, with the
+ * configurations used by the core integration tests. Setting {@code jiffy.bench.host} (and
+ * optionally {@code jiffy.bench.port}) targets an already running cluster instead, and
+ * {@code -Djiffy.bench.cluster=inmemory} runs against the in-process {@link InMemoryCluster},
+ * with every storage response delayed by {@code jiffy.bench.latency.us} microseconds (0 by
+ * default).
+ */
+public class BenchmarkCluster implements Closeable {
+
+  private static final int DEFAULT_DIRECTORY_PORT = 9090;
+
+  private final DirectoryServer directoryServer;
+  private final StorageServer storageServer;
+  private final InMemoryCluster inMemoryCluster;
+  private final String host;
+  private final int port;
+  private final int leasePort;
+
+  private BenchmarkCluster(DirectoryServer directoryServer, StorageServer storageServer,
+      InMemoryCluster inMemoryCluster, String host, int port, int leasePort) {
+    this.directoryServer = directoryServer;
+    this.storageServer = storageServer;
+    this.inMemoryCluster = inMemoryCluster;
+    this.host = host;
+    this.port = port;
+    this.leasePort = leasePort;
+  }
+
+  public static BenchmarkCluster start() throws IOException, InterruptedException {
+    String host = System.getProperty("jiffy.bench.host");
+    int port = Integer.getInteger("jiffy.bench.port", DEFAULT_DIRECTORY_PORT);
+    if (host != null) {
+      return new BenchmarkCluster(null, null, null, host, port, port + 1);
+    }
+    if ("inmemory".equals(System.getProperty("jiffy.bench.cluster"))) {
+      InMemoryCluster cluster = new InMemoryCluster();
+      cluster.setLatency(Long.getLong("jiffy.bench.latency.us", 0), TimeUnit.MICROSECONDS);
+      return new BenchmarkCluster(null, null, cluster, cluster.getHost(),
+          cluster.getDirectoryPort(), cluster.getLeasePort());
+    }
+    DirectoryServer directoryServer = new DirectoryServer(
+        System.getProperty("jiffy.directory.exec", "directoryd"));
+    StorageServer storageServer = new StorageServer(
+        System.getProperty("jiffy.storage.exec", "storaged"));
+    directoryServer.start(extract("/directory.conf"));
+    try {
+      storageServer.start(extract("/storage1.conf"));
+    } catch (IOException | InterruptedException e) {
+      directoryServer.stop();
+      throw e;
+    }
+    return new BenchmarkCluster(directoryServer, storageServer, null, "127.0.0.1",
+        DEFAULT_DIRECTORY_PORT, DEFAULT_DIRECTORY_PORT + 1);
+  }
+
+  /**
+   * Configurations live in the core test jar; the servers need them as files.
+   */
+  private static String extract(String resource) throws IOException {
+    File conf = File.createTempFile("jiffy-bench", ".conf");
+    conf.deleteOnExit();
+    try (InputStream in = BenchmarkCluster.class.getResourceAsStream(resource)) {
+      if (in == null) {
+        throw new IOException("Missing configuration " + resource);
+      }
+      Files.copy(in, conf.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    return conf.getAbsolutePath();
+  }
+
+  public String host() {
+    return host;
+  }
+
+  public int directoryPort() {
+    return port;
+  }
+
+  public int leasePort() {
+    return leasePort;
+  }
+
+  public JiffyClient connect() throws TException {
+    return new JiffyClient(host, directoryPort(), leasePort());
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (inMemoryCluster != null) {
+      inMemoryCluster.close();
+    }
+    try {
+      if (storageServer != null) {
+        storageServer.stop();
+      }
+      if (directoryServer != null) {
+        directoryServer.stop();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package jiffy.hadoop.fs;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import jiffy.bench.BenchmarkCluster;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sequential throughput of {@link JiffyOutputStream} and {@link JiffyInputStream} through the
+ * Hadoop FileSystem API, against a live cluster. Like {@code FileBenchmark}, writes run in fixed
+ * batches into a fresh file per iteration and reads cycle through a file written up front.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class JiffyStreamBenchmark {
+
+  private static final int WRITE_BATCH = 1024;
+  private static final long READ_FILE_SIZE = 32L << 20;
+
+  @Param({"4096", "65536"})
+  public int chunkSize;
+
+  @Param({"false", "true"})
+  public boolean directBuffers;
+
+  private BenchmarkCluster cluster;
+  private JiffyFileSystem fs;
+  private byte[] chunk;
+  private FSDataInputStream in;
+  private FSDataOutputStream out;
+  private Path readPath;
+  private Path writePath;
+  private int iteration;
+
+  @Setup
+  public void setUp() throws IOException, InterruptedException {
+    cluster = BenchmarkCluster.start();
+    String uri = "jfs://" + cluster.host() + ":" + cluster.directoryPort();
+    Configuration conf = new Configuration();
+    conf.set(FileSystem.FS_DEFAULT_NAME_KEY, uri);
+    conf.setInt("jiffy.lease_port", cluster.leasePort());
+    conf.setBoolean("jiffy.direct_buffers", directBuffers);
+    fs = new JiffyFileSystem();
+    fs.initialize(URI.create(uri), conf);
+    chunk = new byte[chunkSize];
+    readPath = new Path("/bench/read-" + chunkSize);
+    try (FSDataOutputStream o = fs.create(readPath)) {
+      for (long written = 0; written < READ_FILE_SIZE; written += chunkSize) {
+        o.write(chunk);
+      }
+    }
+    in = fs.open(readPath);
+  }
+
+  @Setup(Level.Iteration)
+  public void newFile() throws IOException {
+    writePath = new Path("/bench/write-" + chunkSize + "-" + iteration++);
+    out = fs.create(writePath);
+  }
+
+  @TearDown(Level.Iteration)
+  public void removeFile() throws IOException {
+    out.close();
+    fs.delete(writePath, false);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    try {
+      in.close();
+      fs.delete(readPath, false);
+      fs.close();
+    } finally {
+      cluster.close();
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 2, batchSize = WRITE_BATCH)
+  @Measurement(iterations = 10, batchSize = WRITE_BATCH)
+  public void write() throws IOException {
+    out.write(chunk);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @Warmup(iterations = 3, time = 2)
+  @Measurement(iterations = 5, time = 2)
+  public int read() throws IOException {
+    int n = in.read(chunk, 0, chunkSize);
+    if (n < 0) {
+      in.seek(0);
+    }
+    return n;
+  }
+}
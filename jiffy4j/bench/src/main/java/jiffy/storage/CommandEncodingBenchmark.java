@@ -0,0 +1,105 @@
+package jiffy.storage;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jiffy.util.ByteBufferUtils;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building and serializing a put request, without the network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandEncodingBenchmark {
+
+  /**
+   * Discards everything written to it.
+   */
+  private static class NullTransport extends TTransport {
+
+    long written;
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) {
+      return 0;
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) {
+      written += len;
+    }
+  }
+
+  @Param({"64", "1024", "16384"})
+  public int valueSize;
+
+  private TProtocol out;
+  private ByteBuffer key;
+  private ByteBuffer heapValue;
+  private ByteBuffer directValue;
+  private long seqNo;
+
+  @Setup
+  public void setUp() {
+    out = new TBinaryProtocol(new NullTransport());
+    key = ByteBufferUtils.fromString("benchmark-key");
+    heapValue = ByteBuffer.allocate(valueSize);
+    directValue = ByteBuffer.allocateDirect(valueSize);
+  }
+
+  @Benchmark
+  public ByteBuffer encodeNumber() {
+    return ByteBufferUtils.fromLong(++seqNo);
+  }
+
+  @Benchmark
+  public List<ByteBuffer> buildArgs() {
+    return ByteBufferUtils.fromByteBuffers(HashTableCommands.PUT, key, heapValue);
+  }
+
+  @Benchmark
+  public long writeHeapRequest() throws TException {
+    CommandCodec.writeCommandRequest(out, 1, ++seqNo, 0,
+        ByteBufferUtils.fromByteBuffers(HashTableCommands.PUT, key, heapValue));
+    return seqNo;
+  }
+
+  @Benchmark
+  public long writeDirectRequest() throws TException {
+    CommandCodec.writeCommandRequest(out, 1, ++seqNo, 0,
+        ByteBufferUtils.fromByteBuffers(HashTableCommands.PUT, key, directValue));
+    return seqNo;
+  }
+}
@@ -0,0 +1,99 @@
+package jiffy.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import jiffy.JiffyClient;
+import jiffy.bench.BenchmarkCluster;
+import org.apache.thrift.TException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sequential {@link FileWriter#write(ByteBuffer)} and {@link FileReader#read(int)} against a
+ * live cluster.
+ *
+ * Writes run in fixed batches into a fresh file per iteration, so that the file stays within
+ * the storage the test configuration provides; reads cycle through a file written up front.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class FileBenchmark {
+
+  private static final int WRITE_BATCH = 1024;
+  private static final long READ_FILE_SIZE = 32L << 20;
+
+  @Param({"4096", "65536"})
+  public int chunkSize;
+
+  private BenchmarkCluster cluster;
+  private JiffyClient client;
+  private ByteBuffer chunk;
+  private FileReader reader;
+  private FileWriter writer;
+  private int iteration;
+
+  @Setup
+  public void setUp() throws IOException, InterruptedException, TException {
+    cluster = BenchmarkCluster.start();
+    client = cluster.connect();
+    chunk = ByteBuffer.allocate(chunkSize);
+    FileWriter w = client.createFile("/bench/read-" + chunkSize);
+    for (long written = 0; written < READ_FILE_SIZE; written += chunkSize) {
+      w.write(chunk.duplicate());
+    }
+    reader = client.openFile("/bench/read-" + chunkSize);
+  }
+
+  @Setup(Level.Iteration)
+  public void newFile() throws TException {
+    writer = client.createFile("/bench/write-" + chunkSize + "-" + iteration);
+  }
+
+  @TearDown(Level.Iteration)
+  public void removeFile() throws TException {
+    client.remove("/bench/write-" + chunkSize + "-" + iteration++);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException, TException {
+    try {
+      client.remove("/bench/read-" + chunkSize);
+      client.close();
+    } finally {
+      cluster.close();
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 2, batchSize = WRITE_BATCH)
+  @Measurement(iterations = 10, batchSize = WRITE_BATCH)
+  public ByteBuffer write() throws TException {
+    return writer.write(chunk.duplicate());
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @Warmup(iterations = 3, time = 2)
+  @Measurement(iterations = 5, time = 2)
+  public ByteBuffer read() throws TException {
+    ByteBuffer data = reader.read(chunkSize);
+    if (Responses.is(data, Responses.MSG_NOT_FOUND)) {
+      reader.seek(0);
+    }
+    return data;
+  }
+}
@@ -0,0 +1,60 @@
+package jiffy.storage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import jiffy.util.ByteBufferUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashSlotBenchmark {
+
+  @Param({"8", "64", "512"})
+  public int keySize;
+
+  private ByteBuffer heapKey;
+  private ByteBuffer directKey;
+  private String stringKey;
+
+  @Setup
+  public void setUp() {
+    StringBuilder key = new StringBuilder();
+    while (key.length() < keySize) {
+      key.append(key.length() % 10);
+    }
+    stringKey = key.toString();
+    heapKey = ByteBufferUtils.fromString(stringKey);
+    directKey = ByteBuffer.allocateDirect(keySize);
+    directKey.put(heapKey.duplicate());
+    directKey.flip();
+  }
+
+  @Benchmark
+  public int heapBuffer() {
+    return HashSlot.get(heapKey);
+  }
+
+  @Benchmark
+  public int directBuffer() {
+    return HashSlot.get(directKey);
+  }
+
+  @Benchmark
+  public int string() {
+    return HashSlot.get(stringKey);
+  }
+}
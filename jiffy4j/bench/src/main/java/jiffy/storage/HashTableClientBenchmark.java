@@ -0,0 +1,96 @@
+package jiffy.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import jiffy.JiffyClient;
+import jiffy.bench.BenchmarkCluster;
+import jiffy.util.ByteBufferUtils;
+import org.apache.thrift.TException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trips of single hash table operations against a live cluster. The client is shared by
+ * all benchmark threads, as servers are expected to share it; run with {@code -t} to measure
+ * contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashTableClientBenchmark {
+
+  private static final int NUM_KEYS = 1024;
+
+  @Param({"64", "1024", "16384"})
+  public int valueSize;
+
+  private BenchmarkCluster cluster;
+  private JiffyClient client;
+  private HashTableClient table;
+  private ByteBuffer[] keys;
+  private ByteBuffer value;
+
+  @Setup
+  public void setUp() throws IOException, InterruptedException, TException {
+    cluster = BenchmarkCluster.start();
+    client = cluster.connect();
+    table = client.createHashTable("/bench/table-" + valueSize);
+    value = ByteBuffer.allocate(valueSize);
+    keys = new ByteBuffer[NUM_KEYS];
+    for (int i = 0; i < NUM_KEYS; i++) {
+      keys[i] = ByteBufferUtils.fromString("key" + i);
+      table.put(keys[i], value);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException, TException {
+    try {
+      table.close();
+      client.remove("/bench/table-" + valueSize);
+      client.close();
+    } finally {
+      cluster.close();
+    }
+  }
+
+  private ByteBuffer randomKey() {
+    return keys[ThreadLocalRandom.current().nextInt(NUM_KEYS)];
+  }
+
+  @Benchmark
+  public ByteBuffer get() throws TException {
+    return table.get(randomKey());
+  }
+
+  @Benchmark
+  public ByteBuffer upsert() throws TException {
+    return table.upsert(randomKey(), value);
+  }
+
+  /**
+   * A put of a new key, followed by its removal so that the table does not grow; the score
+   * covers both round trips.
+   */
+  @Benchmark
+  public ByteBuffer putAndRemove() throws TException {
+    ByteBuffer key = ByteBufferUtils.fromString("new" + ThreadLocalRandom.current().nextLong());
+    table.put(key, value);
+    return table.remove(key);
+  }
+}
@@ -11,9 +11,11 @@ import jiffy.directory.directory_service;
 import jiffy.directory.directory_service.Client;
 import jiffy.directory.rpc_data_status;
 import jiffy.partition.PartitionNameBuilder;
+import jiffy.storage.FifoQueueClient;
 import jiffy.storage.FileReader;
 import jiffy.storage.FileWriter;
 import jiffy.storage.HashTableClient;
+import jiffy.storage.SharedLogClient;
 import jiffy.lease.LeaseWorker;
 import jiffy.notification.HashTableListener;
 import org.apache.thrift.TException;
@@ -210,6 +212,103 @@ public class JiffyClient implements Closeable {
     return new FileWriter(fs, path, status, timeoutMs);
   }
 
+  public FifoQueueClient createQueue(String path) throws TException {
+    return createQueue(path, DEFAULT_BACKING_PATH);
+  }
+
+  public FifoQueueClient createQueue(String path, String backingPath) throws TException {
+    return createQueue(path, backingPath, DEFAULT_NUM_BLOCKS, DEFAULT_CHAIN_LENGTH);
+  }
+
+  public FifoQueueClient createQueue(String path, String backingPath, int numBlocks,
+      int chainLength) throws TException {
+    return createQueue(path, backingPath, numBlocks, chainLength, DEFAULT_FLAGS,
+        DEFAULT_PERMISSIONS, DEFAULT_TAGS);
+  }
+
+  public FifoQueueClient createQueue(String path, String backingPath, int numBlocks,
+      int chainLength, int flags, int permissions, Map<String, String> tags) throws TException {
+    rpc_data_status status = initDataStructure(InitType.CREATE, path, "fifoqueue", backingPath,
+        numBlocks, chainLength, flags, permissions, tags, "");
+    return new FifoQueueClient(fs, path, status, timeoutMs);
+  }
+
+  public FifoQueueClient openQueue(String path) throws TException {
+    rpc_data_status status = fs.open(path);
+    beginScope(path);
+    return new FifoQueueClient(fs, path, status, timeoutMs);
+  }
+
+  public FifoQueueClient openOrCreateQueue(String path) throws TException {
+    return openOrCreateQueue(path, DEFAULT_BACKING_PATH);
+  }
+
+  public FifoQueueClient openOrCreateQueue(String path, String backingPath) throws TException {
+    return openOrCreateQueue(path, backingPath, DEFAULT_NUM_BLOCKS, DEFAULT_CHAIN_LENGTH);
+  }
+
+  public FifoQueueClient openOrCreateQueue(String path, String backingPath, int numBlocks,
+      int chainLength) throws TException {
+    return openOrCreateQueue(path, backingPath, numBlocks, chainLength, DEFAULT_FLAGS,
+        DEFAULT_PERMISSIONS, DEFAULT_TAGS);
+  }
+
+  public FifoQueueClient openOrCreateQueue(String path, String backingPath, int numBlocks,
+      int chainLength, int flags, int permissions, Map<String, String> tags) throws TException {
+    rpc_data_status status = initDataStructure(InitType.OPEN_OR_CREATE, path, "fifoqueue",
+        backingPath, numBlocks, chainLength, flags, permissions, tags, "");
+    return new FifoQueueClient(fs, path, status, timeoutMs);
+  }
+
+  public SharedLogClient createSharedLog(String path) throws TException {
+    return createSharedLog(path, DEFAULT_BACKING_PATH);
+  }
+
+  public SharedLogClient createSharedLog(String path, String backingPath) throws TException {
+    return createSharedLog(path, backingPath, DEFAULT_NUM_BLOCKS, DEFAULT_CHAIN_LENGTH);
+  }
+
+  public SharedLogClient createSharedLog(String path, String backingPath, int numBlocks,
+      int chainLength) throws TException {
+    return createSharedLog(path, backingPath, numBlocks, chainLength, DEFAULT_FLAGS,
+        DEFAULT_PERMISSIONS, DEFAULT_TAGS);
+  }
+
+  public SharedLogClient createSharedLog(String path, String backingPath, int numBlocks,
+      int chainLength, int flags, int permissions, Map<String, String> tags) throws TException {
+    rpc_data_status status = initDataStructure(InitType.CREATE, path, "shared_log", backingPath,
+        numBlocks, chainLength, flags, permissions, tags, "");
+    return new SharedLogClient(fs, path, status, timeoutMs);
+  }
+
+  public SharedLogClient openSharedLog(String path) throws TException {
+    rpc_data_status status = fs.open(path);
+    beginScope(path);
+    return new SharedLogClient(fs, path, status, timeoutMs);
+  }
+
+  public SharedLogClient openOrCreateSharedLog(String path) throws TException {
+    return openOrCreateSharedLog(path, DEFAULT_BACKING_PATH);
+  }
+
+  public SharedLogClient openOrCreateSharedLog(String path, String backingPath)
+      throws TException {
+    return openOrCreateSharedLog(path, backingPath, DEFAULT_NUM_BLOCKS, DEFAULT_CHAIN_LENGTH);
+  }
+
+  public SharedLogClient openOrCreateSharedLog(String path, String backingPath, int numBlocks,
+      int chainLength) throws TException {
+    return openOrCreateSharedLog(path, backingPath, numBlocks, chainLength, DEFAULT_FLAGS,
+        DEFAULT_PERMISSIONS, DEFAULT_TAGS);
+  }
+
+  public SharedLogClient openOrCreateSharedLog(String path, String backingPath, int numBlocks,
+      int chainLength, int flags, int permissions, Map<String, String> tags) throws TException {
+    rpc_data_status status = initDataStructure(InitType.OPEN_OR_CREATE, path, "shared_log",
+        backingPath, numBlocks, chainLength, flags, permissions, tags, "");
+    return new SharedLogClient(fs, path, status, timeoutMs);
+  }
+
   public HashTableListener listenOnHashTable(String path) throws TException {
     rpc_data_status status = fs.open(path);
     beginScope(path);
@@ -0,0 +1,378 @@
+package jiffy.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Client-side latency histograms and counters, shared by every client in the JVM.
+ *
+ * Command latencies are recorded per command type (e.g. {@code put}, {@code read}) and per
+ * partition, from the first send to the final response, including retries; a partition's
+ * histogram is dropped once the last client of that partition closes. Counters track
+ * transport retries, export redirects, routing refreshes after {@code !block_moved}, back-offs
+ * after {@code !full}, chain failure resolutions, payload bytes sent and received, and open
+ * storage connections.
+ *
+ * Collection is off unless the {@code jiffy.metrics.enabled} system property is {@code true}
+ * or it is switched on at runtime through {@link #setEnabled(boolean)} or JMX; while off, the
+ * instrumented paths cost a volatile read. Metrics are published as MXBeans under the
+ * {@code jiffy.client} domain unless {@code jiffy.metrics.jmx} is {@code false}, and can be
+ * pushed periodically to any {@link MetricsReporter}.
+ */
+public class ClientMetrics implements ClientMetricsMXBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ClientMetrics.class);
+
+  private static final String DOMAIN = "jiffy.client";
+  private static final long DISABLED = Long.MIN_VALUE;
+
+  private static final ClientMetrics INSTANCE = new ClientMetrics(
+      Boolean.getBoolean("jiffy.metrics.enabled"),
+      Boolean.parseBoolean(System.getProperty("jiffy.metrics.jmx", "true")));
+
+  public static ClientMetrics get() {
+    return INSTANCE;
+  }
+
+  private volatile boolean enabled;
+  private final boolean jmx;
+
+  private final Map<ByteBuffer, LatencyHistogram> commands;
+  private final Map<String, Map<String, LatencyHistogram>> partitions;
+  // Clients holding each partition histogram; guarded by this
+  private final Map<LatencyHistogram, Integer> partitionUsers;
+
+  private final LongAdder retries;
+  private final LongAdder redirects;
+  private final LongAdder blockMovedRefreshes;
+  private final LongAdder fullBackoffs;
+  private final LongAdder failureResolutions;
+  private final LongAdder bytesSent;
+  private final LongAdder bytesReceived;
+  private final AtomicInteger openConnections;
+
+  private final List<ScheduledFuture<?>> reporters;
+  private ScheduledExecutorService reporterExecutor;
+
+  ClientMetrics(boolean enabled, boolean jmx) {
+    this.enabled = enabled;
+    this.jmx = jmx;
+    this.commands = new ConcurrentHashMap<>();
+    this.partitions = new ConcurrentHashMap<>();
+    this.partitionUsers = new IdentityHashMap<>();
+    this.retries = new LongAdder();
+    this.redirects = new LongAdder();
+    this.blockMovedRefreshes = new LongAdder();
+    this.fullBackoffs = new LongAdder();
+    this.failureResolutions = new LongAdder();
+    this.bytesSent = new LongAdder();
+    this.bytesReceived = new LongAdder();
+    this.openConnections = new AtomicInteger(0);
+    this.reporters = new CopyOnWriteArrayList<>();
+    register("type=ClientMetrics", this);
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Start timing an operation; pass the result to {@link #recordCommand}.
+   */
+  public long start() {
+    return enabled ? System.nanoTime() : DISABLED;
+  }
+
+  /**
+   * Record the latency of command {@code cmd} started at {@code start}, against both the
+   * command type and {@code partition} (which may be null).
+   */
+  public void recordCommand(ByteBuffer cmd, LatencyHistogram partition, long start) {
+    if (start == DISABLED) {
+      return;
+    }
+    long elapsed = System.nanoTime() - start;
+    LatencyHistogram histogram = commands.get(cmd);
+    if (histogram == null) {
+      histogram = command(cmd);
+    }
+    histogram.record(elapsed);
+    if (partition != null) {
+      partition.record(elapsed);
+    }
+  }
+
+  private LatencyHistogram command(ByteBuffer cmd) {
+    byte[] bytes = new byte[cmd.remaining()];
+    cmd.duplicate().get(bytes);
+    String name = new String(bytes, StandardCharsets.UTF_8);
+    return commands.computeIfAbsent(ByteBuffer.wrap(bytes), k -> {
+      LatencyHistogram histogram = new LatencyHistogram(name);
+      register("type=CommandLatency,name=" + ObjectName.quote(name), histogram);
+      return histogram;
+    });
+  }
+
+  /**
+   * Latency histogram for partition {@code name} of the data structure at {@code path}; each
+   * call must be matched by a {@link #releasePartition(String, String)} once done with it.
+   */
+  public synchronized LatencyHistogram partition(String path, String name) {
+    LatencyHistogram histogram = partitions.computeIfAbsent(path, k -> new ConcurrentHashMap<>())
+        .computeIfAbsent(name, k -> {
+          LatencyHistogram h = new LatencyHistogram(path + ":" + name);
+          register(partitionProperties(path, name), h);
+          return h;
+        });
+    partitionUsers.merge(histogram, 1, Integer::sum);
+    return histogram;
+  }
+
+  /**
+   * Give up a histogram obtained from {@link #partition(String, String)}; the last release
+   * drops the histogram and unregisters its MBean.
+   */
+  public synchronized void releasePartition(String path, String name) {
+    Map<String, LatencyHistogram> byName = partitions.get(path);
+    LatencyHistogram histogram = byName == null ? null : byName.get(name);
+    if (histogram == null) {
+      return;
+    }
+    int users = partitionUsers.getOrDefault(histogram, 0) - 1;
+    if (users > 0) {
+      partitionUsers.put(histogram, users);
+      return;
+    }
+    partitionUsers.remove(histogram);
+    byName.remove(name);
+    if (byName.isEmpty()) {
+      partitions.remove(path);
+    }
+    unregister(partitionProperties(path, name));
+  }
+
+  private static String partitionProperties(String path, String name) {
+    return "type=PartitionLatency,path=" + ObjectName.quote(path) + ",partition="
+        + ObjectName.quote(name);
+  }
+
+  public void retry() {
+    if (enabled) {
+      retries.increment();
+    }
+  }
+
+  public void redirect() {
+    if (enabled) {
+      redirects.increment();
+    }
+  }
+
+  public void blockMoved() {
+    if (enabled) {
+      blockMovedRefreshes.increment();
+    }
+  }
+
+  public void fullBackoff() {
+    if (enabled) {
+      fullBackoffs.increment();
+    }
+  }
+
+  public void failureResolution() {
+    if (enabled) {
+      failureResolutions.increment();
+    }
+  }
+
+  public void bytesSent(List<ByteBuffer> args) {
+    if (enabled) {
+      bytesSent.add(remaining(args));
+    }
+  }
+
+  public void bytesReceived(List<ByteBuffer> result) {
+    if (enabled) {
+      bytesReceived.add(remaining(result));
+    }
+  }
+
+  private static long remaining(List<ByteBuffer> buffers) {
+    long total = 0;
+    for (ByteBuffer buf : buffers) {
+      total += buf.remaining();
+    }
+    return total;
+  }
+
+  /**
+   * Connections are always counted, so that the gauge is right when metrics are enabled late.
+   */
+  public void connectionOpened() {
+    openConnections.incrementAndGet();
+  }
+
+  public void connectionClosed() {
+    openConnections.decrementAndGet();
+  }
+
+  @Override
+  public long getRetries() {
+    return retries.sum();
+  }
+
+  @Override
+  public long getRedirects() {
+    return redirects.sum();
+  }
+
+  @Override
+  public long getBlockMovedRefreshes() {
+    return blockMovedRefreshes.sum();
+  }
+
+  @Override
+  public long getFullBackoffs() {
+    return fullBackoffs.sum();
+  }
+
+  @Override
+  public long getFailureResolutions() {
+    return failureResolutions.sum();
+  }
+
+  @Override
+  public long getBytesSent() {
+    return bytesSent.sum();
+  }
+
+  @Override
+  public long getBytesReceived() {
+    return bytesReceived.sum();
+  }
+
+  @Override
+  public int getOpenConnections() {
+    return openConnections.get();
+  }
+
+  @Override
+  public void reset() {
+    retries.reset();
+    redirects.reset();
+    blockMovedRefreshes.reset();
+    fullBackoffs.reset();
+    failureResolutions.reset();
+    bytesSent.reset();
+    bytesReceived.reset();
+    for (LatencyHistogram histogram : commands.values()) {
+      histogram.reset();
+    }
+    for (Map<String, LatencyHistogram> byName : partitions.values()) {
+      for (LatencyHistogram histogram : byName.values()) {
+        histogram.reset();
+      }
+    }
+  }
+
+  public MetricsSnapshot snapshot() {
+    Map<String, LatencyHistogram.Snapshot> commandSnapshots = new HashMap<>();
+    for (LatencyHistogram histogram : commands.values()) {
+      commandSnapshots.put(histogram.getName(), histogram.snapshot());
+    }
+    Map<String, Map<String, LatencyHistogram.Snapshot>> partitionSnapshots = new HashMap<>();
+    for (Map.Entry<String, Map<String, LatencyHistogram>> path : partitions.entrySet()) {
+      Map<String, LatencyHistogram.Snapshot> byName = new HashMap<>();
+      for (Map.Entry<String, LatencyHistogram> e : path.getValue().entrySet()) {
+        byName.put(e.getKey(), e.getValue().snapshot());
+      }
+      partitionSnapshots.put(path.getKey(), byName);
+    }
+    return new MetricsSnapshot(System.currentTimeMillis(), getRetries(), getRedirects(),
+        getBlockMovedRefreshes(), getFullBackoffs(), getFailureResolutions(), getBytesSent(),
+        getBytesReceived(), getOpenConnections(), commandSnapshots, partitionSnapshots);
+  }
+
+  /**
+   * Pass a snapshot to {@code reporter} every {@code period}, on a shared daemon thread, until
+   * {@link #removeReporters()} is called.
+   */
+  public synchronized void addReporter(MetricsReporter reporter, long period, TimeUnit unit) {
+    if (reporterExecutor == null) {
+      reporterExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "jiffy-metrics-reporter");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    reporters.add(reporterExecutor.scheduleAtFixedRate(() -> {
+      try {
+        reporter.report(snapshot());
+      } catch (RuntimeException e) {
+        LOG.warn("Metrics reporter failed: {}", e.getMessage());
+      }
+    }, period, period, unit));
+  }
+
+  public synchronized void removeReporters() {
+    for (ScheduledFuture<?> future : reporters) {
+      future.cancel(false);
+    }
+    reporters.clear();
+  }
+
+  private void register(String properties, Object bean) {
+    if (!jmx) {
+      return;
+    }
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(bean, new ObjectName(DOMAIN + ":" + properties));
+    } catch (InstanceAlreadyExistsException e) {
+      LOG.warn("MBean {}:{} is already registered", DOMAIN, properties);
+    } catch (JMException | RuntimeException e) {
+      LOG.warn("Could not register MBean {}:{}: {}", DOMAIN, properties, e.getMessage());
+    }
+  }
+
+  private void unregister(String properties) {
+    if (!jmx) {
+      return;
+    }
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.unregisterMBean(new ObjectName(DOMAIN + ":" + properties));
+    } catch (InstanceNotFoundException e) {
+      // Never registered
+    } catch (JMException | RuntimeException e) {
+      LOG.warn("Could not unregister MBean {}:{}: {}", DOMAIN, properties, e.getMessage());
+    }
+  }
+}
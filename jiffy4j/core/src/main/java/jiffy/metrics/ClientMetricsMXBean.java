@@ -0,0 +1,29 @@
+package jiffy.metrics;
+
+/**
+ * JMX view of the client-wide counters in {@link ClientMetrics}.
+ */
+public interface ClientMetricsMXBean {
+
+  boolean isEnabled();
+
+  void setEnabled(boolean enabled);
+
+  long getRetries();
+
+  long getRedirects();
+
+  long getBlockMovedRefreshes();
+
+  long getFullBackoffs();
+
+  long getFailureResolutions();
+
+  long getBytesSent();
+
+  long getBytesReceived();
+
+  int getOpenConnections();
+
+  void reset();
+}
@@ -0,0 +1,196 @@
+package jiffy.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with a fixed relative error, in the style of HdrHistogram.
+ *
+ * Values (in nanoseconds) are counted in log-linear buckets: each power of two is split into
+ * {@code 2^SUB_BITS} equal sub-buckets, so any recorded value is reported within about 3% of
+ * its true value whatever its magnitude. Values from 0 to about 68 seconds are tracked; larger
+ * ones are counted in the last bucket. Recording is a single atomic increment plus a
+ * {@link LongAdder} update, and never allocates.
+ */
+public class LatencyHistogram implements LatencyMXBean {
+
+  private static final int SUB_BITS = 5;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  // 2^36 ns, about 68.7 seconds
+  private static final int MAX_SHIFT = 36 - SUB_BITS;
+  static final int BUCKETS = (MAX_SHIFT + 1) * SUB_COUNT;
+
+  private final String name;
+  private final AtomicLongArray counts;
+  private final LongAdder sum;
+  private final AtomicLong max;
+
+  public LatencyHistogram(String name) {
+    this.name = name;
+    this.counts = new AtomicLongArray(BUCKETS);
+    this.sum = new LongAdder();
+    this.max = new AtomicLong(0);
+  }
+
+  static int indexOf(long value) {
+    if (value < SUB_COUNT) {
+      return (int) Math.max(value, 0);
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    if (shift >= MAX_SHIFT) {
+      return BUCKETS - 1;
+    }
+    return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+  }
+
+  static long lowestValueAt(int index) {
+    if (index < SUB_COUNT) {
+      return index;
+    }
+    int shift = index / SUB_COUNT - 1;
+    return (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+  }
+
+  /**
+   * The value reported for samples in bucket {@code index}: the middle of its range.
+   */
+  static long valueAt(int index) {
+    if (index < SUB_COUNT) {
+      return index;
+    }
+    int shift = index / SUB_COUNT - 1;
+    return lowestValueAt(index) + ((1L << shift) >> 1);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void record(long nanos) {
+    counts.incrementAndGet(indexOf(nanos));
+    sum.add(nanos);
+    long current = max.get();
+    while (nanos > current && !max.compareAndSet(current, nanos)) {
+      current = max.get();
+    }
+  }
+
+  /**
+   * A consistent copy of the counts, from which percentiles can be computed.
+   */
+  public Snapshot snapshot() {
+    long[] copy = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      copy[i] = counts.get(i);
+      total += copy[i];
+    }
+    return new Snapshot(name, copy, total, sum.sum(), max.get());
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    sum.reset();
+    max.set(0);
+  }
+
+  @Override
+  public long getCount() {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += counts.get(i);
+    }
+    return total;
+  }
+
+  @Override
+  public double getMeanMicros() {
+    return snapshot().getMean() / 1000.0;
+  }
+
+  @Override
+  public double getMedianMicros() {
+    return snapshot().getValueAtPercentile(50) / 1000.0;
+  }
+
+  @Override
+  public double get90thPercentileMicros() {
+    return snapshot().getValueAtPercentile(90) / 1000.0;
+  }
+
+  @Override
+  public double get99thPercentileMicros() {
+    return snapshot().getValueAtPercentile(99) / 1000.0;
+  }
+
+  @Override
+  public double get999thPercentileMicros() {
+    return snapshot().getValueAtPercentile(99.9) / 1000.0;
+  }
+
+  @Override
+  public double getMaxMicros() {
+    return max.get() / 1000.0;
+  }
+
+  /**
+   * Immutable view of a histogram at one point in time.
+   */
+  public static class Snapshot {
+
+    private final String name;
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    Snapshot(String name, long[] counts, long count, long sum, long max) {
+      this.name = name;
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Mean latency in nanoseconds, or 0 if nothing was recorded.
+     */
+    public double getMean() {
+      return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * Latency in nanoseconds that {@code percentile} percent of the samples did not exceed,
+     * or 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= target) {
+          return Math.min(valueAt(i), max);
+        }
+      }
+      return max;
+    }
+  }
+}
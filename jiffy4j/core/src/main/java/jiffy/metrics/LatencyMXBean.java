@@ -0,0 +1,21 @@
+package jiffy.metrics;
+
+/**
+ * JMX view of a {@link LatencyHistogram}; latencies are in microseconds.
+ */
+public interface LatencyMXBean {
+
+  long getCount();
+
+  double getMeanMicros();
+
+  double getMedianMicros();
+
+  double get90thPercentileMicros();
+
+  double get99thPercentileMicros();
+
+  double get999thPercentileMicros();
+
+  double getMaxMicros();
+}
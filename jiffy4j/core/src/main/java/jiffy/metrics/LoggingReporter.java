@@ -0,0 +1,33 @@
+package jiffy.metrics;
+
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the counters and per-command latencies of each snapshot to the log.
+ */
+public class LoggingReporter implements MetricsReporter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LoggingReporter.class);
+
+  @Override
+  public void report(MetricsSnapshot snapshot) {
+    LOG.info("retries={} redirects={} block_moved={} full_backoffs={} failure_resolutions={} "
+            + "bytes_sent={} bytes_received={} open_connections={}", snapshot.getRetries(),
+        snapshot.getRedirects(), snapshot.getBlockMovedRefreshes(), snapshot.getFullBackoffs(),
+        snapshot.getFailureResolutions(), snapshot.getBytesSent(), snapshot.getBytesReceived(),
+        snapshot.getOpenConnections());
+    for (Map.Entry<String, LatencyHistogram.Snapshot> e : snapshot.getCommands().entrySet()) {
+      LatencyHistogram.Snapshot s = e.getValue();
+      LOG.info("{}: count={} mean={}us p50={}us p99={}us p999={}us max={}us", e.getKey(),
+          s.getCount(), micros((long) s.getMean()), micros(s.getValueAtPercentile(50)),
+          micros(s.getValueAtPercentile(99)), micros(s.getValueAtPercentile(99.9)),
+          micros(s.getMax()));
+    }
+  }
+
+  private static String micros(long nanos) {
+    return String.format("%.1f", nanos / 1000.0);
+  }
+}
@@ -0,0 +1,10 @@
+package jiffy.metrics;
+
+/**
+ * Receives periodic snapshots of the client metrics; see
+ * {@link ClientMetrics#addReporter(MetricsReporter, long, java.util.concurrent.TimeUnit)}.
+ */
+public interface MetricsReporter {
+
+  void report(MetricsSnapshot snapshot);
+}
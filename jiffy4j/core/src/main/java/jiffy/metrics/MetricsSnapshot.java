@@ -0,0 +1,90 @@
+package jiffy.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The client metrics at one point in time. Counters are cumulative since start-up or the last
+ * {@link ClientMetrics#reset()}.
+ */
+public class MetricsSnapshot {
+
+  private final long timestampMs;
+  private final long retries;
+  private final long redirects;
+  private final long blockMovedRefreshes;
+  private final long fullBackoffs;
+  private final long failureResolutions;
+  private final long bytesSent;
+  private final long bytesReceived;
+  private final int openConnections;
+  private final Map<String, LatencyHistogram.Snapshot> commands;
+  private final Map<String, Map<String, LatencyHistogram.Snapshot>> partitions;
+
+  MetricsSnapshot(long timestampMs, long retries, long redirects, long blockMovedRefreshes,
+      long fullBackoffs, long failureResolutions, long bytesSent, long bytesReceived,
+      int openConnections, Map<String, LatencyHistogram.Snapshot> commands,
+      Map<String, Map<String, LatencyHistogram.Snapshot>> partitions) {
+    this.timestampMs = timestampMs;
+    this.retries = retries;
+    this.redirects = redirects;
+    this.blockMovedRefreshes = blockMovedRefreshes;
+    this.fullBackoffs = fullBackoffs;
+    this.failureResolutions = failureResolutions;
+    this.bytesSent = bytesSent;
+    this.bytesReceived = bytesReceived;
+    this.openConnections = openConnections;
+    this.commands = Collections.unmodifiableMap(commands);
+    this.partitions = Collections.unmodifiableMap(partitions);
+  }
+
+  public long getTimestampMs() {
+    return timestampMs;
+  }
+
+  public long getRetries() {
+    return retries;
+  }
+
+  public long getRedirects() {
+    return redirects;
+  }
+
+  public long getBlockMovedRefreshes() {
+    return blockMovedRefreshes;
+  }
+
+  public long getFullBackoffs() {
+    return fullBackoffs;
+  }
+
+  public long getFailureResolutions() {
+    return failureResolutions;
+  }
+
+  public long getBytesSent() {
+    return bytesSent;
+  }
+
+  public long getBytesReceived() {
+    return bytesReceived;
+  }
+
+  public int getOpenConnections() {
+    return openConnections;
+  }
+
+  /**
+   * Latencies by command name.
+   */
+  public Map<String, LatencyHistogram.Snapshot> getCommands() {
+    return commands;
+  }
+
+  /**
+   * Latencies by data structure path, then partition name.
+   */
+  public Map<String, Map<String, LatencyHistogram.Snapshot>> getPartitions() {
+    return partitions;
+  }
+}
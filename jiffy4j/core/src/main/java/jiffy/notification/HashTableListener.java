@@ -17,8 +17,8 @@ public class HashTableListener implements Closeable {
 
   private Mailbox<Notification> notifications;
   private Mailbox<Control> controls;
-  private NotificationWorker worker;
-  private Thread workerThread;
+  private NotificationWorker[] workers;
+  private Thread[] workerThreads;
   private BlockListener[] listeners;
   private int[] blockIds;
 
@@ -27,16 +27,21 @@ public class HashTableListener implements Closeable {
     this.controls = new Mailbox<>();
     this.blockIds = new int[status.data_blocks.size()];
     this.listeners = new BlockListener[status.data_blocks.size()];
-    this.worker = new NotificationWorker(notifications, controls);
+    this.workers = new NotificationWorker[status.data_blocks.size()];
+    this.workerThreads = new Thread[status.data_blocks.size()];
     int i = 0;
     for (rpc_replica_chain block: status.data_blocks) {
       BlockMetadata t = BlockNameParser.parse(block.block_ids.get(block.block_ids.size() - 1));
       blockIds[i] = t.getBlockId();
       listeners[i] = new BlockListener(t.getHost(), t.getServicePort(), controls);
-      worker.addProtocol(listeners[i].getProtocol());
+      // One worker per block, since a worker blocks reading its connection
+      workers[i] = new NotificationWorker(notifications, controls);
+      workers[i].addProtocol(listeners[i].getProtocol());
+      workerThreads[i] = new Thread(workers[i]);
+      workerThreads[i].setDaemon(true);
+      workerThreads[i].start();
+      i++;
     }
-    workerThread = new Thread(worker);
-    workerThread.start();
   }
 
   @Override
@@ -44,14 +49,31 @@ public class HashTableListener implements Closeable {
     for (BlockListener listener: listeners) {
       listener.close();
     }
-    worker.stop();
+    for (NotificationWorker worker: workers) {
+      worker.stop();
+    }
     try {
-      workerThread.join();
+      for (Thread workerThread: workerThreads) {
+        workerThread.join();
+      }
     } catch (InterruptedException e) {
       throw new IOException(e);
     }
   }
 
+  /**
+   * Whether notifications are still being received from every block; false once any
+   * connection has been lost.
+   */
+  public boolean isListening() {
+    for (NotificationWorker worker: workers) {
+      if (worker.isStopped()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   public void subscribe(List<String> ops) throws TException, InterruptedException {
     for (int i = 0; i < listeners.length; i++) {
       listeners[i].subscribe(blockIds[i], ops);
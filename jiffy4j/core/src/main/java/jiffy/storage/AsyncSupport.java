@@ -0,0 +1,98 @@
+package jiffy.storage;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * Shared executors for the asynchronous client paths: a scheduler for timeouts and back-offs,
+ * and a pool for the occasional blocking call (directory lookups, reconnects) that must not run
+ * on a connection's reader thread.
+ */
+class AsyncSupport {
+
+  private static final ScheduledThreadPoolExecutor SCHEDULER;
+  private static final ExecutorService BLOCKING;
+
+  static {
+    SCHEDULER = new ScheduledThreadPoolExecutor(1, daemonThreads("jiffy-async-scheduler"));
+    SCHEDULER.setRemoveOnCancelPolicy(true);
+    BLOCKING = Executors.newCachedThreadPool(daemonThreads("jiffy-async-worker"));
+  }
+
+  private static ThreadFactory daemonThreads(String prefix) {
+    AtomicInteger count = new AtomicInteger(0);
+    return r -> {
+      Thread t = new Thread(r, prefix + "-" + count.getAndIncrement());
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  static ExecutorService blocking() {
+    return BLOCKING;
+  }
+
+  static void schedule(Runnable task, long delayMs) {
+    SCHEDULER.schedule(() -> BLOCKING.execute(task), delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Fail {@code future} with a timed-out transport exception if it has not completed within
+   * {@code timeoutMs}.
+   */
+  static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, long timeoutMs) {
+    if (!future.isDone()) {
+      ScheduledFuture<?> timer = SCHEDULER.schedule(() -> future.completeExceptionally(
+          new TTransportException(TTransportException.TIMED_OUT,
+              "Timed out waiting for command response")), timeoutMs, TimeUnit.MILLISECONDS);
+      future.whenComplete((r, e) -> timer.cancel(false));
+    }
+    return future;
+  }
+
+  static Throwable unwrap(Throwable t) {
+    while ((t instanceof CompletionException || t instanceof ExecutionException)
+        && t.getCause() != null) {
+      t = t.getCause();
+    }
+    return t;
+  }
+
+  /**
+   * Wait for {@code future}, rethrowing its failure as the exception the synchronous API would
+   * have thrown.
+   */
+  static <T> T await(CompletableFuture<T> future) throws TException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TTransportException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = unwrap(e);
+      if (cause instanceof TException) {
+        throw (TException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new TException(cause);
+    }
+  }
+
+  static <T> CompletableFuture<T> failed(Throwable t) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(t);
+    return future;
+  }
+}
@@ -2,82 +2,64 @@ package jiffy.storage;
 
 import java.nio.ByteBuffer;
 import java.util.List;
-import jiffy.storage.block_response_service.response_args;
-import org.apache.thrift.TApplicationException;
+import jiffy.storage.BlockConnection.ResponseHandler;
 import org.apache.thrift.TException;
-import org.apache.thrift.protocol.TMessage;
-import org.apache.thrift.protocol.TMessageType;
-import org.apache.thrift.protocol.TProtocol;
-import org.apache.thrift.transport.TTransport;
 import org.apache.thrift.transport.TTransportException;
 
 public class BlockClient {
 
-  class CommandResponse {
-    long clientSeqNo;
-    public List<ByteBuffer> result;
+  private int blockId;
+  private BlockClientCache cache;
+  private volatile BlockConnection connection;
+  private long registeredClientId;
 
-    CommandResponse(long clientSeqNo, List<ByteBuffer> result) {
-      this.clientSeqNo = clientSeqNo;
-      this.result = result;
-    }
+  BlockClient(BlockClientCache cache, String host, int port, int blockId, int timeoutMs)
+      throws TTransportException {
+    this.cache = cache;
+    this.connection = cache.get(host, port, timeoutMs);
+    this.blockId = blockId;
+    this.registeredClientId = -1;
   }
 
-  class CommandResponseReader {
-
-    private TProtocol protocol;
-
-    CommandResponseReader(TProtocol protocol) {
-      this.protocol = protocol;
-    }
-
-    CommandResponse receiveResponse() throws TException {
-      TMessage message = protocol.readMessageBegin();
-      if (message.type == TMessageType.EXCEPTION) {
-        TApplicationException exception = new TApplicationException();
-        exception.read(protocol);
-        protocol.readMessageEnd();
-        throw exception;
+  public synchronized void close() {
+    if (connection != null) {
+      if (registeredClientId != -1) {
+        connection.unregisterClientId(registeredClientId);
       }
-      block_response_service.response_args args = new response_args();
-      args.read(protocol);
-      protocol.readMessageEnd();
-      if (args.isSetSeq() && args.isSetResult()) {
-        return new CommandResponse(args.getSeq().getClientSeqNo(), args.getResult());
-      }
-      throw new TApplicationException(TApplicationException.MISSING_RESULT,
-          "Command response failure: unknown result");
+      cache.release(connection);
+      connection = null;
     }
   }
 
-  private int blockId;
-  private TTransport transport;
-  private TProtocol protocol;
-  private block_request_service.Client client;
-
-  BlockClient(BlockClientCache cache, String host, int port, int blockId)
-      throws TTransportException {
-    BlockClientCache.Value value = cache.get(host, port);
-    this.transport = value.getTransport();
-    this.protocol = value.getProtocol();
-    this.client = value.getClient();
-    this.blockId = blockId;
+  private BlockConnection connection() throws TTransportException {
+    BlockConnection c = connection;
+    if (c == null) {
+      throw new TTransportException(TTransportException.NOT_OPEN, "Block client is closed");
+    }
+    return c;
   }
 
-  public void close() {
-    transport.close();
+  /**
+   * Drop this client's connection from the cache if it has failed; a healthy connection is
+   * shared with other clients and is kept.
+   */
+  void discardIfFailed() {
+    BlockConnection c = connection;
+    if (c != null && !c.isHealthy()) {
+      cache.remove(c);
+    }
   }
 
-  CommandResponseReader newCommandResponseReader(long clientId) throws TException {
-    client.registerClientId(blockId, clientId);
-    return new CommandResponseReader(protocol);
+  void registerResponseHandler(long clientId, ResponseHandler handler) throws TException {
+    connection().registerClientId(blockId, clientId, handler);
+    registeredClientId = clientId;
   }
 
   long getClientId() throws TException {
-    return client.getClientId();
+    return connection().getClientId();
   }
 
-  void sendCommandRequest(sequence_id seq, List<ByteBuffer> args) throws TException {
-    client.commandRequest(seq, blockId, args);
+  void sendCommandRequest(long clientId, long seqNo, List<ByteBuffer> args) throws TException {
+    connection().sendCommandRequest(clientId, seqNo, blockId, args);
   }
-}
\ No newline at end of file
+}
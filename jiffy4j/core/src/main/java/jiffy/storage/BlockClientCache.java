@@ -1,16 +1,33 @@
 package jiffy.storage;
 
-import java.util.HashMap;
-import jiffy.storage.block_request_service.Client;
-import org.apache.thrift.protocol.TBinaryProtocol;
-import org.apache.thrift.protocol.TProtocol;
-import org.apache.thrift.transport.TFramedTransport;
-import org.apache.thrift.transport.TSocket;
-import org.apache.thrift.transport.TTransport;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.apache.thrift.transport.TTransportException;
 
+/**
+ * JVM-wide pool of storage server connections, keyed by host:port.
+ *
+ * Every block client talking to the same endpoint shares at most
+ * {@code jiffy.client.connections_per_endpoint} connections, handed out round-robin. Connections
+ * are reference counted; once unused for {@code jiffy.client.idle_timeout_ms} they are closed by
+ * a background evictor. Broken connections are never handed out and are replaced on demand.
+ * Connections use the transport named by {@code jiffy.client.transport}.
+ */
 public class BlockClientCache {
 
+  private static final int DEFAULT_CONNECTIONS_PER_ENDPOINT = 4;
+  private static final long DEFAULT_IDLE_TIMEOUT_MS = 60000;
+
+  private static final BlockClientCache INSTANCE = new BlockClientCache(
+      Integer.getInteger("jiffy.client.connections_per_endpoint",
+          DEFAULT_CONNECTIONS_PER_ENDPOINT),
+      Long.getLong("jiffy.client.idle_timeout_ms", DEFAULT_IDLE_TIMEOUT_MS),
+      BlockConnection.Transport.fromProperty());
+
   class Key {
     private String host;
     private int port;
@@ -46,76 +63,233 @@ public class BlockClientCache {
     public int hashCode() {
       return endpoint.hashCode();
     }
+
+    @Override
+    public String toString() {
+      return endpoint;
+    }
   }
 
-  class Value {
-    private TTransport transport;
-    private TProtocol protocol;
-    private Client client;
+  class Endpoint {
+    private final BlockConnection[] connections;
+    // Slots whose connection is being replaced by some thread, outside of the lock
+    private final boolean[] opening;
+    private int next;
+    private boolean invalidated;
+
+    Endpoint(int maxConnections) {
+      this.connections = new BlockConnection[maxConnections];
+      this.opening = new boolean[maxConnections];
+      this.next = 0;
+      this.invalidated = false;
+    }
+
+    /**
+     * Hand out the next connection in turn, replacing it if it is missing or broken. The slot is
+     * reserved while the old connection is closed and the new one opened, without holding the
+     * lock; meanwhile others asking for it get another healthy connection, if there is one.
+     */
+    BlockConnection acquire(Key key, int timeoutMs) throws TTransportException {
+      int slot;
+      BlockConnection stale;
+      synchronized (this) {
+        slot = next;
+        next = (next + 1) % connections.length;
+        while (true) {
+          BlockConnection connection = connections[slot];
+          if (connection != null && connection.isHealthy()) {
+            connection.retain();
+            return connection;
+          }
+          if (!opening[slot]) {
+            break;
+          }
+          connection = anyHealthy();
+          if (connection != null) {
+            connection.retain();
+            return connection;
+          }
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TTransportException(e);
+          }
+        }
+        stale = connections[slot];
+        connections[slot] = null;
+        opening[slot] = true;
+      }
+      BlockConnection connection = null;
+      boolean installed = false;
+      try {
+        if (stale != null) {
+          stale.close();
+        }
+        connection = BlockConnection.open(transport, key.getHost(), key.getPort(), timeoutMs);
+      } finally {
+        synchronized (this) {
+          opening[slot] = false;
+          if (connection != null && !invalidated) {
+            connections[slot] = connection;
+            connection.retain();
+            installed = true;
+          }
+          notifyAll();
+        }
+      }
+      if (!installed) {
+        connection.close();
+        throw new TTransportException(TTransportException.NOT_OPEN,
+            "Connections to " + key + " were closed");
+      }
+      return connection;
+    }
+
+    private BlockConnection anyHealthy() {
+      for (BlockConnection connection : connections) {
+        if (connection != null && connection.isHealthy()) {
+          return connection;
+        }
+      }
+      return null;
+    }
+
+    void evictIdle(long idleTimeoutMs) {
+      List<BlockConnection> evicted = new ArrayList<>();
+      synchronized (this) {
+        for (int i = 0; i < connections.length; i++) {
+          BlockConnection connection = connections[i];
+          if (connection != null && (connection.idleLongerThan(idleTimeoutMs)
+              || (connection.refCount() == 0 && !connection.isHealthy()))) {
+            evicted.add(connection);
+            connections[i] = null;
+          }
+        }
+      }
+      closeAll(evicted);
+    }
+
+    void remove(BlockConnection connection) {
+      synchronized (this) {
+        for (int i = 0; i < connections.length; i++) {
+          if (connections[i] == connection) {
+            connections[i] = null;
+          }
+        }
+      }
+      connection.close();
+    }
 
-    Value(TTransport transport, TProtocol protocol, Client client) {
-      this.transport = transport;
-      this.protocol = protocol;
-      this.client = client;
+    void invalidate() {
+      List<BlockConnection> closed = new ArrayList<>();
+      synchronized (this) {
+        invalidated = true;
+        for (int i = 0; i < connections.length; i++) {
+          if (connections[i] != null) {
+            closed.add(connections[i]);
+            connections[i] = null;
+          }
+        }
+      }
+      closeAll(closed);
     }
 
-    public TTransport getTransport() {
-      return transport;
+    private void closeAll(List<BlockConnection> closed) {
+      for (BlockConnection connection : closed) {
+        connection.close();
+      }
     }
 
-    public TProtocol getProtocol() {
-      return protocol;
+    synchronized int size() {
+      int n = 0;
+      for (BlockConnection connection : connections) {
+        if (connection != null) {
+          n++;
+        }
+      }
+      return n;
     }
+  }
+
+  private final ConcurrentHashMap<Key, Endpoint> cache;
+  private final int maxConnectionsPerEndpoint;
+  private final long idleTimeoutMs;
+  private final BlockConnection.Transport transport;
+  private final ScheduledExecutorService evictor;
 
-    public Client getClient() {
-      return client;
+  BlockClientCache(int maxConnectionsPerEndpoint, long idleTimeoutMs,
+      BlockConnection.Transport transport) {
+    if (maxConnectionsPerEndpoint < 1) {
+      throw new IllegalArgumentException("Connections per endpoint must be >= 1");
     }
+    this.cache = new ConcurrentHashMap<>();
+    this.maxConnectionsPerEndpoint = maxConnectionsPerEndpoint;
+    this.idleTimeoutMs = idleTimeoutMs;
+    this.transport = transport;
+    this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "jiffy-connection-evictor");
+      t.setDaemon(true);
+      return t;
+    });
+    long period = Math.max(idleTimeoutMs / 2, 1);
+    this.evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
   }
 
-  private HashMap<Key, Value> cache;
-  private int timeoutMs;
+  public static BlockClientCache getInstance() {
+    return INSTANCE;
+  }
 
-  BlockClientCache(int timeoutMs) {
-    this.cache = new HashMap<>();
-    this.timeoutMs = timeoutMs;
+  /**
+   * Acquire a shared connection to host:port; must be paired with {@link #release}.
+   */
+  BlockConnection get(String host, int port, int timeoutMs) throws TTransportException {
+    Key key = new Key(host, port);
+    return cache.computeIfAbsent(key, k -> new Endpoint(maxConnectionsPerEndpoint))
+        .acquire(key, timeoutMs);
   }
 
-  public Value get(String host, int port) throws TTransportException {
-//    Key key = new Key(host, port);
-//    if (cache.containsKey(key)) {
-//      return cache.get(key);
-//    }
-    TSocket socket = new TSocket(host, port);
-    socket.setTimeout(timeoutMs);
-    TFramedTransport transport = new TFramedTransport(socket);
-    TProtocol protocol = new TBinaryProtocol(transport);
-    Client client = new Client(protocol);
-    TTransportException ex = null;
-    int attemptsLeft = 3;
-    while (attemptsLeft > 0) {
-      try {
-        transport.open();
-        break;
-      } catch (TTransportException e) {
-        ex = e;
-        attemptsLeft--;
-      }
+  void release(BlockConnection connection) {
+    connection.release();
+  }
+
+  /**
+   * Close a connection that failed and stop handing it out. Other connections to the same
+   * endpoint are shared with other clients and are left alone.
+   */
+  void remove(BlockConnection connection) {
+    Endpoint endpoint = cache.get(new Key(connection.getHost(), connection.getPort()));
+    if (endpoint != null) {
+      endpoint.remove(connection);
+    } else {
+      connection.close();
+    }
+  }
+
+  public int numConnections() {
+    int n = 0;
+    for (Endpoint endpoint : cache.values()) {
+      n += endpoint.size();
     }
-    if (attemptsLeft == 0) {
-      throw ex;
+    return n;
+  }
+
+  public void clear() {
+    List<Key> keys = new ArrayList<>(cache.keySet());
+    for (Key key : keys) {
+      Endpoint endpoint = cache.remove(key);
+      if (endpoint != null) {
+        endpoint.invalidate();
+      }
     }
-    Value value = new Value(transport, protocol, client);
-    // cache.put(key, value);
-    return value;
   }
 
-  public void remove(String host, int port) {
-//    Key k = new Key(host, port);
-//    if (cache.containsKey(k)) {
-//      Value value = cache.remove(k);
-//      if (value.getTransport().isOpen()) {
-//        value.getTransport().close();
-//      }
-//    }
+  private void evictIdle() {
+    for (Key key : cache.keySet()) {
+      Endpoint endpoint = cache.get(key);
+      if (endpoint != null) {
+        endpoint.evictIdle(idleTimeoutMs);
+      }
+    }
   }
 }
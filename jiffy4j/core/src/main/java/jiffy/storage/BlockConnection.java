@@ -0,0 +1,388 @@
+package jiffy.storage;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import jiffy.metrics.ClientMetrics;
+import jiffy.storage.block_request_service.Client;
+import jiffy.storage.block_request_service.get_client_id_args;
+import jiffy.storage.block_request_service.get_client_id_result;
+import jiffy.storage.block_request_service.register_client_id_args;
+import jiffy.storage.block_request_service.register_client_id_result;
+import jiffy.storage.block_response_service.response_args;
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single connection to a storage server, shared by every block client talking to the same
+ * endpoint.
+ *
+ * The storage server delivers command responses on the connection that registered the client
+ * ID, so a connection carries responses for many clients at once. Incoming messages are
+ * demultiplexed by client ID to the registered {@link ResponseHandler}s; replies to the
+ * synchronous control calls (get_client_id, register_client_id) are handed back to the calling
+ * thread. Each control call carries its own message sequence ID, so a late reply to a call that
+ * already timed out is discarded rather than mistaken for the reply to the next one.
+ *
+ * How bytes move is left to the transport: {@link SocketBlockConnection} dedicates a blocking
+ * reader thread to each connection, while {@link SelectorBlockConnection} multiplexes all
+ * connections over a few selector threads. The transport is picked with the
+ * {@code jiffy.client.transport} system property ({@code blocking} or {@code nio}).
+ */
+abstract class BlockConnection {
+
+  interface ResponseHandler {
+
+    void onResponse(sequence_id seq, List<ByteBuffer> result);
+
+    void onFailure(TException e);
+  }
+
+  enum Transport {
+    BLOCKING,
+    NIO;
+
+    static Transport fromProperty() {
+      String mode = System.getProperty("jiffy.client.transport", "blocking");
+      try {
+        return valueOf(mode.trim().toUpperCase());
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Unknown jiffy.client.transport: " + mode);
+      }
+    }
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(BlockConnection.class);
+
+  final String host;
+  final int port;
+  final int timeoutMs;
+
+  private final Map<Long, ResponseHandler> handlers;
+
+  private final Object controlLock;
+  private int controlSeqId;
+  private int awaitedSeqId;
+  private TBase<?, ?> pendingReply;
+  private TException pendingError;
+  private boolean replyReady;
+
+  private final AtomicInteger refCount;
+  private volatile long idleSinceMs;
+  volatile boolean broken;
+
+  private final ClientMetrics metrics;
+  // 0 until opened, 1 while open, 2 once closed or failed
+  private final AtomicInteger state;
+
+  BlockConnection(String host, int port, int timeoutMs) {
+    this.host = host;
+    this.port = port;
+    this.timeoutMs = timeoutMs;
+    this.handlers = new ConcurrentHashMap<>();
+    this.controlLock = new Object();
+    this.controlSeqId = 0;
+    this.awaitedSeqId = 0;
+    this.refCount = new AtomicInteger(0);
+    this.idleSinceMs = System.currentTimeMillis();
+    this.broken = false;
+    this.metrics = ClientMetrics.get();
+    this.state = new AtomicInteger(0);
+  }
+
+  static BlockConnection open(Transport transport, String host, int port, int timeoutMs)
+      throws TTransportException {
+    BlockConnection connection;
+    switch (transport) {
+      case NIO:
+        connection = new SelectorBlockConnection(host, port, timeoutMs);
+        break;
+      case BLOCKING:
+      default:
+        connection = new SocketBlockConnection(host, port, timeoutMs);
+        break;
+    }
+    connection.opened();
+    return connection;
+  }
+
+  private void opened() {
+    if (state.compareAndSet(0, 1)) {
+      metrics.connectionOpened();
+    }
+  }
+
+  /**
+   * Count the connection as closed, once, whether it was closed or failed first. A connection
+   * that fails while {@link #open} is still running is never counted as open.
+   */
+  private void closed() {
+    if (state.getAndSet(2) == 1) {
+      metrics.connectionClosed();
+    }
+  }
+
+  /**
+   * Client used to serialize outgoing requests; callers synchronize on it.
+   */
+  abstract Client client();
+
+  abstract boolean transportHealthy();
+
+  abstract void closeTransport();
+
+  String getHost() {
+    return host;
+  }
+
+  int getPort() {
+    return port;
+  }
+
+  /**
+   * Consume one complete message from {@code protocol} and route it.
+   */
+  void processMessage(TProtocol protocol) throws TException {
+    TMessage message = protocol.readMessageBegin();
+    switch (message.type) {
+      case TMessageType.ONEWAY:
+      case TMessageType.CALL:
+        if ("response".equals(message.name)) {
+          dispatchResponse(protocol);
+        } else {
+          TProtocolUtil.skip(protocol, TType.STRUCT);
+          protocol.readMessageEnd();
+        }
+        break;
+      case TMessageType.REPLY:
+        completeReply(protocol, message.seqid, null);
+        break;
+      case TMessageType.EXCEPTION:
+        TApplicationException exception = new TApplicationException();
+        exception.read(protocol);
+        protocol.readMessageEnd();
+        completeReply(protocol, message.seqid, exception);
+        break;
+      default:
+        throw new TApplicationException(TApplicationException.INVALID_MESSAGE_TYPE,
+            "Unexpected message type " + message.type);
+    }
+  }
+
+  private void dispatchResponse(TProtocol protocol) throws TException {
+    response_args args = new response_args();
+    args.read(protocol);
+    protocol.readMessageEnd();
+    if (!args.isSetSeq() || !args.isSetResult()) {
+      LOG.warn("Dropping malformed response on {}:{}", host, port);
+      return;
+    }
+    metrics.bytesReceived(args.getResult());
+    ResponseHandler handler = handlers.get(args.getSeq().getClientId());
+    if (handler != null) {
+      handler.onResponse(args.getSeq(), args.getResult());
+    }
+  }
+
+  private void completeReply(TProtocol protocol, int seqId, TException error) throws TException {
+    synchronized (controlLock) {
+      boolean awaited = seqId == awaitedSeqId && pendingReply != null;
+      if (error == null) {
+        if (awaited) {
+          pendingReply.read(protocol);
+        } else {
+          TProtocolUtil.skip(protocol, TType.STRUCT);
+        }
+        protocol.readMessageEnd();
+      }
+      if (!awaited) {
+        LOG.debug("Dropping stale reply {} on {}:{}", seqId, host, port);
+        return;
+      }
+      pendingError = error;
+      replyReady = true;
+      controlLock.notifyAll();
+    }
+  }
+
+  /**
+   * Terminate the connection after an I/O error, failing the control call and every
+   * registered handler.
+   */
+  void fail(TException cause) {
+    TTransportException e = cause instanceof TTransportException
+        ? (TTransportException) cause : new TTransportException(cause);
+    if (!broken) {
+      LOG.info("Connection to {}:{} terminated, reason: {}", host, port, e.getMessage());
+    }
+    broken = true;
+    closeTransport();
+    closed();
+    synchronized (controlLock) {
+      if (pendingError == null) {
+        pendingError = e;
+      }
+      replyReady = true;
+      controlLock.notifyAll();
+    }
+    for (ResponseHandler handler : handlers.values()) {
+      handler.onFailure(e);
+    }
+    handlers.clear();
+  }
+
+  /**
+   * Send a control call tagged with a fresh sequence ID and wait for its reply; the caller must
+   * hold {@code controlLock}.
+   */
+  private <T extends TBase<?, ?>> T call(String name, TBase<?, ?> args, T result)
+      throws TException {
+    checkUsable();
+    controlSeqId = controlSeqId == Integer.MAX_VALUE ? 1 : controlSeqId + 1;
+    awaitedSeqId = controlSeqId;
+    pendingReply = result;
+    replyReady = false;
+    try {
+      Client client = client();
+      try {
+        synchronized (client) {
+          TProtocol out = client.getOutputProtocol();
+          out.writeMessageBegin(new TMessage(name, TMessageType.CALL, awaitedSeqId));
+          args.write(out);
+          out.writeMessageEnd();
+          out.getTransport().flush();
+        }
+      } catch (TTransportException e) {
+        fail(e);
+        throw e;
+      }
+      return awaitReply(result);
+    } finally {
+      awaitedSeqId = 0;
+      pendingReply = null;
+      replyReady = false;
+    }
+  }
+
+  private <T extends TBase<?, ?>> T awaitReply(T result) throws TException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (!replyReady) {
+      long waitMs = deadline - System.currentTimeMillis();
+      if (waitMs <= 0) {
+        throw new TTransportException(TTransportException.TIMED_OUT,
+            "Timed out waiting for reply from " + host + ":" + port);
+      }
+      try {
+        controlLock.wait(waitMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new TTransportException(e);
+      }
+    }
+    if (pendingError != null) {
+      TException e = pendingError;
+      pendingError = null;
+      throw e;
+    }
+    return result;
+  }
+
+  private void checkUsable() throws TTransportException {
+    if (broken) {
+      throw new TTransportException(TTransportException.NOT_OPEN,
+          "Connection to " + host + ":" + port + " is closed");
+    }
+  }
+
+  long getClientId() throws TException {
+    synchronized (controlLock) {
+      get_client_id_result result = call("get_client_id", new get_client_id_args(),
+          new get_client_id_result());
+      if (!result.isSetSuccess()) {
+        throw new TApplicationException(TApplicationException.MISSING_RESULT,
+            "getClientId failed: unknown result");
+      }
+      return result.success;
+    }
+  }
+
+  /**
+   * Register {@code clientId} with the server and route its responses to {@code handler}; the
+   * handler is only installed once the server has acknowledged the registration.
+   */
+  void registerClientId(int blockId, long clientId, ResponseHandler handler) throws TException {
+    synchronized (controlLock) {
+      call("register_client_id", new register_client_id_args(blockId, clientId),
+          new register_client_id_result());
+    }
+    handlers.put(clientId, handler);
+    if (broken) {
+      // Failed after the reply, possibly before the handler was visible to fail()
+      handlers.remove(clientId);
+      throw new TTransportException(TTransportException.NOT_OPEN,
+          "Connection to " + host + ":" + port + " is closed");
+    }
+  }
+
+  void unregisterClientId(long clientId) {
+    handlers.remove(clientId);
+  }
+
+  void sendCommandRequest(long clientId, long seqNo, int blockId, List<ByteBuffer> args)
+      throws TException {
+    checkUsable();
+    Client client = client();
+    try {
+      synchronized (client) {
+        CommandCodec.writeCommandRequest(client.getOutputProtocol(), clientId, seqNo, blockId,
+            args);
+      }
+    } catch (TTransportException e) {
+      // A partially written frame leaves the stream unusable for every client sharing it
+      fail(e);
+      throw e;
+    }
+    metrics.bytesSent(args);
+  }
+
+  boolean isHealthy() {
+    return !broken && transportHealthy();
+  }
+
+  void retain() {
+    refCount.incrementAndGet();
+  }
+
+  void release() {
+    if (refCount.decrementAndGet() == 0) {
+      idleSinceMs = System.currentTimeMillis();
+    }
+  }
+
+  int refCount() {
+    return refCount.get();
+  }
+
+  boolean idleLongerThan(long idleTimeoutMs) {
+    return refCount.get() == 0 && System.currentTimeMillis() - idleSinceMs > idleTimeoutMs;
+  }
+
+  void close() {
+    if (!broken) {
+      broken = true;
+      closeTransport();
+    }
+    closed();
+  }
+}
@@ -0,0 +1,119 @@
+package jiffy.storage;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A selector thread driving reads and writes for any number of {@link SelectorBlockConnection}s.
+ *
+ * The JVM keeps a small fixed pool of them ({@code jiffy.client.selector_threads}, 2 by default)
+ * and spreads new connections across it round-robin. All changes to a connection's selection
+ * key happen on the owning selector thread, via {@link #execute(Runnable)}.
+ */
+class BlockSelector implements Runnable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BlockSelector.class);
+
+  private static final int DEFAULT_SELECTOR_THREADS = 2;
+
+  private static BlockSelector[] pool;
+  private static final AtomicInteger next = new AtomicInteger(0);
+
+  private final Selector selector;
+  private final Queue<Runnable> tasks;
+  private final Thread thread;
+
+  private BlockSelector(int id) throws IOException {
+    this.selector = Selector.open();
+    this.tasks = new ConcurrentLinkedQueue<>();
+    this.thread = new Thread(this, "jiffy-block-selector-" + id);
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Pick the selector for a new connection.
+   */
+  static BlockSelector next() throws TTransportException {
+    BlockSelector[] selectors = pool();
+    return selectors[Math.floorMod(next.getAndIncrement(), selectors.length)];
+  }
+
+  private static synchronized BlockSelector[] pool() throws TTransportException {
+    if (pool == null) {
+      int n = Math.max(1, Integer.getInteger("jiffy.client.selector_threads",
+          DEFAULT_SELECTOR_THREADS));
+      BlockSelector[] selectors = new BlockSelector[n];
+      try {
+        for (int i = 0; i < n; i++) {
+          selectors[i] = new BlockSelector(i);
+        }
+      } catch (IOException e) {
+        throw new TTransportException(e);
+      }
+      pool = selectors;
+    }
+    return pool;
+  }
+
+  Selector selector() {
+    return selector;
+  }
+
+  /**
+   * Run {@code task} on the selector thread.
+   */
+  void execute(Runnable task) {
+    tasks.add(task);
+    if (Thread.currentThread() != thread) {
+      selector.wakeup();
+    }
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        selector.select();
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+          task.run();
+        }
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          process(key);
+        }
+      } catch (IOException | RuntimeException e) {
+        LOG.warn("Selector loop error", e);
+      }
+    }
+  }
+
+  private void process(SelectionKey key) {
+    SelectorBlockConnection connection = (SelectorBlockConnection) key.attachment();
+    try {
+      if (key.isReadable()) {
+        connection.onReadable();
+      }
+      if (key.isValid() && key.isWritable()) {
+        connection.onWritable(key);
+      }
+    } catch (CancelledKeyException e) {
+      // Connection closed concurrently
+    } catch (RuntimeException e) {
+      LOG.warn("Connection to {}:{} failed", connection.getHost(), connection.getPort(), e);
+      connection.fail(new TTransportException(e));
+    }
+  }
+}
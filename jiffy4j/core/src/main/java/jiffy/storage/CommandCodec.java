@@ -0,0 +1,115 @@
+package jiffy.storage;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TTransport;
+
+/**
+ * Encodes command requests directly into a connection's output protocol.
+ *
+ * This produces exactly the bytes of {@code block_request_service.Client.sendCommandRequest},
+ * but without materializing the {@code command_request_args} and {@code sequence_id} structs or
+ * a fresh message header for every request: arguments are written straight into the framed
+ * transport's buffer.
+ */
+class CommandCodec {
+
+  private static final TMessage COMMAND_REQUEST = new TMessage("command_request",
+      TMessageType.ONEWAY, 0);
+
+  private static final TStruct ARGS_STRUCT = new TStruct("command_request_args");
+  private static final TField SEQ_FIELD = new TField("seq", TType.STRUCT, (short) 1);
+  private static final TField BLOCK_ID_FIELD = new TField("block_id", TType.I32, (short) 2);
+  private static final TField ARGUMENTS_FIELD = new TField("arguments", TType.LIST, (short) 3);
+
+  private static final TStruct SEQ_STRUCT = new TStruct("sequence_id");
+  private static final TField CLIENT_ID_FIELD = new TField("client_id", TType.I64, (short) 1);
+  private static final TField CLIENT_SEQ_NO_FIELD = new TField("client_seq_no", TType.I64,
+      (short) 2);
+  private static final TField SERVER_SEQ_NO_FIELD = new TField("server_seq_no", TType.I64,
+      (short) 3);
+
+  private static final TList[] ARG_LISTS = new TList[8];
+
+  static {
+    for (int i = 0; i < ARG_LISTS.length; i++) {
+      ARG_LISTS[i] = new TList(TType.STRING, i);
+    }
+  }
+
+  private static final int SCRATCH_SIZE = 8192;
+
+  private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal
+      .withInitial(() -> new byte[SCRATCH_SIZE]);
+
+  /**
+   * Write the remaining bytes of {@code buf} as a binary field. Array-backed buffers are written
+   * in place; direct and read-only buffers, which TBinaryProtocol cannot handle, are streamed
+   * through a per-thread scratch array. The buffer's position is left untouched.
+   */
+  static void writeBinary(TProtocol out, ByteBuffer buf) throws TException {
+    if (buf.hasArray()) {
+      out.writeBinary(buf);
+      return;
+    }
+    out.writeI32(buf.remaining());
+    byte[] scratch = SCRATCH.get();
+    ByteBuffer src = buf.duplicate();
+    TTransport transport = out.getTransport();
+    while (src.hasRemaining()) {
+      int n = Math.min(src.remaining(), scratch.length);
+      src.get(scratch, 0, n);
+      transport.write(scratch, 0, n);
+    }
+  }
+
+  /**
+   * Write and flush one command request; the caller must hold the protocol's lock.
+   */
+  static void writeCommandRequest(TProtocol out, long clientId, long clientSeqNo, int blockId,
+      List<ByteBuffer> args) throws TException {
+    out.writeMessageBegin(COMMAND_REQUEST);
+    out.writeStructBegin(ARGS_STRUCT);
+
+    out.writeFieldBegin(SEQ_FIELD);
+    out.writeStructBegin(SEQ_STRUCT);
+    out.writeFieldBegin(CLIENT_ID_FIELD);
+    out.writeI64(clientId);
+    out.writeFieldEnd();
+    out.writeFieldBegin(CLIENT_SEQ_NO_FIELD);
+    out.writeI64(clientSeqNo);
+    out.writeFieldEnd();
+    out.writeFieldBegin(SERVER_SEQ_NO_FIELD);
+    out.writeI64(-1);
+    out.writeFieldEnd();
+    out.writeFieldStop();
+    out.writeStructEnd();
+    out.writeFieldEnd();
+
+    out.writeFieldBegin(BLOCK_ID_FIELD);
+    out.writeI32(blockId);
+    out.writeFieldEnd();
+
+    out.writeFieldBegin(ARGUMENTS_FIELD);
+    int n = args.size();
+    out.writeListBegin(n < ARG_LISTS.length ? ARG_LISTS[n] : new TList(TType.STRING, n));
+    for (int i = 0; i < n; i++) {
+      writeBinary(out, args.get(i));
+    }
+    out.writeListEnd();
+    out.writeFieldEnd();
+
+    out.writeFieldStop();
+    out.writeStructEnd();
+    out.writeMessageEnd();
+    out.getTransport().flush();
+  }
+}
@@ -4,6 +4,7 @@ import java.nio.ByteBuffer;
 import java.util.List;
 import jiffy.directory.directory_service.Client;
 import jiffy.directory.rpc_data_status;
+import jiffy.metrics.ClientMetrics;
 import org.apache.thrift.TException;
 
 public abstract class DataStructureClient {
@@ -11,12 +12,16 @@ public abstract class DataStructureClient {
   protected String path;
   rpc_data_status dataStatus;
   BlockClientCache cache;
+  int timeoutMs;
+  final ClientMetrics metrics;
 
   DataStructureClient(Client fs, String path, rpc_data_status dataStatus, int timeoutMs) {
     this.fs = fs;
     this.path = path;
     this.dataStatus = dataStatus;
-    this.cache = new BlockClientCache(timeoutMs);
+    this.cache = BlockClientCache.getInstance();
+    this.timeoutMs = timeoutMs;
+    this.metrics = ClientMetrics.get();
   }
 
   abstract void refresh() throws TException;
@@ -0,0 +1,302 @@
+package jiffy.storage;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import jiffy.directory.directory_service.Client;
+import jiffy.directory.rpc_data_status;
+import jiffy.directory.rpc_replica_chain;
+import jiffy.directory.rpc_storage_mode;
+import jiffy.util.ByteBufferUtils;
+import org.apache.thrift.TException;
+
+/**
+ * Client for a FIFO queue.
+ *
+ * A queue is a sequence of partitions named {@code 0, 1, ...}. Items are enqueued at the last
+ * partition and dequeued from the first; once a partition fills up, the server answers with
+ * {@code !redirected_<op>} and the chain of the next partition, and the client hands off to it.
+ * Drained partitions may be removed by the server, which shows up as {@code !block_moved}.
+ *
+ * Responses follow the server's multi-part format: a status ({@code !ok} or an error), then
+ * the value if any. Like {@link FileClient}, the client tracks its position in the queue and is
+ * not safe for use by multiple threads; give each producer and consumer its own client.
+ */
+public class FifoQueueClient extends DataStructureClient implements Closeable {
+
+  private static final String AUTO_SCALE_TAG = "fifoqueue.auto_scale";
+
+  private List<ReplicaChainClient> blocks;
+  private boolean autoScale;
+  // Indices into blocks
+  private int enqueuePartition;
+  private int dequeuePartition;
+  // Partition names, which survive the removal of drained partitions
+  private long start;
+  private long readPartition;
+
+  public FifoQueueClient(Client fs, String path, rpc_data_status dataStatus, int timeoutMs)
+      throws TException {
+    super(fs, path, dataStatus, timeoutMs);
+    this.blocks = new ArrayList<>(dataStatus.data_blocks.size());
+    String tag = dataStatus.tags == null ? null : dataStatus.tags.get(AUTO_SCALE_TAG);
+    this.autoScale = tag == null || Boolean.parseBoolean(tag);
+    this.readPartition = 0;
+    init();
+  }
+
+  private void init() throws TException {
+    for (ReplicaChainClient block : blocks) {
+      block.close();
+    }
+    blocks.clear();
+    for (rpc_replica_chain chain : dataStatus.data_blocks) {
+      blocks.add(new ReplicaChainClient(fs, path, cache, timeoutMs, chain,
+          FifoQueueCommands.CMD_TYPES));
+    }
+    start = Long.parseLong(dataStatus.data_blocks.get(0).name);
+    enqueuePartition = blocks.size() - 1;
+    dequeuePartition = 0;
+    if (readPartition < start) {
+      readPartition = start;
+    }
+  }
+
+  @Override
+  public void close() {
+    for (ReplicaChainClient block : blocks) {
+      block.close();
+    }
+  }
+
+  @Override
+  void refresh() throws TException {
+    synchronized (fs) {
+      dataStatus = fs.dstatus(path);
+    }
+    init();
+  }
+
+  /**
+   * Append {@code item} to the queue; returns {@code !ok}.
+   */
+  public ByteBuffer enqueue(ByteBuffer item) throws TException {
+    return runRepeated(Arrays.asList(FifoQueueCommands.ENQUEUE, item)).get(0);
+  }
+
+  /**
+   * Append {@code items} in order, keeping up to a pipeline window's worth of them in flight.
+   *
+   * A partition accepts nothing once an item failed to fit, so the items that follow a refused
+   * one are refused too and order is preserved: the refused item is handed off to the next
+   * partition on its own and the rest of the batch is pipelined there.
+   */
+  public void enqueue(List<ByteBuffer> items) throws TException {
+    int i = 0;
+    while (i < items.size()) {
+      List<List<ByteBuffer>> commands = new ArrayList<>(items.size() - i);
+      for (ByteBuffer item : items.subList(i, items.size())) {
+        commands.add(Arrays.asList(FifoQueueCommands.ENQUEUE, item));
+      }
+      List<List<ByteBuffer>> responses = blocks.get(enqueuePartition).runCommands(commands);
+      for (List<ByteBuffer> response : responses) {
+        if (!Responses.is(response.get(0), Responses.OK)) {
+          break;
+        }
+        i++;
+      }
+      if (i < items.size()) {
+        enqueue(items.get(i++));
+      }
+    }
+  }
+
+  /**
+   * Remove and return the item at the front of the queue, or {@code !msg_not_found} if the
+   * queue is empty.
+   */
+  public ByteBuffer dequeue() throws TException {
+    return value(runRepeated(Collections.singletonList(FifoQueueCommands.DEQUEUE)));
+  }
+
+  /**
+   * Remove and return up to {@code maxItems} items from the front of the queue, in order; fewer
+   * are returned only if the queue runs empty.
+   */
+  public List<ByteBuffer> dequeue(int maxItems) throws TException {
+    List<ByteBuffer> items = new ArrayList<>(maxItems);
+    while (items.size() < maxItems) {
+      List<List<ByteBuffer>> commands = Collections
+          .nCopies(maxItems - items.size(), Collections.singletonList(FifoQueueCommands.DEQUEUE));
+      boolean handOff = false;
+      for (List<ByteBuffer> response : blocks.get(dequeuePartition).runCommands(commands)) {
+        ByteBuffer status = response.get(0);
+        if (Responses.is(status, Responses.OK)) {
+          items.add(response.get(1));
+        } else if (!Responses.is(status, Responses.MSG_NOT_FOUND)) {
+          // The partition is drained; nothing after this was dequeued
+          handOff = true;
+          break;
+        }
+      }
+      if (!handOff) {
+        break;
+      }
+      ByteBuffer item = dequeue();
+      if (Responses.is(item, Responses.MSG_NOT_FOUND)) {
+        break;
+      }
+      items.add(item);
+    }
+    return items;
+  }
+
+  /**
+   * Return the item at the front of the queue without removing it, or {@code !msg_not_found}.
+   */
+  public ByteBuffer front() throws TException {
+    return value(runRepeated(Collections.singletonList(FifoQueueCommands.FRONT)));
+  }
+
+  /**
+   * Return the next item this client has not read yet, without removing it from the queue, or
+   * {@code !msg_not_found} if it has read everything enqueued so far. Reading starts at the
+   * front of the queue and never falls behind it.
+   */
+  public ByteBuffer readNext() throws TException {
+    return value(runRepeated(Collections.singletonList(FifoQueueCommands.READ_NEXT)));
+  }
+
+  /**
+   * Number of bytes enqueued but not yet dequeued.
+   */
+  public long length() throws TException {
+    long tail = ByteBufferUtils.toLong(runRepeated(
+        Arrays.asList(FifoQueueCommands.LENGTH, FifoQueueCommands.TAIL_SIZE)).get(1));
+    long head = ByteBufferUtils.toLong(runRepeated(
+        Arrays.asList(FifoQueueCommands.LENGTH, FifoQueueCommands.HEAD_SIZE)).get(1));
+    return head - tail;
+  }
+
+  /**
+   * Bytes enqueued per millisecond over the server's last sampling period.
+   */
+  public double inRate() throws TException {
+    return Double.parseDouble(ByteBufferUtils.toString(
+        runRepeated(Collections.singletonList(FifoQueueCommands.IN_RATE)).get(1)));
+  }
+
+  /**
+   * Bytes dequeued per millisecond over the server's last sampling period.
+   */
+  public double outRate() throws TException {
+    return Double.parseDouble(ByteBufferUtils.toString(
+        runRepeated(Collections.singletonList(FifoQueueCommands.OUT_RATE)).get(1)));
+  }
+
+  private static ByteBuffer value(List<ByteBuffer> response) {
+    return Responses.is(response.get(0), Responses.OK) ? response.get(1) : response.get(0);
+  }
+
+  private List<ByteBuffer> runRepeated(List<ByteBuffer> args) throws TException {
+    List<ByteBuffer> response = null;
+    while (response == null) {
+      response = blocks.get(blockId(args)).runCommand(args);
+      response = handleRedirect(args, response);
+    }
+    return response;
+  }
+
+  @Override
+  ByteBuffer handleRedirect(List<ByteBuffer> args, ByteBuffer response) throws TException {
+    List<ByteBuffer> result = handleRedirect(args, Collections.singletonList(response));
+    return result == null ? null : result.get(0);
+  }
+
+  /**
+   * Follow partition hand-offs for {@code response}; returns null if the command must be
+   * retried.
+   */
+  private List<ByteBuffer> handleRedirect(List<ByteBuffer> args, List<ByteBuffer> response)
+      throws TException {
+    ByteBuffer status = response.get(0);
+    if (Responses.is(status, Responses.REDO)) {
+      return null;
+    }
+    if (Responses.startsWith(status, Responses.REDIRECTED)) {
+      ByteBuffer redirectedType = status;
+      do {
+        metrics.redirect();
+        addBlock(args, response);
+        advance(args);
+        do {
+          List<ByteBuffer> redirectedArgs = new ArrayList<>(args);
+          // Carry the rate accounting of the previous partition over to the next
+          if (args.get(0) == FifoQueueCommands.ENQUEUE) {
+            redirectedArgs.addAll(response.subList(response.size() - 3, response.size()));
+          } else if (args.get(0) == FifoQueueCommands.DEQUEUE) {
+            redirectedArgs.addAll(response.subList(response.size() - 2, response.size()));
+          }
+          response = blocks.get(blockId(args)).runCommandRedirected(redirectedArgs);
+        } while (Responses.is(response.get(0), Responses.REDO));
+      } while (Responses.is(response.get(0), redirectedType));
+    }
+    if (Responses.is(response.get(0), Responses.BLOCK_MOVED)) {
+      metrics.blockMoved();
+      refresh();
+      return null;
+    }
+    return response;
+  }
+
+  private int blockId(List<ByteBuffer> args) {
+    ByteBuffer cmd = args.get(0);
+    if (cmd == FifoQueueCommands.ENQUEUE || cmd == FifoQueueCommands.IN_RATE
+        || (cmd == FifoQueueCommands.LENGTH && args.get(1) == FifoQueueCommands.HEAD_SIZE)) {
+      return enqueuePartition;
+    }
+    if (cmd == FifoQueueCommands.READ_NEXT) {
+      return (int) (readPartition - start);
+    }
+    return dequeuePartition;
+  }
+
+  /**
+   * Move the partition {@code args} is sent to on to the next one.
+   */
+  private void advance(List<ByteBuffer> args) {
+    ByteBuffer cmd = args.get(0);
+    if (cmd == FifoQueueCommands.ENQUEUE || cmd == FifoQueueCommands.IN_RATE
+        || (cmd == FifoQueueCommands.LENGTH && args.get(1) == FifoQueueCommands.HEAD_SIZE)) {
+      enqueuePartition++;
+    } else if (cmd == FifoQueueCommands.READ_NEXT) {
+      readPartition++;
+      enqueuePartition = (int) Math.max(enqueuePartition, readPartition - start);
+    } else {
+      dequeuePartition++;
+      enqueuePartition = Math.max(enqueuePartition, dequeuePartition);
+      // Items before the front of the queue can no longer be read
+      readPartition = Math.max(readPartition, dequeuePartition + start);
+    }
+  }
+
+  /**
+   * Connect to the partition named in a redirect, unless the client already knows it.
+   */
+  private void addBlock(List<ByteBuffer> args, List<ByteBuffer> response) throws TException {
+    if (blockId(args) < blocks.size() - 1) {
+      return;
+    }
+    if (!autoScale) {
+      throw new IllegalStateException("Queue " + path + " has no partition after "
+          + (start + blockId(args)) + " and does not scale");
+    }
+    List<String> chain = Arrays.asList(ByteBufferUtils.toString(response.get(1)).split("!"));
+    blocks.add(new ReplicaChainClient(fs, path, cache, timeoutMs,
+        new rpc_replica_chain(chain, String.valueOf(start + blocks.size()), "",
+            rpc_storage_mode.rpc_in_memory), FifoQueueCommands.CMD_TYPES));
+  }
+}
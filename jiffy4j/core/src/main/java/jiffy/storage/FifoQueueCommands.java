@@ -0,0 +1,31 @@
+package jiffy.storage;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import jiffy.util.ByteBufferUtils;
+
+class FifoQueueCommands {
+  static final ByteBuffer ENQUEUE = ByteBufferUtils.fromString("enqueue");
+  static final ByteBuffer DEQUEUE = ByteBufferUtils.fromString("dequeue");
+  static final ByteBuffer READ_NEXT = ByteBufferUtils.fromString("read_next");
+  static final ByteBuffer LENGTH = ByteBufferUtils.fromString("length");
+  static final ByteBuffer IN_RATE = ByteBufferUtils.fromString("in_rate");
+  static final ByteBuffer OUT_RATE = ByteBufferUtils.fromString("out_rate");
+  static final ByteBuffer FRONT = ByteBufferUtils.fromString("front");
+
+  // Arguments to length: bytes ever enqueued, and bytes ever dequeued
+  static final ByteBuffer HEAD_SIZE = ByteBufferUtils.fromString("0");
+  static final ByteBuffer TAIL_SIZE = ByteBufferUtils.fromString("1");
+
+  static final HashMap<ByteBuffer, CommandType> CMD_TYPES;
+  static {
+    CMD_TYPES = new HashMap<>();
+    CMD_TYPES.put(ENQUEUE, CommandType.mutator);
+    CMD_TYPES.put(DEQUEUE, CommandType.mutator);
+    CMD_TYPES.put(READ_NEXT, CommandType.accessor);
+    CMD_TYPES.put(LENGTH, CommandType.accessor);
+    CMD_TYPES.put(IN_RATE, CommandType.accessor);
+    CMD_TYPES.put(OUT_RATE, CommandType.accessor);
+    CMD_TYPES.put(FRONT, CommandType.accessor);
+  }
+}
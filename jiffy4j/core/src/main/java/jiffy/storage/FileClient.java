@@ -1,8 +1,8 @@
 package jiffy.storage;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import jiffy.directory.directory_service.Client;
@@ -14,10 +14,15 @@ import org.apache.thrift.TException;
 
 public abstract class FileClient extends DataStructureClient {
 
+  private static final byte SEPARATOR = '!';
+
   int partition;
   long offset;
 
-  private int lastPartition;
+  // Capacity of each partition, or -1 until first needed
+  private long capacity;
+  // Size the file is known to have reached; files only grow, so this is never stale
+  private long knownSize;
 
   List<ReplicaChainClient> blocks;
 
@@ -28,14 +33,19 @@ public abstract class FileClient extends DataStructureClient {
     blocks = new ArrayList<>(dataStatus.data_blocks.size());
     offset = 0;
     partition = 0;
-    lastPartition = 0;
+    capacity = -1;
+    knownSize = 0;
     init();
   }
 
   private void init() throws TException {
+    for (ReplicaChainClient block : blocks) {
+      block.close();
+    }
     blocks.clear();
     for (rpc_replica_chain chain : dataStatus.data_blocks) {
-      blocks.add(new ReplicaChainClient(fs, path, cache, chain, FileCommands.CMD_TYPES));
+      blocks.add(new ReplicaChainClient(fs, path, cache, timeoutMs, chain,
+          FileCommands.CMD_TYPES));
     }
   }
 
@@ -45,30 +55,140 @@ public abstract class FileClient extends DataStructureClient {
     init();
   }
 
-  void addNewBlock(String[] parts) throws TException {
-    List<String> chainList = Arrays.asList(Arrays.copyOfRange(parts, 2, parts.length - 1));
+  /**
+   * Parse the chain of the next partition out of a split response, {@code rest} being what
+   * follows the status and its separator; leaves {@code rest} at what follows the chain. Block
+   * names never contain the separator, so this holds however the rest is encoded.
+   */
+  List<String> nextChain(ByteBuffer rest) {
+    List<String> chain = new ArrayList<>(dataStatus.chain_length);
+    for (int i = 0; i < dataStatus.chain_length; i++) {
+      int end = rest.position();
+      while (rest.get(end) != SEPARATOR) {
+        end++;
+      }
+      byte[] name = new byte[end - rest.position()];
+      rest.get(name);
+      rest.get();
+      chain.add(new String(name, StandardCharsets.UTF_8));
+    }
+    return chain;
+  }
+
+  /**
+   * What follows the status of a split response and its separator.
+   */
+  static ByteBuffer afterStatus(ByteBuffer response, ByteBuffer status) {
+    ByteBuffer rest = response.duplicate();
+    rest.position(rest.position() + status.remaining() + 1);
+    return rest;
+  }
+
+  void addNewBlock(List<String> chainList) throws TException {
     rpc_replica_chain chain = new rpc_replica_chain(chainList, "", "",
         rpc_storage_mode.rpc_in_memory);
-    blocks.add(new ReplicaChainClient(fs, path, cache, chain, FileCommands.CMD_TYPES));
+    blocks.add(new ReplicaChainClient(fs, path, cache, timeoutMs, chain,
+        FileCommands.CMD_TYPES));
+  }
+
+  /**
+   * Connect to partitions added since this client last looked; returns false if there are none.
+   */
+  boolean addNewBlocks() throws TException {
+    rpc_data_status status;
+    synchronized (fs) {
+      status = fs.dstatus(path);
+    }
+    if (status.data_blocks.size() <= blocks.size()) {
+      return false;
+    }
+    dataStatus = status;
+    for (rpc_replica_chain chain : status.data_blocks.subList(blocks.size(),
+        status.data_blocks.size())) {
+      blocks.add(new ReplicaChainClient(fs, path, cache, timeoutMs, chain,
+          FileCommands.CMD_TYPES));
+    }
+    return true;
   }
 
-  public boolean seek(long offset) throws TException {
-    List<ByteBuffer> ret = blocks.get(lastPartition)
-        .runCommand(Collections.singletonList(FileCommands.SEEK));
-    long size = Long.parseLong(ByteBufferUtils.toString(ret.get(0)));
-    long cap = Long.parseLong(ByteBufferUtils.toString(ret.get(1)));
-    if (offset <= lastPartition * cap + size) {
-      this.partition = (int) (offset / cap);
-      this.offset = offset % cap;
-      return true;
+  /**
+   * Capacity of each partition; all partitions of a file have the same.
+   */
+  long partitionCapacity() throws TException {
+    if (capacity < 0) {
+      List<ByteBuffer> ret = blocks.get(0)
+          .runCommand(Collections.singletonList(FileCommands.SEEK));
+      capacity = ByteBufferUtils.toLong(ret.get(1));
     }
-    return false;
+    return capacity;
   }
 
-  void updateLastPartition(int partition) {
-    if (lastPartition < partition) {
-      lastPartition = partition;
+  /**
+   * The current position in the file.
+   */
+  public long position() throws TException {
+    return partition == 0 ? offset : partition * partitionCapacity() + offset;
+  }
+
+  /**
+   * Move to {@code position}; returns false, without moving, if the file is not that large.
+   * Positions up to the size last seen are worked out locally, so only seeking past it costs a
+   * round trip to learn the current size.
+   */
+  public boolean seek(long position) throws TException {
+    if (position < 0) {
+      throw new IllegalArgumentException("Negative position " + position);
+    }
+    knownSize = Math.max(knownSize, position());
+    if (position > knownSize) {
+      refreshSize();
+      if (position > knownSize) {
+        return false;
+      }
+    }
+    long cap = partitionCapacity();
+    int p = (int) (position / cap);
+    long o = position % cap;
+    if (p >= blocks.size() && o == 0 && p > 0) {
+      // The end of a full last partition
+      p--;
+      o = cap;
+    }
+    this.partition = p;
+    this.offset = o;
+    return true;
+  }
+
+  /**
+   * Move {@code n} bytes forward, or backward if negative; returns false, without moving, if
+   * that is past the end or before the start of the file.
+   */
+  public boolean skip(long n) throws TException {
+    long position = position() + n;
+    return position >= 0 && seek(position);
+  }
+
+  /**
+   * Learn the size of the file from its last partition, connecting to partitions added since
+   * this client last looked.
+   */
+  private void refreshSize() throws TException {
+    while (true) {
+      int last = blocks.size() - 1;
+      List<ByteBuffer> ret = blocks.get(last)
+          .runCommand(Collections.singletonList(FileCommands.SEEK));
+      long size = ByteBufferUtils.toLong(ret.get(0));
+      capacity = ByteBufferUtils.toLong(ret.get(1));
+      knownSize = Math.max(knownSize, last * capacity + size);
+      if (size < capacity || !addNewBlocks()) {
+        return;
+      }
     }
   }
 
+  void nextPartition() {
+    partition++;
+    offset = 0;
+  }
+
 }
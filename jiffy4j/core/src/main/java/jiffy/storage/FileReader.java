@@ -1,77 +1,484 @@
 package jiffy.storage;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import jiffy.directory.directory_service.Client;
 import jiffy.directory.rpc_data_status;
 import jiffy.util.ByteBufferUtils;
 import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
 
+/**
+ * Reads a file sequentially from the current position, or at given positions with
+ * {@link #pread(long, ByteBuffer)}.
+ *
+ * Data is handled as raw bytes throughout: a read that runs past the end of a partition comes
+ * back as {@code !split_read}, the next partition's chain and the head of the data, and the rest
+ * is read from the next partition into the same buffer. The reader is not safe for use by
+ * multiple threads.
+ *
+ * Once reads have gone on sequentially for a while, the reader reads ahead of the caller: it
+ * keeps reads of the data that follows in flight, within a budget of
+ * {@code jiffy.client.read_ahead_bytes} (1 MB by default, 0 to disable), and serves the caller
+ * from them. The number of reads in flight starts at one and doubles as the caller keeps up
+ * with them. Reads ahead cross into partitions added since the reader last looked, asking the
+ * directory for them once the last known partition has been read ahead to its end, and stop at
+ * the first short read, so they never run past data written after they were sent; seeking
+ * anywhere but forward into data already read ahead discards them.
+ */
 public class FileReader extends FileClient {
 
+  private static final int DEFAULT_READ_AHEAD_BYTES = Integer
+      .getInteger("jiffy.client.read_ahead_bytes", 1 << 20);
+  // Sequential reads after which the reader starts reading ahead
+  private static final int SEQUENTIAL_READS = 2;
+  private static final int MIN_READ_AHEAD_CHUNK = 64 * 1024;
+
+  /**
+   * A read ahead of the caller, of {@code size} bytes at {@code offset} in {@code partition}.
+   */
+  private static class Prefetch {
+
+    private final int partition;
+    private final long offset;
+    private final int size;
+    private final CompletableFuture<List<ByteBuffer>> response;
+
+    Prefetch(int partition, long offset, int size,
+        CompletableFuture<List<ByteBuffer>> response) {
+      this.partition = partition;
+      this.offset = offset;
+      this.size = size;
+      this.response = response;
+    }
+  }
+
+  private int readAheadBytes;
+  private int sequentialReads;
+  private int window;
+  private final ArrayDeque<Prefetch> prefetches;
+  // Data read ahead at the current position, not yet returned to the caller
+  private ByteBuffer readAhead;
+  // Where the next read ahead starts, following the last one sent
+  private int prefetchPartition;
+  private long prefetchOffset;
+  // Partitions known when reading ahead last asked for new ones and found none
+  private int partitionsSeen;
+
   public FileReader(Client fs, String path,
       rpc_data_status dataStatus, int timeoutMs) throws TException {
     super(fs, path, dataStatus, timeoutMs);
+    this.readAheadBytes = DEFAULT_READ_AHEAD_BYTES;
+    this.prefetches = new ArrayDeque<>();
+    this.window = 1;
+  }
+
+  /**
+   * Read at most {@code bytes} ahead of the caller; 0 disables reading ahead.
+   */
+  public void setReadAhead(int bytes) {
+    if (bytes < 0) {
+      throw new IllegalArgumentException("Read-ahead budget must be >= 0");
+    }
+    this.readAheadBytes = bytes;
+    if (bytes == 0) {
+      discardReadAhead();
+    }
+  }
+
+  /**
+   * Move to {@code position}; moving forward within data already read ahead keeps the reads
+   * ahead going.
+   */
+  @Override
+  public boolean seek(long position) throws TException {
+    if (readAhead != null && readAhead.hasRemaining()) {
+      long forward = position - position();
+      if (forward >= 0 && forward <= readAhead.remaining()) {
+        takeReadAhead((int) forward);
+        return true;
+      }
+    }
+    discardReadAhead();
+    return super.seek(position);
   }
 
   @Override
   ByteBuffer handleRedirect(List<ByteBuffer> args, ByteBuffer response)
       throws TException {
-    boolean readFlag = true;
-    String responseStr = ByteBufferUtils.toString(response);
-    if (responseStr.equals("!redo")) {
+    if (Responses.is(response, Responses.REDO)) {
       return null;
     }
-
-    if (responseStr.startsWith("!split_read")) {
-      StringBuilder resultStr = new StringBuilder();
-      while (responseStr.startsWith("!split_read")) {
-        String[] parts = responseStr.split("!");
-        String firstSplit = parts[parts.length - 1];
-        int remainingDataLength = ByteBufferUtils.toInt(args.get(1)) - firstSplit.length();
-        resultStr.append(firstSplit);
-
-        if (partition >= blocks.size() - 1)
-          addNewBlock(parts);
-
-        partition++;
-        updateLastPartition(partition);
-        offset = 0;
-
-        List<ByteBuffer> newArgs = Arrays
-            .asList(FileCommands.READ, ByteBufferUtils.fromLong(offset),
-                ByteBufferUtils.fromInteger(remainingDataLength));
-        response = blocks.get(partition).runCommand(newArgs).get(0);
-        responseStr = ByteBufferUtils.toString(response);
-        if (!responseStr.equals("!msg_not_found")) {
-          if (responseStr.startsWith("!split_read")) {
-            continue;
-          }
-          offset += responseStr.length();
-          resultStr.append(responseStr);
-        }
-        readFlag = false;
-      }
-      responseStr = resultStr.toString();
-      response = ByteBufferUtils.fromString(responseStr);
+    if (Responses.startsWith(response, Responses.SPLIT_READ)) {
+      ByteBuffer dst = ByteBuffer.allocate(ByteBufferUtils.toInt(args.get(2)));
+      readSplit(response, dst);
+      dst.flip();
+      return dst;
     }
-
-    if (!responseStr.equals("!msg_not_found") && readFlag) {
-      offset += responseStr.length();
+    if (!Responses.is(response, Responses.MSG_NOT_FOUND)) {
+      offset += response.remaining();
     }
     return response;
   }
 
+  /**
+   * Read up to {@code size} bytes; returns {@code !msg_not_found} at the end of the file. Data
+   * that lies within one partition or one read ahead is returned as received, without copying.
+   */
   public ByteBuffer read(int size) throws TException {
-    List<ByteBuffer> args = ByteBufferUtils
-        .fromByteBuffers(FileCommands.READ, ByteBufferUtils.fromLong(offset),
-            ByteBufferUtils.fromInteger(size));
+    if (size > 0 && loadReadAhead() && readAhead.remaining() < size) {
+      ByteBuffer dst = ByteBuffer.allocate(size);
+      if (read(dst) < 0) {
+        return Responses.of(Responses.MSG_NOT_FOUND);
+      }
+      dst.flip();
+      return dst;
+    }
     ByteBuffer response = null;
+    if (readAhead != null && readAhead.hasRemaining()) {
+      response = takeReadAhead(size);
+    }
     while (response == null) {
-      response = blocks.get(partition).runCommand(args).get(0);
-      response = handleRedirect(args, response);
+      List<ByteBuffer> args = readArgs(size);
+      response = handleRedirect(args, fetch(args));
+    }
+    if (!Responses.is(response, Responses.MSG_NOT_FOUND)) {
+      readAhead(size);
     }
     return response;
   }
+
+  /**
+   * Read up to {@code dst.remaining()} bytes into {@code dst}; returns the number of bytes read,
+   * or -1 at the end of the file. Fewer bytes than requested are read only at the end of the
+   * data written so far.
+   */
+  public int read(ByteBuffer dst) throws TException {
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+    int size = dst.remaining();
+    int start = dst.position();
+    while (dst.hasRemaining() && loadReadAhead()) {
+      dst.put(takeReadAhead(dst.remaining()));
+    }
+    if (dst.hasRemaining()) {
+      ByteBuffer response = null;
+      while (response == null) {
+        response = fetch(readArgs(dst.remaining()));
+        if (Responses.is(response, Responses.REDO)) {
+          response = null;
+        }
+      }
+      if (Responses.is(response, Responses.MSG_NOT_FOUND)) {
+        if (dst.position() == start) {
+          return -1;
+        }
+      } else if (Responses.startsWith(response, Responses.SPLIT_READ)) {
+        readSplit(response, dst);
+      } else {
+        offset += response.remaining();
+        dst.put(response);
+      }
+    }
+    readAhead(size);
+    return dst.position() - start;
+  }
+
+  /**
+   * Fill {@code dst}, failing with {@link TTransportException#END_OF_FILE} if the file ends
+   * first.
+   */
+  public void readFully(ByteBuffer dst) throws TException {
+    while (dst.hasRemaining()) {
+      if (read(dst) < 0) {
+        throw new TTransportException(TTransportException.END_OF_FILE,
+            "Reached the end of " + path + " with " + dst.remaining() + " bytes left to read");
+      }
+    }
+  }
+
+  /**
+   * Read up to {@code dst.remaining()} bytes at {@code position} into {@code dst}, without
+   * moving the reader; returns the number of bytes read, or -1 if there is no data at
+   * {@code position}. The parts of the range that lie in different partitions are read from
+   * them in parallel.
+   */
+  public int pread(long position, ByteBuffer dst) throws TException {
+    return AsyncSupport.await(preadAsync(position, dst));
+  }
+
+  /**
+   * {@link #pread(long, ByteBuffer)} for many ranges at once, all read in parallel; returns the
+   * number of bytes read into each buffer.
+   */
+  public List<Integer> multiPread(List<Long> positions, List<ByteBuffer> dsts)
+      throws TException {
+    if (positions.size() != dsts.size()) {
+      throw new IllegalArgumentException("Need a buffer for every position");
+    }
+    List<CompletableFuture<Integer>> reads = new ArrayList<>(positions.size());
+    for (int i = 0; i < positions.size(); i++) {
+      reads.add(preadAsync(positions.get(i), dsts.get(i)));
+    }
+    List<Integer> counts = new ArrayList<>(reads.size());
+    for (CompletableFuture<Integer> read : reads) {
+      counts.add(AsyncSupport.await(read));
+    }
+    return counts;
+  }
+
+  private CompletableFuture<Integer> preadAsync(long position, ByteBuffer dst)
+      throws TException {
+    if (position < 0) {
+      throw new IllegalArgumentException("Negative position " + position);
+    }
+    int length = dst.remaining();
+    if (length == 0) {
+      return CompletableFuture.completedFuture(0);
+    }
+    long capacity = partitionCapacity();
+    int first = (int) (position / capacity);
+    int last = (int) ((position + length - 1) / capacity);
+    if (last >= blocks.size()) {
+      addNewBlocks();
+      last = Math.min(last, blocks.size() - 1);
+    }
+    if (first > last) {
+      return CompletableFuture.completedFuture(-1);
+    }
+    int start = dst.position();
+    List<CompletableFuture<Integer>> parts = new ArrayList<>(last - first + 1);
+    List<Integer> sizes = new ArrayList<>(last - first + 1);
+    for (int p = first; p <= last; p++) {
+      long from = Math.max(position, p * capacity);
+      long to = Math.min(position + length, (p + 1) * capacity);
+      ByteBuffer target = dst.duplicate();
+      target.limit(start + (int) (to - position));
+      target.position(start + (int) (from - position));
+      parts.add(readPart(blocks.get(p), readArgs(from - p * capacity, (int) (to - from)),
+          target));
+      sizes.add((int) (to - from));
+    }
+    return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+      // Data ends at the first part that came back short
+      int n = 0;
+      for (int i = 0; i < parts.size(); i++) {
+        int read = parts.get(i).join();
+        n += read;
+        if (read < sizes.get(i)) {
+          break;
+        }
+      }
+      dst.position(start + n);
+      return n == 0 ? -1 : n;
+    });
+  }
+
+  /**
+   * Read the part of a positional read that lies in {@code block} into {@code target}; completes
+   * with the number of bytes read.
+   */
+  private CompletableFuture<Integer> readPart(ReplicaChainClient block, List<ByteBuffer> args,
+      ByteBuffer target) {
+    return block.runCommandAsync(args).thenCompose(response -> {
+      ByteBuffer data = response.get(0);
+      if (Responses.is(data, Responses.REDO)) {
+        return readPart(block, args, target);
+      }
+      if (Responses.is(data, Responses.MSG_NOT_FOUND)) {
+        return CompletableFuture.completedFuture(0);
+      }
+      if (Responses.startsWith(data, Responses.SPLIT_READ)) {
+        ByteBuffer rest = afterStatus(data, Responses.SPLIT_READ);
+        nextChain(rest);
+        data = rest;
+      }
+      ByteBuffer src = data.duplicate();
+      src.limit(src.position() + Math.min(src.remaining(), target.remaining()));
+      int n = src.remaining();
+      target.put(src);
+      return CompletableFuture.completedFuture(n);
+    });
+  }
+
+  /**
+   * Make sure data read ahead at the current position is at hand, waiting for the next read
+   * ahead if need be. Returns false if there is none, or if the next read ahead failed or fell
+   * short of the data that follows it; the rest are then discarded and the data read directly.
+   */
+  private boolean loadReadAhead() {
+    while (readAhead == null || !readAhead.hasRemaining()) {
+      readAhead = null;
+      Prefetch next = prefetches.poll();
+      if (next == null) {
+        return false;
+      }
+      ByteBuffer response;
+      try {
+        response = AsyncSupport.await(next.response).get(0);
+      } catch (TException | RuntimeException e) {
+        discardReadAhead();
+        return false;
+      }
+      if (Responses.is(response, Responses.REDO)
+          || Responses.is(response, Responses.MSG_NOT_FOUND)
+          || Responses.startsWith(response, Responses.SPLIT_READ)) {
+        discardReadAhead();
+        return false;
+      }
+      if (response.remaining() < next.size) {
+        // Later reads ahead may have seen data written since, after a gap
+        prefetches.clear();
+        prefetchPartition = next.partition;
+        prefetchOffset = next.offset + response.remaining();
+      } else {
+        window = Math.min(2 * window, Integer.MAX_VALUE / 2);
+      }
+      partition = next.partition;
+      offset = next.offset;
+      readAhead = response;
+    }
+    return true;
+  }
+
+  /**
+   * Take up to {@code size} bytes of the data read ahead at the current position.
+   */
+  private ByteBuffer takeReadAhead(int size) {
+    ByteBuffer data = readAhead.slice();
+    if (data.remaining() > size) {
+      data.limit(size);
+    }
+    readAhead.position(readAhead.position() + data.remaining());
+    offset += data.remaining();
+    return data;
+  }
+
+  /**
+   * Note a sequential read of {@code size} bytes and, once reads look sequential, send reads
+   * ahead of the current position up to the window and the budget.
+   */
+  private void readAhead(int size) throws TException {
+    if (readAheadBytes == 0 || ++sequentialReads < SEQUENTIAL_READS) {
+      return;
+    }
+    long capacity = partitionCapacity();
+    int chunk = Math.min(readAheadBytes, Math.max(size, MIN_READ_AHEAD_CHUNK));
+    int maxWindow = Math.max(1, readAheadBytes / chunk);
+    long buffered = readAhead == null ? 0 : readAhead.remaining();
+    if (prefetches.isEmpty() && buffered == 0) {
+      prefetchPartition = partition;
+      prefetchOffset = offset;
+    }
+    for (Prefetch prefetch : prefetches) {
+      buffered += prefetch.size;
+    }
+    while (prefetches.size() < Math.min(window, maxWindow) && buffered + chunk <= readAheadBytes) {
+      if (prefetchOffset >= capacity) {
+        prefetchPartition++;
+        prefetchOffset = 0;
+      }
+      if (prefetchPartition >= blocks.size() && !addNewPartitions()) {
+        break;
+      }
+      int n = (int) Math.min(chunk, capacity - prefetchOffset);
+      prefetches.add(new Prefetch(prefetchPartition, prefetchOffset, n,
+          blocks.get(prefetchPartition).runCommandAsync(readArgs(prefetchOffset, n))));
+      prefetchOffset += n;
+      buffered += n;
+    }
+  }
+
+  /**
+   * Connect to partitions added since this reader last looked, asking the directory only if it
+   * has not already come back empty-handed for the partitions known now; returns false if there
+   * are none.
+   */
+  private boolean addNewPartitions() throws TException {
+    if (blocks.size() == partitionsSeen) {
+      return false;
+    }
+    if (!addNewBlocks()) {
+      partitionsSeen = blocks.size();
+      return false;
+    }
+    return true;
+  }
+
+  private void discardReadAhead() {
+    prefetches.clear();
+    readAhead = null;
+    sequentialReads = 0;
+    window = 1;
+  }
+
+  private List<ByteBuffer> readArgs(int size) {
+    return readArgs(offset, size);
+  }
+
+  private static List<ByteBuffer> readArgs(long offset, int size) {
+    return ByteBufferUtils.fromByteBuffers(FileCommands.READ, ByteBufferUtils.fromLong(offset),
+        ByteBufferUtils.fromInteger(size));
+  }
+
+  /**
+   * Send a read, moving on to the next partition if the current one is exhausted and another
+   * follows it. Partitions are only added once the previous one is full, so the directory is
+   * asked for new ones only when the read is at the end of the last known, full partition.
+   */
+  private ByteBuffer fetch(List<ByteBuffer> args) throws TException {
+    while (true) {
+      ByteBuffer response = blocks.get(partition).runCommand(args).get(0);
+      if (!Responses.is(response, Responses.MSG_NOT_FOUND)) {
+        return response;
+      }
+      if (partition >= blocks.size() - 1) {
+        if (offset < partitionCapacity() || !addNewBlocks()) {
+          return response;
+        }
+      }
+      nextPartition();
+      args = readArgs(ByteBufferUtils.toInt(args.get(2)));
+    }
+  }
+
+  /**
+   * Copy the head of a split read into {@code dst} and read the rest from the partitions that
+   * follow.
+   */
+  private void readSplit(ByteBuffer response, ByteBuffer dst) throws TException {
+    while (Responses.startsWith(response, Responses.SPLIT_READ)) {
+      ByteBuffer head = splitHead(response);
+      offset += head.remaining();
+      dst.put(head);
+      nextPartition();
+      if (!dst.hasRemaining()) {
+        return;
+      }
+      do {
+        response = fetch(readArgs(dst.remaining()));
+      } while (Responses.is(response, Responses.REDO));
+    }
+    if (!Responses.is(response, Responses.MSG_NOT_FOUND)) {
+      offset += response.remaining();
+      dst.put(response);
+    }
+  }
+
+  /**
+   * The data part of a split read, connecting to the next partition on the way if this reader
+   * does not know it yet.
+   */
+  private ByteBuffer splitHead(ByteBuffer response) throws TException {
+    ByteBuffer rest = afterStatus(response, Responses.SPLIT_READ);
+    List<String> chain = nextChain(rest);
+    if (partition >= blocks.size() - 1) {
+      addNewBlock(chain);
+    }
+    return rest.slice();
+  }
 }
@@ -1,23 +1,281 @@
 package jiffy.storage;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import jiffy.directory.directory_service.Client;
 import jiffy.directory.rpc_data_status;
 import jiffy.util.ByteBufferUtils;
 import org.apache.thrift.TException;
 
+/**
+ * Appends to a file.
+ *
+ * By default each write is sent on its own and returns once the chain has acknowledged it. With
+ * a write buffer ({@code jiffy.client.write_buffer_bytes}, or {@link #setWriteBuffer(int, int)})
+ * small writes are instead coalesced into commands of up to the buffer's size, which are sent
+ * without waiting for the previous ones, up to {@code jiffy.client.write_behind_depth} (8 by
+ * default) at a time. Writes as large as the buffer are sent straight from the caller's buffer
+ * and awaited before returning. A buffered write the chain answers with {@code !redo} or
+ * {@code !split_write} is retried or continued from the position it was sent at, just as an
+ * unbuffered write would be. Buffered writes return {@code !ok} once accepted; failures
+ * show up in the status returned by {@link #flush()}, the point at which all data written so far
+ * has been acknowledged by the chain, and {@link #sync()}, which also persists the file to its
+ * backing path.
+ *
+ * Commands are cut at partition boundaries, so a partition fills up without split writes as
+ * long as the next one is known; a write into a partition that does not exist yet is sent on
+ * its own, and the server's {@code !split_write} names the partition it was continued in. The
+ * writer is not safe for use by multiple threads.
+ */
 public class FileWriter extends FileClient {
 
+  private static final int DEFAULT_WRITE_BUFFER_BYTES = Integer
+      .getInteger("jiffy.client.write_buffer_bytes", 0);
+  private static final int DEFAULT_WRITE_BEHIND_DEPTH = Math.max(1,
+      Integer.getInteger("jiffy.client.write_behind_depth", 8));
+
+  /**
+   * A write sent without waiting, with the position it was sent at.
+   */
+  private static class PendingWrite {
+
+    private final int partition;
+    private final long offset;
+    private final List<ByteBuffer> args;
+    private final CompletableFuture<List<ByteBuffer>> response;
+
+    PendingWrite(int partition, long offset, List<ByteBuffer> args,
+        CompletableFuture<List<ByteBuffer>> response) {
+      this.partition = partition;
+      this.offset = offset;
+      this.args = args;
+      this.response = response;
+    }
+  }
+
+  private int bufferBytes;
+  private int maxInFlight;
+  // Data written but not yet sent, to be sent at the current position
+  private ByteBuffer buffer;
+  private final ArrayDeque<PendingWrite> inFlight;
+  // Status of the first write that failed since the last flush
+  private ByteBuffer failure;
+
   public FileWriter(Client fs, String path,
       rpc_data_status dataStatus, int timeoutMs) throws TException {
     super(fs, path, dataStatus, timeoutMs);
+    this.bufferBytes = DEFAULT_WRITE_BUFFER_BYTES;
+    this.maxInFlight = DEFAULT_WRITE_BEHIND_DEPTH;
+    this.inFlight = new ArrayDeque<>();
+  }
+
+  /**
+   * Coalesce writes into commands of up to {@code bytes}, keeping up to {@code maxInFlight} of
+   * them in flight; 0 bytes sends each write on its own. What is buffered so far is sent and
+   * awaited first.
+   */
+  public void setWriteBuffer(int bytes, int maxInFlight) throws TException {
+    if (bytes < 0 || maxInFlight < 1) {
+      throw new IllegalArgumentException("Write buffer must be >= 0 and depth >= 1");
+    }
+    sendAll();
+    this.bufferBytes = bytes;
+    this.maxInFlight = maxInFlight;
   }
 
   public ByteBuffer write(ByteBuffer buf) throws TException {
-    List<ByteBuffer> args = ByteBufferUtils
-        .fromByteBuffers(FileCommands.WRITE, buf, ByteBufferUtils.fromLong(offset));
+    if (bufferBytes == 0) {
+      return writeDirect(buf);
+    }
+    if (buffer == null && buf.remaining() >= bufferBytes) {
+      writeThrough(buf.duplicate());
+    } else {
+      ByteBuffer src = buf.duplicate();
+      while (src.hasRemaining()) {
+        if (buffer == null) {
+          buffer = ByteBuffer.allocate(bufferBytes);
+        }
+        int room = room();
+        if (room == 0) {
+          sendBuffer();
+          continue;
+        }
+        ByteBuffer chunk = src.duplicate();
+        chunk.limit(chunk.position() + Math.min(room, chunk.remaining()));
+        buffer.put(chunk);
+        src.position(chunk.limit());
+        if (room() == 0) {
+          sendBuffer();
+        }
+      }
+    }
+    return failure == null ? Responses.of(Responses.OK) : failure;
+  }
+
+  /**
+   * Send everything buffered and wait for all writes to be acknowledged; returns {@code !ok}, or
+   * the status of the first write that failed since the last flush.
+   */
+  public ByteBuffer flush() throws TException {
+    sendAll();
+    ByteBuffer status = failure == null ? Responses.of(Responses.OK) : failure;
+    failure = null;
+    return status;
+  }
+
+  /**
+   * {@link #flush()}, then persist the file to its backing path.
+   */
+  public ByteBuffer sync() throws TException {
+    ByteBuffer status = flush();
+    if (Responses.is(status, Responses.OK)) {
+      synchronized (fs) {
+        fs.sync(path, dataStatus.backing_path);
+      }
+    }
+    return status;
+  }
+
+  /**
+   * The position the next write goes to, including data still buffered.
+   */
+  @Override
+  public long position() throws TException {
+    return super.position() + (buffer == null ? 0 : buffer.position());
+  }
+
+  @Override
+  public boolean seek(long position) throws TException {
+    sendAll();
+    return super.seek(position);
+  }
+
+  private void sendAll() throws TException {
+    if (buffer != null && buffer.position() > 0) {
+      sendBuffer();
+    }
+    drain();
+  }
+
+  /**
+   * Bytes the buffer can take before it must be sent: up to its size, and up to the end of the
+   * partition it will be written to if another partition is known to follow.
+   */
+  private int room() throws TException {
+    long capacity = partitionCapacity();
+    if (buffer.position() == 0 && offset >= capacity && partition < blocks.size() - 1) {
+      nextPartition();
+    }
+    if (offset >= capacity) {
+      // Goes to a partition that does not exist yet
+      return buffer.remaining();
+    }
+    return (int) Math.min(buffer.remaining(), capacity - offset - buffer.position());
+  }
+
+  private void sendBuffer() throws TException {
+    buffer.flip();
+    ByteBuffer data = buffer;
+    buffer = null;
+    send(data);
+  }
+
+  /**
+   * Write {@code data} at the current position without waiting, unless it starts in a partition
+   * that does not exist yet.
+   */
+  private void send(ByteBuffer data) throws TException {
+    if (offset >= partitionCapacity() && partition >= blocks.size() - 1) {
+      drain();
+      ByteBuffer status = writeDirect(data);
+      if (failure == null && !Responses.is(status, Responses.OK)) {
+        failure = status;
+      }
+      return;
+    }
+    while (inFlight.size() >= maxInFlight) {
+      complete(inFlight.poll());
+    }
+    List<ByteBuffer> args = writeArgs(data);
+    inFlight.add(new PendingWrite(partition, offset, args,
+        blocks.get(partition).runCommandAsync(args)));
+    offset += data.remaining();
+  }
+
+  /**
+   * Send {@code data} in commands cut at the buffer size and partition boundaries, waiting for
+   * all of them before the caller gets its buffer back.
+   */
+  private void writeThrough(ByteBuffer data) throws TException {
+    while (data.hasRemaining()) {
+      long capacity = partitionCapacity();
+      if (offset >= capacity && partition < blocks.size() - 1) {
+        nextPartition();
+      }
+      ByteBuffer chunk = data.duplicate();
+      int n = bufferBytes;
+      if (offset < capacity) {
+        n = (int) Math.min(n, capacity - offset);
+      }
+      chunk.limit(chunk.position() + Math.min(n, chunk.remaining()));
+      data.position(chunk.limit());
+      send(chunk.slice());
+    }
+    drain();
+  }
+
+  private void drain() throws TException {
+    while (!inFlight.isEmpty()) {
+      complete(inFlight.poll());
+    }
+  }
+
+  private void complete(PendingWrite write) throws TException {
+    ByteBuffer status = AsyncSupport.await(write.response).get(0);
+    if (!Responses.is(status, Responses.OK)) {
+      status = redirect(write, status);
+    }
+    if (failure == null && !Responses.is(status, Responses.OK)) {
+      failure = status;
+    }
+  }
+
+  /**
+   * Retry or continue a write sent without waiting, as {@link #writeDirect(ByteBuffer)} would
+   * have, from the position it was sent at. The writer stays where it was unless the write was
+   * continued past it.
+   */
+  private ByteBuffer redirect(PendingWrite write, ByteBuffer status) throws TException {
+    int currentPartition = partition;
+    long currentOffset = offset;
+    partition = write.partition;
+    offset = write.offset;
+    try {
+      ByteBuffer response = handleRedirect(write.args, status);
+      while (response == null) {
+        response = blocks.get(partition).runCommand(write.args).get(0);
+        response = handleRedirect(write.args, response);
+      }
+      return response;
+    } finally {
+      if (partition < currentPartition
+          || (partition == currentPartition && offset < currentOffset)) {
+        partition = currentPartition;
+        offset = currentOffset;
+      }
+    }
+  }
+
+  private List<ByteBuffer> writeArgs(ByteBuffer data) {
+    return ByteBufferUtils.fromByteBuffers(FileCommands.WRITE, data,
+        ByteBufferUtils.fromLong(offset));
+  }
+
+  private ByteBuffer writeDirect(ByteBuffer buf) throws TException {
+    List<ByteBuffer> args = writeArgs(buf);
     ByteBuffer response = null;
     while (response == null) {
       response = blocks.get(partition).runCommand(args).get(0);
@@ -30,39 +288,33 @@ public class FileWriter extends FileClient {
   ByteBuffer handleRedirect(List<ByteBuffer> args, ByteBuffer response)
       throws TException {
     boolean writeFlag = true;
-    String responseStr = ByteBufferUtils.toString(response);
-
-    if (responseStr.equals("!redo")) return null;
+    if (Responses.is(response, Responses.REDO)) return null;
 
-    while (responseStr.startsWith("!split_write")) {
-      String[] parts = responseStr.split("!");
-      int remainingDataLength = Integer.parseInt(parts[parts.length - 1]);
+    while (Responses.startsWith(response, Responses.SPLIT_WRITE)) {
+      ByteBuffer rest = afterStatus(response, Responses.SPLIT_WRITE);
+      List<String> chain = nextChain(rest);
+      int remainingDataLength = ByteBufferUtils.toInt(rest);
 
-      // TODO: remove conversion to and from string (stick to bytebuffers)
-      String data = ByteBufferUtils.toString(args.get(0));
-      String remainingData = data.substring(data.length() - remainingDataLength);
+      ByteBuffer remainingData = args.get(1).duplicate();
+      remainingData.position(remainingData.limit() - remainingDataLength);
 
       if (partition >= blocks.size() - 1) {
-        addNewBlock(parts);
+        addNewBlock(chain);
       }
 
-      partition++;
-      updateLastPartition(partition);
-      offset = 0;
+      nextPartition();
 
       List<ByteBuffer> newArgs = Arrays
-          .asList(FileCommands.WRITE, ByteBufferUtils.fromString(remainingData),
-              ByteBufferUtils.fromLong(offset));
+          .asList(FileCommands.WRITE, remainingData.slice(), ByteBufferUtils.fromLong(offset));
       do {
         response = blocks.get(partition).runCommand(newArgs).get(0);
-        responseStr = ByteBufferUtils.toString(response);
-      } while (responseStr.equals("!redo"));
+      } while (Responses.is(response, Responses.REDO));
       offset += remainingDataLength;
       writeFlag = false;
     }
 
     if (writeFlag) {
-      offset += args.get(1).array().length;
+      offset += args.get(1).remaining();
     }
     return response;
   }
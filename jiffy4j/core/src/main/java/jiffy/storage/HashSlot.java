@@ -36,16 +36,28 @@ public class HashSlot {
     return crc16(key.getBytes(StandardCharsets.UTF_8));
   }
 
+  /**
+   * Hash the key's remaining bytes; works for heap, direct and sliced buffers alike and leaves
+   * the buffer's position untouched.
+   */
   public static int get(ByteBuffer key) {
-    return crc16(key.array());
+    int crc = 0x0000;
+    for (int i = key.position(); i < key.limit(); i++) {
+      crc = update(crc, key.get(i));
+    }
+    return crc & 0xFFFF;
   }
 
   private static int crc16(byte[] bytes) {
     int crc = 0x0000;
     for (byte b : bytes) {
-      crc = ((crc << 8) ^ LOOKUP_TABLE[((crc >>> 8) ^ (b & 0xFF)) & 0xFF]);
+      crc = update(crc, b);
     }
     return crc & 0xFFFF;
   }
 
+  private static int update(int crc, byte b) {
+    return (crc << 8) ^ LOOKUP_TABLE[((crc >>> 8) ^ (b & 0xFF)) & 0xFF];
+  }
+
 }
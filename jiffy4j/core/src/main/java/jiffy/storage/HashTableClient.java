@@ -1,22 +1,61 @@
 package jiffy.storage;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import jiffy.directory.directory_service.Client;
 import jiffy.directory.rpc_data_status;
 import jiffy.directory.rpc_replica_chain;
 import jiffy.directory.rpc_storage_mode;
+import jiffy.notification.HashTableListener;
+import jiffy.notification.event.Notification;
+import jiffy.util.ByteBufferAllocator;
 import jiffy.util.ByteBufferUtils;
 import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Client for a partitioned hash table.
+ *
+ * Instances are thread-safe and meant to be shared, e.g., by a whole server thread pool. Each
+ * partition is served by {@code jiffy.client.channels_per_partition} pipelined replica chain
+ * clients (1 by default); callers are spread across them by thread, so adding channels spreads
+ * a busy partition over more pooled connections and client IDs.
+ *
+ * An optional {@link NearCache} serves repeated gets locally; it is kept coherent through
+ * put, update, upsert and remove notifications from every partition.
+ *
+ * The {@code *Async} operations return as soon as the command is sent. Writes go to the head of
+ * the key's chain and reads to its tail, over different connections, so an async read issued
+ * while a write of the same key is still in flight may see the value from before the write.
+ * Callers that need to read their own async write must wait for its future first.
+ */
 public class HashTableClient extends DataStructureClient implements Closeable {
 
-  private int[] slots;
-  private ReplicaChainClient[] blocks;
-  private int redoTimes;
+  private static final Logger LOG = LoggerFactory.getLogger(HashTableClient.class);
+
+  private static final int CHANNELS_PER_PARTITION = Math.max(1,
+      Integer.getInteger("jiffy.client.channels_per_partition", 1));
+  private static final List<String> INVALIDATING_OPS = Arrays.asList("put", "remove", "update",
+      "upsert");
+
+  private volatile RoutingTable routing;
+  private volatile ByteBufferAllocator valueAllocator;
+  private volatile NearCache nearCache;
+  // Guarded by this
+  private HashTableListener invalidations;
+  private Thread invalidator;
 
   public HashTableClient(Client fs, String path, rpc_data_status dataStatus, int timeoutMs)
       throws TException {
@@ -24,22 +63,167 @@ public class HashTableClient extends DataStructureClient implements Closeable {
     init();
   }
 
+  /**
+   * Install a routing table for the current data status. Only partitions that are new or moved
+   * since the previous table get connected; clients of partitions that disappeared are closed
+   * once operations already in flight on them have had time to drain.
+   */
   private void init() throws TException {
-    this.redoTimes = 0;
-    this.blocks = new ReplicaChainClient[dataStatus.data_blocks.size()];
-    this.slots = new int[dataStatus.data_blocks.size()];
-    for (int i = 0; i < blocks.length; i++) {
-      slots[i] = Integer.parseInt(dataStatus.data_blocks.get(i).name.split("_")[0]);
-      blocks[i] = new ReplicaChainClient(fs, path, cache, dataStatus.data_blocks.get(i),
-          HashTableCommands.CMD_TYPES);
+    RoutingTable old = this.routing;
+    RoutingTable fresh = RoutingTable.build(old, dataStatus, this::openChannels);
+    this.routing = fresh;
+    if (old != null) {
+      List<ReplicaChainClient> retired = old.retiredBy(fresh);
+      if (!retired.isEmpty()) {
+        AsyncSupport.schedule(() -> retired.forEach(ReplicaChainClient::close), timeoutMs);
+      }
     }
+    NearCache near = nearCache;
+    if (near != null) {
+      // Partitions moved, so listen on the new blocks
+      stopInvalidation();
+      startInvalidation(near);
+    }
+  }
+
+  private ReplicaChainClient openRedirect(rpc_replica_chain chain) throws TException {
+    return new ReplicaChainClient(fs, path, cache, timeoutMs, chain, HashTableCommands.CMD_TYPES);
+  }
+
+  private ReplicaChainClient[] openChannels(rpc_replica_chain chain) throws TException {
+    ReplicaChainClient[] channels = new ReplicaChainClient[CHANNELS_PER_PARTITION];
+    try {
+      for (int i = 0; i < channels.length; i++) {
+        channels[i] = new ReplicaChainClient(fs, path, cache, timeoutMs, chain,
+            HashTableCommands.CMD_TYPES);
+      }
+    } catch (TException | RuntimeException e) {
+      for (ReplicaChainClient c : channels) {
+        if (c != null) {
+          c.close();
+        }
+      }
+      throw e;
+    }
+    return channels;
   }
 
   @Override
   public void close() {
-    for (ReplicaChainClient client : blocks) {
-      client.close();
+    synchronized (this) {
+      stopInvalidation();
+    }
+    routing.close();
+  }
+
+  /**
+   * Serve gets from {@code nearCache}, which this client then keeps coherent by subscribing to
+   * modifications of the table. Pass null to stop caching. A cache must not be shared between
+   * clients.
+   */
+  public synchronized void setNearCache(NearCache nearCache) throws TException {
+    stopInvalidation();
+    this.nearCache = nearCache;
+    if (nearCache != null) {
+      startInvalidation(nearCache);
+    }
+  }
+
+  public NearCache getNearCache() {
+    return nearCache;
+  }
+
+  private void startInvalidation(NearCache near) throws TException {
+    HashTableListener listener = new HashTableListener(path, dataStatus);
+    try {
+      listener.subscribe(INVALIDATING_OPS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      closeQuietly(listener);
+      throw new TTransportException(e);
+    } catch (TException | RuntimeException e) {
+      closeQuietly(listener);
+      throw e;
     }
+    // Anything cached before the subscription took effect may have missed its invalidation
+    near.clear();
+    Thread thread = new Thread(() -> invalidate(listener, near), "jiffy-near-cache-" + path);
+    thread.setDaemon(true);
+    thread.start();
+    this.invalidations = listener;
+    this.invalidator = thread;
+  }
+
+  private void stopInvalidation() {
+    if (invalidations != null) {
+      invalidator.interrupt();
+      closeQuietly(invalidations);
+      invalidations = null;
+      invalidator = null;
+    }
+  }
+
+  private void invalidate(HashTableListener listener, NearCache near) {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        Notification n = listener.getNotification(timeoutMs, TimeUnit.MILLISECONDS);
+        if (n == null) {
+          if (!listener.isListening()) {
+            break;
+          }
+        } else if ("error".equals(n.kind().name())) {
+          // e.g. !block_moved: the partition is gone, and with it our subscription
+          near.clear();
+          AsyncSupport.blocking().execute(this::refreshQuietly);
+        } else {
+          near.invalidate(n.getData());
+        }
+      }
+    } catch (InterruptedException e) {
+      return;
+    }
+    if (!Thread.currentThread().isInterrupted()) {
+      LOG.warn("Lost notifications for {}, disabling near cache", path);
+      synchronized (this) {
+        if (invalidations == listener) {
+          stopInvalidation();
+          nearCache = null;
+        }
+      }
+      near.clear();
+    }
+  }
+
+  private static void closeQuietly(HashTableListener listener) {
+    try {
+      listener.close();
+    } catch (IOException e) {
+      LOG.warn("Failed to close notification listener: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Copy values returned by get operations into buffers from {@code allocator}, e.g., a
+   * {@link jiffy.util.PooledDirectByteBufferAllocator} to hand them to NIO pipelines off-heap.
+   * Status responses are returned as-is. Pass null to return values as received.
+   *
+   * Every value returned must be passed back to {@code allocator.release} once the caller is
+   * done with it. A pooling allocator holds on to what it hands out until then, so values that
+   * are never released are never reclaimed, not even by the garbage collector.
+   */
+  public void setValueAllocator(ByteBufferAllocator allocator) {
+    this.valueAllocator = allocator;
+  }
+
+  private ByteBuffer value(ByteBuffer response) {
+    ByteBufferAllocator allocator = valueAllocator;
+    if (allocator == null || Responses.isStatus(response)) {
+      return response;
+    }
+    ByteBuffer buf = allocator.allocate(response.remaining());
+    buf.put(response.duplicate());
+    buf.flip();
+    return buf;
   }
 
   public rpc_data_status getDataStatus() {
@@ -47,110 +231,413 @@ public class HashTableClient extends DataStructureClient implements Closeable {
   }
 
   void refresh() throws TException {
-    this.dataStatus = fs.dstatus(path);
+    refresh(routing);
+  }
+
+  private void refreshQuietly() {
+    try {
+      refresh();
+    } catch (TException | RuntimeException e) {
+      LOG.warn("Failed to refresh {}: {}", path, e.getMessage());
+    }
+  }
+
+  /**
+   * Refresh the routing table unless another caller already replaced {@code seen}.
+   */
+  private synchronized void refresh(RoutingTable seen) throws TException {
+    if (routing != seen) {
+      return;
+    }
+    synchronized (fs) {
+      this.dataStatus = fs.dstatus(path);
+    }
     init();
   }
 
+  @Override
   ByteBuffer handleRedirect(List<ByteBuffer> args, ByteBuffer response)
       throws TException {
-    String resp;
-    while ((resp = ByteBufferUtils.toString(response)).startsWith("!exporting")) {
-      rpc_replica_chain chain = extractChain(resp);
-      response = new ReplicaChainClient(fs, path, cache, chain, HashTableCommands.CMD_TYPES)
-          .runCommandRedirected(args)
-          .get(0);
-    }
-    if (resp.equals("!block_moved")) {
-      refresh();
+    return handleRedirect(args, response, routing, 0);
+  }
+
+  /**
+   * Follow exports for a response obtained through {@code seen}; returns null if the command
+   * must be retried, after refreshing the routing table or backing off as needed.
+   */
+  private ByteBuffer handleRedirect(List<ByteBuffer> args, ByteBuffer response,
+      RoutingTable seen, int redoTimes) throws TException {
+    while (Responses.startsWith(response, Responses.EXPORTING)) {
+      metrics.redirect();
+      rpc_replica_chain chain = extractChain(ByteBufferUtils.toString(response));
+      ReplicaChainClient redirected = AsyncSupport
+          .await(seen.redirect(chain, this::openRedirect, Runnable::run));
+      response = redirected.runCommandRedirected(args).get(0);
+    }
+    if (Responses.is(response, Responses.BLOCK_MOVED)) {
+      metrics.blockMoved();
+      refresh(seen);
       return null;
     }
-    if (resp.equals("!full")) {
+    if (Responses.is(response, Responses.FULL)) {
+      metrics.fullBackoff();
       long sleepyTime = (long) Math.pow(2, redoTimes);
       try {
         Thread.sleep(sleepyTime);
-        redoTimes++;
-      } catch (InterruptedException ignored) {}
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new TTransportException(e);
+      }
       return null;
     }
     return response;
   }
 
-  public boolean exists(ByteBuffer key) throws TException {
-    List<ByteBuffer> args = ByteBufferUtils.fromByteBuffers(HashTableCommands.EXISTS, key);
+  private ByteBuffer runCommand(List<ByteBuffer> args, ByteBuffer key) throws TException {
     ByteBuffer response = null;
+    int redoTimes = 0;
     while (response == null) {
-      response = blocks[blockId(key)].runCommand(args).get(0);
-      response = handleRedirect(args, response);
+      RoutingTable table = routing;
+      try {
+        response = table.chain(key).runCommand(args).get(0);
+      } catch (TTransportException e) {
+        if (routing == table) {
+          throw e;
+        }
+        // The chain may have been retired by a concurrent refresh; retry on the new table
+        continue;
+      }
+      response = handleRedirect(args, response, table, redoTimes++);
     }
-    return ByteBufferUtils.toString(response).equals("true");
+    written(args, key);
+    return response;
+  }
+
+  /**
+   * Drop {@code key} from the near cache after a successful write; notifications only invalidate
+   * it asynchronously, but this client must read its own writes.
+   */
+  private void written(List<ByteBuffer> args, ByteBuffer key) {
+    NearCache near = nearCache;
+    ByteBuffer cmd = args.get(0);
+    if (near != null && cmd != HashTableCommands.GET && cmd != HashTableCommands.EXISTS) {
+      near.invalidate(key);
+    }
+  }
+
+  private ByteBuffer cachedGet(List<ByteBuffer> args, ByteBuffer key) throws TException {
+    NearCache near = nearCache;
+    if (near == null) {
+      return value(runCommand(args, key));
+    }
+    ByteBuffer cached = near.get(key, valueAllocator);
+    if (cached != null) {
+      return cached;
+    }
+    long stamp = near.stamp(key);
+    ByteBuffer response = runCommand(args, key);
+    if (!Responses.isStatus(response)) {
+      near.put(key, response, stamp);
+    }
+    return value(response);
+  }
+
+  public boolean exists(ByteBuffer key) throws TException {
+    List<ByteBuffer> args = ByteBufferUtils.fromByteBuffers(HashTableCommands.EXISTS, key);
+    return Responses.is(runCommand(args, key), Responses.TRUE);
   }
 
   public ByteBuffer get(ByteBuffer key) throws TException {
     List<ByteBuffer> args = ByteBufferUtils.fromByteBuffers(HashTableCommands.GET, key);
-    ByteBuffer response = null;
-    while (response == null) {
-      response = blocks[blockId(key)].runCommand(args).get(0);
-      response = handleRedirect(args, response);
-    }
-    return response;
+    return cachedGet(args, key);
   }
 
   public ByteBuffer put(ByteBuffer key, ByteBuffer value) throws TException {
     List<ByteBuffer> args = ByteBufferUtils.fromByteBuffers(HashTableCommands.PUT, key, value);
-    ByteBuffer response = null;
-    while (response == null) {
-      response = blocks[blockId(key)].runCommand(args).get(0);
-      response = handleRedirect(args, response);
-    }
-    return response;
+    return runCommand(args, key);
   }
 
   public ByteBuffer upsert(ByteBuffer key, ByteBuffer value) throws TException {
     List<ByteBuffer> args = ByteBufferUtils.fromByteBuffers(HashTableCommands.UPSERT, key, value);
-    ByteBuffer response = null;
-    while (response == null) {
-      response = blocks[blockId(key)].runCommand(args).get(0);
-      response = handleRedirect(args, response);
-    }
-    return response;
+    return runCommand(args, key);
   }
 
   public ByteBuffer update(ByteBuffer key, ByteBuffer value) throws TException {
     List<ByteBuffer> args = ByteBufferUtils.fromByteBuffers(HashTableCommands.UPDATE, key, value);
-    ByteBuffer response = null;
-    while (response == null) {
-      response = blocks[blockId(key)].runCommand(args).get(0);
-      response = handleRedirect(args, response);
-    }
-    return response;
+    return runCommand(args, key);
   }
 
   public ByteBuffer remove(ByteBuffer key) throws TException {
     List<ByteBuffer> args = ByteBufferUtils.fromByteBuffers(HashTableCommands.REMOVE, key);
-    ByteBuffer response = null;
-    while (response == null) {
-      response = blocks[blockId(key)].runCommand(args).get(0);
-      response = handleRedirect(args, response);
+    return runCommand(args, key);
+  }
+
+  public CompletableFuture<Boolean> existsAsync(ByteBuffer key) {
+    List<ByteBuffer> args = ByteBufferUtils.fromByteBuffers(HashTableCommands.EXISTS, key);
+    return runAsync(args, key).thenApply(r -> Responses.is(r, Responses.TRUE));
+  }
+
+  /**
+   * Asynchronous {@link #get}. Not ordered after async writes of {@code key} that have not
+   * completed yet; see the class comment.
+   */
+  public CompletableFuture<ByteBuffer> getAsync(ByteBuffer key) {
+    NearCache near = nearCache;
+    if (near == null) {
+      return runAsync(ByteBufferUtils.fromByteBuffers(HashTableCommands.GET, key), key)
+          .thenApply(this::value);
     }
-    return response;
+    ByteBuffer cached = near.get(key, valueAllocator);
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached);
+    }
+    long stamp = near.stamp(key);
+    return runAsync(ByteBufferUtils.fromByteBuffers(HashTableCommands.GET, key), key)
+        .thenApply(response -> {
+          if (!Responses.isStatus(response)) {
+            near.put(key, response, stamp);
+          }
+          return value(response);
+        });
+  }
+
+  public CompletableFuture<ByteBuffer> putAsync(ByteBuffer key, ByteBuffer value) {
+    return runAsync(ByteBufferUtils.fromByteBuffers(HashTableCommands.PUT, key, value), key);
+  }
+
+  public CompletableFuture<ByteBuffer> upsertAsync(ByteBuffer key, ByteBuffer value) {
+    return runAsync(ByteBufferUtils.fromByteBuffers(HashTableCommands.UPSERT, key, value), key);
+  }
+
+  public CompletableFuture<ByteBuffer> updateAsync(ByteBuffer key, ByteBuffer value) {
+    return runAsync(ByteBufferUtils.fromByteBuffers(HashTableCommands.UPDATE, key, value), key);
+  }
+
+  public CompletableFuture<ByteBuffer> removeAsync(ByteBuffer key) {
+    return runAsync(ByteBufferUtils.fromByteBuffers(HashTableCommands.REMOVE, key), key);
+  }
+
+  /**
+   * Look up many keys at once; the result holds, in input order, each key's value or its status
+   * (e.g. {@code !key_not_found}).
+   */
+  public List<ByteBuffer> multiGet(List<ByteBuffer> keys) throws TException {
+    return AsyncSupport.await(multiGetAsync(keys));
+  }
+
+  public List<Boolean> multiExists(List<ByteBuffer> keys) throws TException {
+    return AsyncSupport.await(multiExistsAsync(keys));
+  }
+
+  public List<ByteBuffer> multiPut(List<ByteBuffer> keys, List<ByteBuffer> values)
+      throws TException {
+    return AsyncSupport.await(multiPutAsync(keys, values));
+  }
+
+  /**
+   * Put every entry of {@code entries}; the result maps each key to its status, in the map's
+   * iteration order.
+   */
+  public Map<ByteBuffer, ByteBuffer> multiPut(Map<ByteBuffer, ByteBuffer> entries)
+      throws TException {
+    List<ByteBuffer> keys = new ArrayList<>(entries.keySet());
+    List<ByteBuffer> values = new ArrayList<>(keys.size());
+    for (ByteBuffer key : keys) {
+      values.add(entries.get(key));
+    }
+    List<ByteBuffer> statuses = multiPut(keys, values);
+    Map<ByteBuffer, ByteBuffer> result = new LinkedHashMap<>();
+    for (int i = 0; i < keys.size(); i++) {
+      result.put(keys.get(i), statuses.get(i));
+    }
+    return result;
   }
 
-  private int blockId(ByteBuffer key) {
-    return findSlot(HashSlot.get(key));
+  public List<ByteBuffer> multiUpsert(List<ByteBuffer> keys, List<ByteBuffer> values)
+      throws TException {
+    return AsyncSupport.await(multiUpsertAsync(keys, values));
+  }
+
+  public List<ByteBuffer> multiUpdate(List<ByteBuffer> keys, List<ByteBuffer> values)
+      throws TException {
+    return AsyncSupport.await(multiUpdateAsync(keys, values));
+  }
+
+  public List<ByteBuffer> multiRemove(List<ByteBuffer> keys) throws TException {
+    return AsyncSupport.await(multiRemoveAsync(keys));
   }
 
-  private int findSlot(int hash) {
-    int low = 0;
-    int high = slots.length;
-    while (low < high) {
-      final int mid = (low + high) / 2;
-      if (hash >= slots[mid]) {
-        low = mid + 1;
-      } else {
-        high = mid;
+  public CompletableFuture<List<ByteBuffer>> multiGetAsync(List<ByteBuffer> keys) {
+    NearCache near = nearCache;
+    if (near == null) {
+      return runBatchAsync(HashTableCommands.GET, keys, null).thenApply(responses -> {
+        responses.replaceAll(this::value);
+        return responses;
+      });
+    }
+    // Only fetch the keys the near cache cannot answer
+    List<ByteBuffer> result = new ArrayList<>(keys.size());
+    List<Integer> missed = new ArrayList<>();
+    List<ByteBuffer> missedKeys = new ArrayList<>();
+    for (int i = 0; i < keys.size(); i++) {
+      ByteBuffer cached = near.get(keys.get(i), valueAllocator);
+      result.add(cached);
+      if (cached == null) {
+        missed.add(i);
+        missedKeys.add(keys.get(i));
       }
     }
-    return low - 1;
+    if (missed.isEmpty()) {
+      return CompletableFuture.completedFuture(result);
+    }
+    long[] stamps = new long[missedKeys.size()];
+    for (int i = 0; i < stamps.length; i++) {
+      stamps[i] = near.stamp(missedKeys.get(i));
+    }
+    return runBatchAsync(HashTableCommands.GET, missedKeys, null).thenApply(responses -> {
+      for (int i = 0; i < responses.size(); i++) {
+        ByteBuffer response = responses.get(i);
+        if (!Responses.isStatus(response)) {
+          near.put(missedKeys.get(i), response, stamps[i]);
+        }
+        result.set(missed.get(i), value(response));
+      }
+      return result;
+    });
+  }
+
+  public CompletableFuture<List<Boolean>> multiExistsAsync(List<ByteBuffer> keys) {
+    return runBatchAsync(HashTableCommands.EXISTS, keys, null).thenApply(responses -> {
+      List<Boolean> result = new ArrayList<>(responses.size());
+      for (ByteBuffer response : responses) {
+        result.add(Responses.is(response, Responses.TRUE));
+      }
+      return result;
+    });
+  }
+
+  public CompletableFuture<List<ByteBuffer>> multiPutAsync(List<ByteBuffer> keys,
+      List<ByteBuffer> values) {
+    return runBatchAsync(HashTableCommands.PUT, keys, values);
+  }
+
+  public CompletableFuture<List<ByteBuffer>> multiUpsertAsync(List<ByteBuffer> keys,
+      List<ByteBuffer> values) {
+    return runBatchAsync(HashTableCommands.UPSERT, keys, values);
+  }
+
+  public CompletableFuture<List<ByteBuffer>> multiUpdateAsync(List<ByteBuffer> keys,
+      List<ByteBuffer> values) {
+    return runBatchAsync(HashTableCommands.UPDATE, keys, values);
+  }
+
+  public CompletableFuture<List<ByteBuffer>> multiRemoveAsync(List<ByteBuffer> keys) {
+    return runBatchAsync(HashTableCommands.REMOVE, keys, null);
+  }
+
+  /**
+   * Run {@code cmd} for every key. Keys are grouped by partition and each group is sent to its
+   * chain, looked up once per group, as one back-to-back burst that the chain pipelines, with
+   * all partitions in flight at once; redirects and retries are handled per key. Results are
+   * returned in input order.
+   */
+  private CompletableFuture<List<ByteBuffer>> runBatchAsync(ByteBuffer cmd,
+      List<ByteBuffer> keys, List<ByteBuffer> values) {
+    if (values != null && values.size() != keys.size()) {
+      return AsyncSupport.failed(new IllegalArgumentException(
+          "Got " + keys.size() + " keys but " + values.size() + " values"));
+    }
+    RoutingTable table = routing;
+    Map<Integer, List<Integer>> groups = new HashMap<>();
+    for (int i = 0; i < keys.size(); i++) {
+      groups.computeIfAbsent(table.index(keys.get(i)), k -> new ArrayList<>()).add(i);
+    }
+    List<CompletableFuture<ByteBuffer>> futures = new ArrayList<>(
+        Collections.nCopies(keys.size(), null));
+    for (Map.Entry<Integer, List<Integer>> group : groups.entrySet()) {
+      ReplicaChainClient chain = table.chainAt(group.getKey());
+      for (int i : group.getValue()) {
+        ByteBuffer key = keys.get(i);
+        List<ByteBuffer> args = values == null ? ByteBufferUtils.fromByteBuffers(cmd, key)
+            : ByteBufferUtils.fromByteBuffers(cmd, key, values.get(i));
+        CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        runAsync(args, key, table, chain, 0, result);
+        futures.set(i, result);
+      }
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+      List<ByteBuffer> result = new ArrayList<>(futures.size());
+      for (CompletableFuture<ByteBuffer> future : futures) {
+        result.add(future.join());
+      }
+      return result;
+    });
+  }
+
+  private CompletableFuture<ByteBuffer> runAsync(List<ByteBuffer> args, ByteBuffer key) {
+    CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+    runAsync(args, key, 0, result);
+    return result;
+  }
+
+  private void runAsync(List<ByteBuffer> args, ByteBuffer key, int redoTimes,
+      CompletableFuture<ByteBuffer> result) {
+    RoutingTable table = routing;
+    runAsync(args, key, table, table.chain(key), redoTimes, result);
+  }
+
+  /**
+   * Run a command on {@code chain}, the key's chain in {@code table}, without blocking the
+   * calling thread; retries look the chain up again. Exports are followed as they are
+   * reported; a moved block refreshes the routing table on a background thread and a full block
+   * backs off on the scheduler before the command is retried.
+   */
+  private void runAsync(List<ByteBuffer> args, ByteBuffer key, RoutingTable table,
+      ReplicaChainClient chain, int redoTimes, CompletableFuture<ByteBuffer> result) {
+    chain.runCommandAsync(args)
+        .thenCompose(r -> followExportsAsync(args, r.get(0), table))
+        .whenComplete((response, ex) -> {
+          if (ex != null) {
+            Throwable cause = AsyncSupport.unwrap(ex);
+            if (cause instanceof TTransportException && routing != table) {
+              // The chain may have been retired by a concurrent refresh; retry on the new table
+              runAsync(args, key, redoTimes, result);
+            } else {
+              result.completeExceptionally(cause);
+            }
+            return;
+          }
+          if (Responses.is(response, Responses.BLOCK_MOVED)) {
+            metrics.blockMoved();
+            AsyncSupport.blocking().execute(() -> {
+              try {
+                refresh(table);
+                runAsync(args, key, redoTimes, result);
+              } catch (TException | RuntimeException e) {
+                result.completeExceptionally(e);
+              }
+            });
+          } else if (Responses.is(response, Responses.FULL)) {
+            metrics.fullBackoff();
+            AsyncSupport.schedule(() -> runAsync(args, key, redoTimes + 1, result),
+                (long) Math.pow(2, redoTimes));
+          } else {
+            written(args, key);
+            result.complete(response);
+          }
+        });
+  }
+
+  private CompletableFuture<ByteBuffer> followExportsAsync(List<ByteBuffer> args,
+      ByteBuffer response, RoutingTable table) {
+    if (!Responses.startsWith(response, Responses.EXPORTING)) {
+      return CompletableFuture.completedFuture(response);
+    }
+    metrics.redirect();
+    rpc_replica_chain chain = extractChain(ByteBufferUtils.toString(response));
+    return table.redirect(chain, this::openRedirect, AsyncSupport.blocking())
+        .thenCompose(client -> client.runCommandRedirectedAsync(args))
+        .thenCompose(r -> followExportsAsync(args, r.get(0), table));
   }
 
   private rpc_replica_chain extractChain(String msg) {
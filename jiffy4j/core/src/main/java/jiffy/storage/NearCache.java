@@ -0,0 +1,293 @@
+package jiffy.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import jiffy.util.ByteBufferAllocator;
+import jiffy.util.PooledDirectByteBufferAllocator;
+
+/**
+ * Client-side cache of hash table values, bounded by the bytes its keys and values occupy.
+ *
+ * Attach it with {@link HashTableClient#setNearCache(NearCache)}: gets are then served locally
+ * when possible, and entries are dropped when this client writes a key or the servers notify it
+ * of a put, update, upsert or remove by anyone else. Values can be kept off-heap in pooled direct
+ * buffers; they are always copied out on a hit, so callers own what they get back.
+ *
+ * The cache is split into independently locked segments. Each evicts in LRU order; with
+ * {@link Eviction#TINY_LFU} a segment additionally keeps a small frequency sketch of the keys
+ * looked up in it and, once full, only admits a new key if it has been requested more often
+ * than the entry it would evict, which keeps one-off lookups from flushing the hot set.
+ */
+public class NearCache {
+
+  public enum Eviction {
+    LRU,
+    TINY_LFU
+  }
+
+  private static final int SEGMENTS = 16;
+  // Rough per-entry bookkeeping cost (map entry, key and value buffer objects)
+  private static final int ENTRY_OVERHEAD = 96;
+
+  private final long maxBytes;
+  private final Eviction eviction;
+  private final ByteBufferAllocator storage;
+  private final Segment[] segments;
+
+  private final LongAdder hits;
+  private final LongAdder misses;
+  private final LongAdder evictions;
+  private final LongAdder invalidations;
+
+  public NearCache(long maxBytes) {
+    this(maxBytes, Eviction.LRU, false);
+  }
+
+  public NearCache(long maxBytes, Eviction eviction, boolean offHeap) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("Cache size must be > 0");
+    }
+    this.maxBytes = maxBytes;
+    this.eviction = eviction;
+    this.storage = offHeap ? new PooledDirectByteBufferAllocator() : ByteBufferAllocator.HEAP;
+    this.segments = new Segment[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(Math.max(1, maxBytes / SEGMENTS));
+    }
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+    this.evictions = new LongAdder();
+    this.invalidations = new LongAdder();
+  }
+
+  private Segment segmentFor(int hash) {
+    return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+  }
+
+  /**
+   * Copy the value cached for {@code key} into a buffer from {@code allocator} (the heap if
+   * null); returns null on a miss.
+   */
+  ByteBuffer get(ByteBuffer key, ByteBufferAllocator allocator) {
+    int hash = key.hashCode();
+    ByteBuffer value = segmentFor(hash).get(key, hash, allocator);
+    if (value == null) {
+      misses.increment();
+    } else {
+      hits.increment();
+    }
+    return value;
+  }
+
+  /**
+   * Snapshot to pass to {@link #put(ByteBuffer, ByteBuffer, long)} for a value about to be
+   * fetched, so that it is not cached if the key is invalidated while the fetch is in flight.
+   */
+  long stamp(ByteBuffer key) {
+    return segmentFor(key.hashCode()).stamp;
+  }
+
+  void put(ByteBuffer key, ByteBuffer value, long stamp) {
+    segmentFor(key.hashCode()).put(key, value, stamp);
+  }
+
+  void invalidate(ByteBuffer key) {
+    if (segmentFor(key.hashCode()).invalidate(key)) {
+      invalidations.increment();
+    }
+  }
+
+  /**
+   * Drop every entry, e.g. when notifications may have been missed.
+   */
+  public void clear() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  public long maxBytes() {
+    return maxBytes;
+  }
+
+  public long sizeInBytes() {
+    long size = 0;
+    for (Segment segment : segments) {
+      size += segment.bytes;
+    }
+    return size;
+  }
+
+  public long hitCount() {
+    return hits.sum();
+  }
+
+  public long missCount() {
+    return misses.sum();
+  }
+
+  public long evictionCount() {
+    return evictions.sum();
+  }
+
+  public long invalidationCount() {
+    return invalidations.sum();
+  }
+
+  private static int weigh(ByteBuffer key, ByteBuffer value) {
+    return key.remaining() + value.remaining() + ENTRY_OVERHEAD;
+  }
+
+  private class Segment {
+
+    private final long capacity;
+    private final LinkedHashMap<ByteBuffer, ByteBuffer> entries;
+    private final FrequencySketch sketch;
+    private volatile long bytes;
+    // Bumped by every invalidation, see stamp()
+    private volatile long stamp;
+
+    Segment(long capacity) {
+      this.capacity = capacity;
+      this.entries = new LinkedHashMap<>(16, 0.75f, true);
+      this.sketch = eviction == Eviction.TINY_LFU ? new FrequencySketch(capacity) : null;
+      this.bytes = 0;
+      this.stamp = 0;
+    }
+
+    synchronized ByteBuffer get(ByteBuffer key, int hash, ByteBufferAllocator allocator) {
+      if (sketch != null) {
+        sketch.increment(hash);
+      }
+      ByteBuffer value = entries.get(key);
+      if (value == null) {
+        return null;
+      }
+      ByteBuffer copy = allocator == null ? ByteBuffer.allocate(value.remaining())
+          : allocator.allocate(value.remaining());
+      copy.put(value.duplicate());
+      copy.flip();
+      return copy;
+    }
+
+    synchronized void put(ByteBuffer key, ByteBuffer value, long stamp) {
+      if (stamp != this.stamp) {
+        return;
+      }
+      int weight = weigh(key, value);
+      if (weight > capacity) {
+        return;
+      }
+      remove(key);
+      Iterator<Map.Entry<ByteBuffer, ByteBuffer>> lru = entries.entrySet().iterator();
+      if (sketch != null && bytes + weight > capacity && !entries.isEmpty()) {
+        ByteBuffer eldest = entries.keySet().iterator().next();
+        if (sketch.frequency(key.hashCode()) <= sketch.frequency(eldest.hashCode())) {
+          // Not requested often enough to displace what is cached
+          return;
+        }
+      }
+      while (bytes + weight > capacity && lru.hasNext()) {
+        Map.Entry<ByteBuffer, ByteBuffer> victim = lru.next();
+        lru.remove();
+        bytes -= weigh(victim.getKey(), victim.getValue());
+        storage.release(victim.getValue());
+        evictions.increment();
+      }
+      ByteBuffer keyCopy = ByteBuffer.allocate(key.remaining());
+      keyCopy.put(key.duplicate());
+      keyCopy.flip();
+      ByteBuffer valueCopy = storage.allocate(value.remaining());
+      valueCopy.put(value.duplicate());
+      valueCopy.flip();
+      entries.put(keyCopy, valueCopy);
+      bytes += weight;
+    }
+
+    synchronized boolean invalidate(ByteBuffer key) {
+      stamp++;
+      return remove(key);
+    }
+
+    private boolean remove(ByteBuffer key) {
+      ByteBuffer value = entries.remove(key);
+      if (value == null) {
+        return false;
+      }
+      bytes -= weigh(key, value);
+      storage.release(value);
+      return true;
+    }
+
+    synchronized void clear() {
+      stamp++;
+      for (ByteBuffer value : entries.values()) {
+        storage.release(value);
+      }
+      entries.clear();
+      bytes = 0;
+    }
+  }
+
+  /**
+   * Approximate access counts (count-min sketch, 4 rows of 4-bit counters); all counts are
+   * halved periodically so that past popularity ages out.
+   */
+  private static class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(long capacityBytes) {
+      // Sized for entries averaging a few hundred bytes
+      long expected = Math.max(64, Math.min(1 << 20, capacityBytes / 256));
+      int size = Integer.highestOneBit((int) expected - 1) << 1;
+      this.table = new long[size];
+      this.mask = size - 1;
+      this.sampleSize = 10 * size;
+      this.additions = 0;
+    }
+
+    private int indexOf(int hash, int row) {
+      long h = (hash + SEEDS[row]) * SEEDS[row];
+      h += h >>> 32;
+      return (int) h & mask;
+    }
+
+    int frequency(int hash) {
+      int min = 15;
+      for (int row = 0; row < 4; row++) {
+        // Each row owns four of the word's sixteen 4-bit counters
+        int shift = ((hash >>> (row * 4)) & 3) * 4 + row * 16;
+        min = Math.min(min, (int) (table[indexOf(hash, row)] >>> shift) & 0xf);
+      }
+      return min;
+    }
+
+    void increment(int hash) {
+      boolean added = false;
+      for (int row = 0; row < 4; row++) {
+        int index = indexOf(hash, row);
+        int shift = ((hash >>> (row * 4)) & 3) * 4 + row * 16;
+        if (((table[index] >>> shift) & 0xf) < 15) {
+          table[index] += 1L << shift;
+          added = true;
+        }
+      }
+      if (added && ++additions == sampleSize) {
+        for (int i = 0; i < table.length; i++) {
+          table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+        }
+        additions /= 2;
+      }
+    }
+  }
+}
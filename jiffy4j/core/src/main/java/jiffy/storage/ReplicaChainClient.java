@@ -5,91 +5,334 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import jiffy.directory.directory_service.Client;
 import jiffy.directory.rpc_replica_chain;
-import jiffy.storage.BlockClient.CommandResponse;
-import jiffy.storage.BlockClient.CommandResponseReader;
+import jiffy.metrics.ClientMetrics;
+import jiffy.metrics.LatencyHistogram;
+import jiffy.storage.BlockConnection.ResponseHandler;
 import jiffy.storage.BlockNameParser.BlockMetadata;
 import jiffy.util.ByteBufferUtils;
 import org.apache.thrift.TException;
 import org.apache.thrift.transport.TTransportException;
 
+/**
+ * Client for a single replica chain.
+ *
+ * Requests are pipelined: up to {@code windowSize} commands may be outstanding at once, each
+ * tagged with its own client sequence number, and responses are matched back to their callers
+ * by that sequence number. The client is safe for use by multiple threads.
+ *
+ * A request that times out fails on its own: the connection is still good and may be carrying
+ * other requests, so the chain is neither reconnected nor is the request retried (a mutator
+ * may already have been applied). Only transport failures trigger recovery and retries.
+ */
 public class ReplicaChainClient implements Closeable {
 
+  static final int DEFAULT_WINDOW_SIZE = Integer.getInteger("jiffy.client.pipeline_window", 128);
+
+  /**
+   * Connection state for one incarnation of the chain: the head and tail block clients, the
+   * client ID the tail routes responses for, and the requests still awaiting a response.
+   */
+  private class Session implements ResponseHandler {
+
+    private final BlockClient head;
+    private final BlockClient tail;
+    private final long clientId;
+    private final Map<Long, CompletableFuture<List<ByteBuffer>>> pending;
+
+    Session(BlockClient head, BlockClient tail) throws TException {
+      this.head = head;
+      this.tail = tail;
+      this.pending = new ConcurrentHashMap<>();
+      try {
+        this.clientId = head.getClientId();
+        tail.registerResponseHandler(clientId, this);
+      } catch (TException | RuntimeException e) {
+        head.close();
+        tail.close();
+        throw e;
+      }
+    }
+
+    BlockClient target(ByteBuffer cmd) {
+      switch (cmdMap.getOrDefault(cmd, CommandType.invalid)) {
+        case accessor:
+          return tail;
+        case mutator:
+          return head;
+        default:
+          throw new IllegalArgumentException("Unknown command " + ByteBufferUtils.toString(cmd));
+      }
+    }
+
+    void add(long seqNo, CompletableFuture<List<ByteBuffer>> future) {
+      pending.put(seqNo, future);
+    }
+
+    void remove(long seqNo) {
+      if (pending.remove(seqNo) != null) {
+        releaseSlot();
+      }
+    }
+
+    /**
+     * Complete the request {@code seq} answers. Unlike the single-request client this replaces,
+     * a sequence number that is not pending is not an error to report as {@code !block_moved}:
+     * requests are matched by number rather than by arrival order, so it can only be the late
+     * response to a request that already timed out or failed, and it is dropped.
+     */
+    @Override
+    public void onResponse(sequence_id seq, List<ByteBuffer> result) {
+      CompletableFuture<List<ByteBuffer>> future = pending.remove(seq.getClientSeqNo());
+      if (future != null) {
+        releaseSlot();
+        future.complete(result);
+      }
+    }
+
+    @Override
+    public void onFailure(TException e) {
+      for (Long seqNo : pending.keySet()) {
+        CompletableFuture<List<ByteBuffer>> future = pending.remove(seqNo);
+        if (future != null) {
+          releaseSlot();
+          future.completeExceptionally(e);
+        }
+      }
+    }
+
+    void close() {
+      head.close();
+      tail.close();
+      onFailure(new TTransportException(TTransportException.NOT_OPEN, "Replica chain closed"));
+    }
+  }
+
+  /**
+   * An asynchronous request waiting for a free pipeline slot.
+   */
+  private static class DeferredRequest {
+
+    private final List<ByteBuffer> args;
+    private final CompletableFuture<List<ByteBuffer>> future;
+
+    DeferredRequest(List<ByteBuffer> args, CompletableFuture<List<ByteBuffer>> future) {
+      this.args = args;
+      this.future = future;
+    }
+  }
+
   private Client fs;
   private String path;
-  private sequence_id seq;
-  private rpc_replica_chain chain;
-  private BlockClient head;
-  private BlockClient tail;
-  private CommandResponseReader responseReader;
+  private volatile rpc_replica_chain chain;
+  private volatile Session session;
+  private volatile boolean closed;
+  private final AtomicLong seqNo;
+  private final Semaphore window;
+  private final Queue<DeferredRequest> backlog;
   private BlockClientCache cache;
-  private boolean inFlight;
+  private int timeoutMs;
+  private int epoch;
+  private final ClientMetrics metrics;
+  private volatile LatencyHistogram latency;
+  private final Object latencyLock = new Object();
 
   private HashMap<ByteBuffer, CommandType> cmdMap;
 
-  ReplicaChainClient(Client fs, String path, BlockClientCache cache, rpc_replica_chain chain,
-      HashMap<ByteBuffer, CommandType> cmdMap)
+  ReplicaChainClient(Client fs, String path, BlockClientCache cache, int timeoutMs,
+      rpc_replica_chain chain, HashMap<ByteBuffer, CommandType> cmdMap)
+      throws TException {
+    this(fs, path, cache, timeoutMs, chain, cmdMap, DEFAULT_WINDOW_SIZE);
+  }
+
+  ReplicaChainClient(Client fs, String path, BlockClientCache cache, int timeoutMs,
+      rpc_replica_chain chain, HashMap<ByteBuffer, CommandType> cmdMap, int windowSize)
       throws TException {
     if (chain == null || chain.block_ids.size() == 0) {
       throw new IllegalArgumentException("Chain length must be >= 1");
     }
+    if (windowSize < 1) {
+      throw new IllegalArgumentException("Window size must be >= 1");
+    }
     this.fs = fs;
     this.path = path;
     this.cache = cache;
+    this.timeoutMs = timeoutMs;
     this.chain = chain;
     this.cmdMap = cmdMap;
+    this.seqNo = new AtomicLong(0);
+    this.window = new Semaphore(windowSize);
+    this.backlog = new ConcurrentLinkedQueue<>();
+    this.epoch = 0;
+    this.closed = false;
+    this.metrics = ClientMetrics.get();
     connect();
   }
 
   @Override
-  public void close() {
-    head.close();
-    tail.close();
+  public synchronized void close() {
+    closed = true;
+    disconnect();
+    synchronized (latencyLock) {
+      if (latency != null) {
+        metrics.releasePartition(path, chain.name);
+        latency = null;
+      }
+    }
+  }
+
+  private void disconnect() {
+    if (session != null) {
+      session.close();
+    }
+  }
+
+  /**
+   * Latency histogram for this chain's partition, created on first use so that clients built
+   * while metrics are disabled do not register one, and given up on close; null once closed.
+   */
+  private LatencyHistogram latency() {
+    LatencyHistogram h = latency;
+    if (h == null) {
+      synchronized (latencyLock) {
+        h = latency;
+        if (h == null && !closed) {
+          h = metrics.partition(path, chain.name);
+          latency = h;
+        }
+      }
+    }
+    return h;
+  }
+
+  int getTimeoutMs() {
+    return timeoutMs;
   }
 
   public rpc_replica_chain getChain() {
     return chain;
   }
 
-  private void sendCommandRequest(BlockClient client, List<ByteBuffer> args)
+  /**
+   * Send a command without waiting for its response; blocks only while the window is full.
+   */
+  CompletableFuture<List<ByteBuffer>> sendCommandRequest(List<ByteBuffer> args)
       throws TException {
-    if (inFlight) {
-      throw new IllegalStateException("Cannot have more than one request in-flight");
+    try {
+      if (!window.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+        throw new TTransportException(TTransportException.TIMED_OUT,
+            "Timed out waiting for a free pipeline slot");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TTransportException(e);
     }
-    client.sendCommandRequest(seq, args);
-    inFlight = true;
+    CompletableFuture<List<ByteBuffer>> future = new CompletableFuture<>();
+    send(args, future);
+    return future;
   }
 
-  void sendCommandRequest(List<ByteBuffer> args) throws TException {
-    ByteBuffer cmd = args.get(0);
-    switch (cmdMap.getOrDefault(cmd, CommandType.invalid)) {
-      case accessor:
-        sendCommandRequest(tail, args);
-        break;
-      case mutator:
-        sendCommandRequest(head, args);
-        break;
-      case invalid:
-        throw new IllegalArgumentException("Unknown command " + ByteBufferUtils.toString(cmd));
+  /**
+   * Send a command without ever blocking the caller: if the window is full, the command is
+   * queued and sent as soon as an earlier one completes.
+   */
+  private CompletableFuture<List<ByteBuffer>> sendCommandRequestAsync(List<ByteBuffer> args) {
+    CompletableFuture<List<ByteBuffer>> future = new CompletableFuture<>();
+    if (backlog.isEmpty() && window.tryAcquire()) {
+      send(args, future);
+    } else {
+      backlog.add(new DeferredRequest(args, future));
+      drainBacklog();
+    }
+    return AsyncSupport.withTimeout(future, timeoutMs);
+  }
+
+  /**
+   * Send a command holding an acquired window slot; failures complete the future.
+   */
+  private void send(List<ByteBuffer> args, CompletableFuture<List<ByteBuffer>> future) {
+    Session s = session;
+    long no = seqNo.getAndIncrement();
+    s.add(no, future);
+    future.whenComplete((r, e) -> {
+      if (e != null) {
+        // Timed out or cancelled: stop waiting for the response and free its slot
+        s.remove(no);
+      }
+    });
+    try {
+      s.target(args.get(0)).sendCommandRequest(s.clientId, no, args);
+    } catch (TException | RuntimeException e) {
+      s.remove(no);
+      future.completeExceptionally(e);
     }
   }
 
-  private List<ByteBuffer> receiveCommandResponse() throws TException {
-    CommandResponse response = responseReader.receiveResponse();
+  private void releaseSlot() {
+    window.release();
+    if (!backlog.isEmpty()) {
+      drainBacklog();
+    }
+  }
+
+  private void drainBacklog() {
+    while (!backlog.isEmpty() && window.tryAcquire()) {
+      DeferredRequest request = backlog.poll();
+      if (request == null) {
+        window.release();
+        return;
+      }
+      if (request.future.isDone()) {
+        // Timed out while queued
+        window.release();
+        continue;
+      }
+      send(request.args, request.future);
+    }
+  }
+
+  private static List<ByteBuffer> redirectedArgs(List<ByteBuffer> args) {
+    List<ByteBuffer> newArgs = new ArrayList<>(args);
+    newArgs.add(Responses.REDIRECTED);
+    return newArgs;
+  }
 
-    if (response.clientSeqNo != seq.getClientSeqNo()) {
-      throw new IllegalStateException(
-          "SEQ: Expected=" + seq.getClientSeqNo() + " Received=" + response.clientSeqNo);
+  private List<ByteBuffer> receiveCommandResponse(CompletableFuture<List<ByteBuffer>> future)
+      throws TException {
+    try {
+      return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TTransportException(e);
+    } catch (TimeoutException e) {
+      future.cancel(false);
+      throw new TTransportException(TTransportException.TIMED_OUT,
+          "Timed out waiting for command response");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof TException) {
+        throw (TException) e.getCause();
+      }
+      throw new TTransportException(e.getCause());
     }
-    seq.client_seq_no++;
-    inFlight = false;
-    return response.result;
   }
 
-  private List<ByteBuffer> runCommand(BlockClient client, List<ByteBuffer> args) throws TException {
-    sendCommandRequest(client, args);
-    return receiveCommandResponse();
+  /**
+   * Whether {@code e} is a per-request timeout rather than a failure of the connection.
+   */
+  private static boolean isTimeout(Throwable e) {
+    return e instanceof TTransportException
+        && ((TTransportException) e).getType() == TTransportException.TIMED_OUT;
   }
 
   List<ByteBuffer> runCommand(List<ByteBuffer> args) throws TException {
@@ -97,78 +340,184 @@ public class ReplicaChainClient implements Closeable {
     boolean retry = false;
     int numRetriesRemaining = 3;
     ByteBuffer cmd = args.get(0);
+    CommandType type = cmdMap.getOrDefault(cmd, CommandType.invalid);
+    if (type == CommandType.invalid) {
+      throw new IllegalArgumentException("Unknown command " + ByteBufferUtils.toString(cmd));
+    }
+    long start = metrics.start();
     while (response == null) {
+      int seenEpoch = currentEpoch();
       try {
-        switch (cmdMap.getOrDefault(cmd, CommandType.invalid)) {
-          case accessor:
-            response = runCommand(tail, args);
-            break;
-          case mutator:
-            response = runCommand(head, args);
-            if (retry && ByteBufferUtils.toString(response.get(0)).equals("!duplicate_key")) {
-              response.set(0, ByteBufferUtils.fromString("!ok"));
-            }
-            break;
-          case invalid:
-            throw new IllegalArgumentException("Unknown command " + ByteBufferUtils.toString(cmd));
+        response = receiveCommandResponse(sendCommandRequest(args));
+        if (type == CommandType.mutator && retry
+            && Responses.is(response.get(0), Responses.DUPLICATE_KEY)) {
+          response.set(0, Responses.of(Responses.OK));
         }
       } catch (TTransportException e) {
-        if (numRetriesRemaining > 0) {
-          chain = fs.resloveFailures(path, chain);
-          invalidateCache();
-          connect();
+        if (numRetriesRemaining > 0 && !isTimeout(e)) {
+          metrics.retry();
+          recover(seenEpoch);
           retry = true;
           numRetriesRemaining--;
         } else {
           throw e;
         }
-      } catch (IllegalStateException e) { // TODO: This is very iffy
-        response = new ArrayList<>();
-        response.add(ByteBufferUtils.fromString("!block_moved"));
       }
     }
+    if (metrics.isEnabled()) {
+      metrics.recordCommand(cmd, latency(), start);
+    }
     return response;
   }
 
-  private List<ByteBuffer> runCommandRedirected(BlockClient client, List<ByteBuffer> args)
-      throws TException {
-    List<ByteBuffer> newArgs = new ArrayList<>(args);
-    newArgs.add(ByteBufferUtils.fromString("!redirected"));
-    return runCommand(client, newArgs);
+  /**
+   * Run a batch of commands, keeping up to a window's worth in flight, and return their
+   * responses in order. Commands the pipeline could not complete are run again through
+   * {@link #runCommand(List)}, except for mutators that were sent: the chain may already have
+   * applied them, so the transport error is thrown rather than applying them twice.
+   */
+  List<List<ByteBuffer>> runCommands(List<List<ByteBuffer>> commands) throws TException {
+    List<CompletableFuture<List<ByteBuffer>>> futures = new ArrayList<>(commands.size());
+    for (List<ByteBuffer> args : commands) {
+      try {
+        futures.add(sendCommandRequest(args));
+      } catch (TTransportException e) {
+        if (isTimeout(e)) {
+          throw e;
+        }
+        break;
+      }
+    }
+    List<List<ByteBuffer>> responses = new ArrayList<>(commands.size());
+    for (int i = 0; i < commands.size(); i++) {
+      List<ByteBuffer> response = null;
+      if (i < futures.size()) {
+        try {
+          response = receiveCommandResponse(futures.get(i));
+        } catch (TTransportException e) {
+          if (isTimeout(e) || cmdMap.get(commands.get(i).get(0)) == CommandType.mutator) {
+            throw e;
+          }
+        }
+      }
+      if (response == null) {
+        // Fall back to the retrying path for whatever the pipeline could not complete
+        response = runCommand(commands.get(i));
+      }
+      responses.add(response);
+    }
+    return responses;
   }
 
-  List<ByteBuffer> runCommandRedirected(List<ByteBuffer> args) throws TException {
+  /**
+   * Asynchronous counterpart of {@link #runCommand(List)}: transport failures are recovered from
+   * on a background thread and the command is retried, so no caller thread ever blocks. Timeouts
+   * fail the command without recovery, as they do for {@link #runCommand(List)}.
+   */
+  CompletableFuture<List<ByteBuffer>> runCommandAsync(List<ByteBuffer> args) {
+    CompletableFuture<List<ByteBuffer>> result = new CompletableFuture<>();
     ByteBuffer cmd = args.get(0);
-    switch (cmdMap.getOrDefault(cmd, CommandType.invalid)) {
-      case accessor:
-        return runCommandRedirected(tail, args);
-      case mutator:
-        return runCommandRedirected(head, args);
-      case invalid:
-        throw new IllegalArgumentException("Unknown command " + ByteBufferUtils.toString(cmd));
+    CommandType type = cmdMap.getOrDefault(cmd, CommandType.invalid);
+    if (type == CommandType.invalid) {
+      result.completeExceptionally(
+          new IllegalArgumentException("Unknown command " + ByteBufferUtils.toString(cmd)));
+      return result;
+    }
+    long start = metrics.start();
+    if (metrics.isEnabled()) {
+      result.thenRun(() -> metrics.recordCommand(cmd, latency(), start));
+    }
+    runCommandAsync(args, type, 3, false, result);
+    return result;
+  }
+
+  private void runCommandAsync(List<ByteBuffer> args, CommandType type, int numRetriesRemaining,
+      boolean retry, CompletableFuture<List<ByteBuffer>> result) {
+    int seenEpoch = currentEpoch();
+    sendCommandRequestAsync(args).whenComplete((response, ex) -> {
+      if (ex == null) {
+        if (type == CommandType.mutator && retry
+            && Responses.is(response.get(0), Responses.DUPLICATE_KEY)) {
+          response.set(0, Responses.of(Responses.OK));
+        }
+        result.complete(response);
+        return;
+      }
+      Throwable cause = AsyncSupport.unwrap(ex);
+      if (cause instanceof TTransportException && !isTimeout(cause) && numRetriesRemaining > 0
+          && !closed) {
+        metrics.retry();
+        AsyncSupport.blocking().execute(() -> {
+          try {
+            recover(seenEpoch);
+            runCommandAsync(args, type, numRetriesRemaining - 1, true, result);
+          } catch (TException | RuntimeException e) {
+            result.completeExceptionally(e);
+          }
+        });
+      } else {
+        result.completeExceptionally(cause);
+      }
+    });
+  }
+
+  List<ByteBuffer> runCommandRedirected(List<ByteBuffer> args) throws TException {
+    return receiveCommandResponse(sendCommandRequest(redirectedArgs(args)));
+  }
+
+  CompletableFuture<List<ByteBuffer>> runCommandRedirectedAsync(List<ByteBuffer> args) {
+    return sendCommandRequestAsync(redirectedArgs(args));
+  }
+
+  private synchronized int currentEpoch() {
+    return epoch;
+  }
+
+  /**
+   * Resolve chain failures and reconnect, unless another caller already did so since
+   * {@code seenEpoch}.
+   */
+  private synchronized void recover(int seenEpoch) throws TException {
+    if (closed) {
+      throw new TTransportException(TTransportException.NOT_OPEN, "Replica chain closed");
+    }
+    if (seenEpoch != epoch) {
+      return;
+    }
+    discardFailedConnections();
+    metrics.failureResolution();
+    synchronized (fs) {
+      chain = fs.resloveFailures(path, chain);
     }
-    throw new IllegalStateException("Reached invalid state");
+    connect();
   }
 
-  private void connect() throws TException {
-    this.seq = new sequence_id(-1, 0, -1);
+  private synchronized void connect() throws TException {
+    disconnect();
     BlockMetadata h = BlockNameParser.parse(chain.block_ids.get(0));
-    this.head = new BlockClient(cache, h.getHost(), h.getServicePort(), h.getBlockId());
-    this.seq.setClientId(this.head.getClientId());
+    BlockClient head = new BlockClient(cache, h.getHost(), h.getServicePort(), h.getBlockId(),
+        timeoutMs);
+    BlockClient tail;
     if (chain.block_ids.size() == 1) {
-      this.tail = this.head;
+      tail = head;
     } else {
-      BlockMetadata t = BlockNameParser.parse(chain.block_ids.get(chain.block_ids.size() - 1));
-      this.tail = new BlockClient(cache, t.getHost(), t.getServicePort(), t.getBlockId());
+      try {
+        BlockMetadata t = BlockNameParser.parse(chain.block_ids.get(chain.block_ids.size() - 1));
+        tail = new BlockClient(cache, t.getHost(), t.getServicePort(), t.getBlockId(), timeoutMs);
+      } catch (TException | RuntimeException e) {
+        head.close();
+        throw e;
+      }
     }
-    this.responseReader = this.tail.newCommandResponseReader(seq.getClientId());
-    this.inFlight = false;
+    this.session = new Session(head, tail);
+    this.epoch++;
   }
 
-  private void invalidateCache() {
-    for (String block : chain.block_ids) {
-      BlockMetadata m = BlockNameParser.parse(block);
-      cache.remove(m.getHost(), m.getServicePort());
+  private void discardFailedConnections() {
+    Session s = session;
+    if (s != null) {
+      s.head.discardIfFailed();
+      s.tail.discardIfFailed();
     }
   }
 }
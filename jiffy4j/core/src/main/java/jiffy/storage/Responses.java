@@ -0,0 +1,75 @@
+package jiffy.storage;
+
+import java.nio.ByteBuffer;
+import jiffy.util.ByteBufferUtils;
+
+/**
+ * Status responses returned by storage servers, and allocation-free tests for them.
+ *
+ * Responses are classified by comparing their leading bytes in place, so values (which may be
+ * megabytes long) are never decoded just to check whether they carry a status. None of the
+ * tests move the buffer's position. The constants are shared and read-only; hand out
+ * {@link #of(ByteBuffer)} rather than a constant itself.
+ */
+public class Responses {
+
+  public static final ByteBuffer OK = status("!ok");
+  public static final ByteBuffer KEY_NOT_FOUND = status("!key_not_found");
+  public static final ByteBuffer DUPLICATE_KEY = status("!duplicate_key");
+  public static final ByteBuffer BLOCK_MOVED = status("!block_moved");
+  public static final ByteBuffer FULL = status("!full");
+  public static final ByteBuffer REDO = status("!redo");
+  public static final ByteBuffer MSG_NOT_FOUND = status("!msg_not_found");
+  public static final ByteBuffer EXPORTING = status("!exporting");
+  public static final ByteBuffer SPLIT_READ = status("!split_read");
+  public static final ByteBuffer SPLIT_WRITE = status("!split_write");
+  public static final ByteBuffer TRUE = status("true");
+
+  static final ByteBuffer REDIRECTED = status("!redirected");
+  static final ByteBuffer BLOCK_ALLOCATED = status("!block_allocated");
+  static final ByteBuffer BLOCKS_NOT_READY = status("!blocks_not_ready");
+  static final ByteBuffer INVALID_ARGUMENT = status("!invalid_argument");
+
+  private static final byte STATUS_MARKER = '!';
+
+  private static ByteBuffer status(String status) {
+    return ByteBufferUtils.fromString(status).asReadOnlyBuffer();
+  }
+
+  /**
+   * Whether {@code response} carries a status rather than a value.
+   */
+  public static boolean isStatus(ByteBuffer response) {
+    return response.hasRemaining() && response.get(response.position()) == STATUS_MARKER;
+  }
+
+  /**
+   * Whether {@code response} is exactly {@code status}.
+   */
+  public static boolean is(ByteBuffer response, ByteBuffer status) {
+    return response.remaining() == status.remaining() && startsWith(response, status);
+  }
+
+  public static boolean startsWith(ByteBuffer response, ByteBuffer prefix) {
+    int n = prefix.remaining();
+    if (response.remaining() < n) {
+      return false;
+    }
+    int r = response.position();
+    int p = prefix.position();
+    for (int i = 0; i < n; i++) {
+      if (response.get(r + i) != prefix.get(p + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A private view of {@code status} that callers may consume freely; its position and limit
+   * are independent of the shared constant's, and its content cannot be changed.
+   */
+  static ByteBuffer of(ByteBuffer status) {
+    return status.duplicate();
+  }
+}
@@ -0,0 +1,228 @@
+package jiffy.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import jiffy.directory.rpc_data_status;
+import jiffy.directory.rpc_replica_chain;
+import org.apache.thrift.TException;
+
+/**
+ * Immutable, versioned snapshot of a hash table's partitions and the clients serving them.
+ *
+ * Keys are routed through a precomputed map from each of the {@link HashSlot#SLOT_MAX} hash
+ * slots to its partition. A new version is built from the previous one by diffing data
+ * statuses: partitions whose name and replica chain are unchanged keep their clients (and any
+ * requests in flight on them), and only new or moved partitions are connected.
+ *
+ * While a partition is being exported, each table also caches clients for the redirect targets
+ * named in {@code !exporting} responses, so that redirected requests share connections and
+ * client IDs; they are retired together with the table.
+ */
+class RoutingTable {
+
+  /**
+   * Opens the channels serving a partition.
+   */
+  interface ChannelFactory {
+
+    ReplicaChainClient[] open(rpc_replica_chain chain) throws TException;
+  }
+
+  /**
+   * Opens the client for a redirect target.
+   */
+  interface RedirectFactory {
+
+    ReplicaChainClient open(rpc_replica_chain chain) throws TException;
+  }
+
+  private final long version;
+  private final rpc_replica_chain[] chains;
+  private final ReplicaChainClient[][] channels;
+  // Partition index per hash slot; char holds the full 0..65535 range unsigned
+  private final char[] slotMap;
+  // Export targets reported by !exporting responses, valid until this table is replaced
+  private final ConcurrentHashMap<String, CompletableFuture<ReplicaChainClient>> redirects;
+  private volatile boolean retired;
+
+  private RoutingTable(long version, rpc_replica_chain[] chains,
+      ReplicaChainClient[][] channels) {
+    this.version = version;
+    this.chains = chains;
+    this.channels = channels;
+    this.slotMap = buildSlotMap(chains);
+    this.redirects = new ConcurrentHashMap<>();
+    this.retired = false;
+  }
+
+  /**
+   * Build the routing table for {@code status}, reusing the clients of {@code previous} (which
+   * may be null) for unchanged partitions.
+   */
+  static RoutingTable build(RoutingTable previous, rpc_data_status status,
+      ChannelFactory factory) throws TException {
+    int n = status.data_blocks.size();
+    Map<String, Integer> previousIndex = new HashMap<>();
+    if (previous != null) {
+      for (int i = 0; i < previous.chains.length; i++) {
+        previousIndex.put(identity(previous.chains[i]), i);
+      }
+    }
+    rpc_replica_chain[] chains = new rpc_replica_chain[n];
+    ReplicaChainClient[][] channels = new ReplicaChainClient[n][];
+    List<ReplicaChainClient[]> opened = new ArrayList<>();
+    try {
+      for (int i = 0; i < n; i++) {
+        chains[i] = status.data_blocks.get(i);
+        Integer reuse = previousIndex.get(identity(chains[i]));
+        if (reuse != null) {
+          channels[i] = previous.channels[reuse];
+        } else {
+          channels[i] = factory.open(chains[i]);
+          opened.add(channels[i]);
+        }
+      }
+    } catch (TException | RuntimeException e) {
+      for (ReplicaChainClient[] c : opened) {
+        close(c);
+      }
+      throw e;
+    }
+    return new RoutingTable(previous == null ? 0 : previous.version + 1, chains, channels);
+  }
+
+  private static String identity(rpc_replica_chain chain) {
+    return chain.name + "@" + chain.block_ids;
+  }
+
+  private static char[] buildSlotMap(rpc_replica_chain[] chains) {
+    Integer[] order = new Integer[chains.length];
+    int[] begin = new int[chains.length];
+    for (int i = 0; i < chains.length; i++) {
+      order[i] = i;
+      begin[i] = Integer.parseInt(chains[i].name.split("_")[0]);
+    }
+    Arrays.sort(order, (a, b) -> Integer.compare(begin[a], begin[b]));
+    char[] slotMap = new char[HashSlot.SLOT_MAX];
+    for (int k = 0; k < order.length; k++) {
+      int from = begin[order[k]];
+      int to = k + 1 < order.length ? begin[order[k + 1]] : HashSlot.SLOT_MAX;
+      Arrays.fill(slotMap, Math.max(from, 0), Math.min(to, HashSlot.SLOT_MAX),
+          (char) (int) order[k]);
+    }
+    return slotMap;
+  }
+
+  long version() {
+    return version;
+  }
+
+  int numPartitions() {
+    return chains.length;
+  }
+
+  int index(ByteBuffer key) {
+    return slotMap[HashSlot.get(key)];
+  }
+
+  ReplicaChainClient chain(ByteBuffer key) {
+    return chainAt(index(key));
+  }
+
+  /**
+   * The calling thread's channel to partition {@code index}.
+   */
+  ReplicaChainClient chainAt(int index) {
+    ReplicaChainClient[] c = channels[index];
+    if (c.length == 1) {
+      return c[0];
+    }
+    return c[(int) (Thread.currentThread().getId() % c.length)];
+  }
+
+  /**
+   * The client for redirect target {@code target}, shared by every request redirected there
+   * while this table is current. The first caller opens it on {@code executor}.
+   */
+  CompletableFuture<ReplicaChainClient> redirect(rpc_replica_chain target,
+      RedirectFactory factory, Executor executor) {
+    String key = String.valueOf(target.block_ids);
+    CompletableFuture<ReplicaChainClient> created = new CompletableFuture<>();
+    CompletableFuture<ReplicaChainClient> existing = redirects.putIfAbsent(key, created);
+    if (existing != null) {
+      return existing;
+    }
+    executor.execute(() -> {
+      try {
+        ReplicaChainClient client = factory.open(target);
+        created.complete(client);
+        if (retired) {
+          // Raced with a refresh; nobody will retire this one with the table
+          redirects.remove(key, created);
+          AsyncSupport.schedule(client::close, client.getTimeoutMs());
+        }
+      } catch (TException | RuntimeException e) {
+        redirects.remove(key, created);
+        created.completeExceptionally(e);
+      }
+    });
+    return created;
+  }
+
+  /**
+   * Clients of this table that {@code next} no longer uses, including all redirect targets;
+   * afterwards this table no longer caches redirect targets.
+   */
+  List<ReplicaChainClient> retiredBy(RoutingTable next) {
+    Set<ReplicaChainClient[]> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+    kept.addAll(Arrays.asList(next.channels));
+    List<ReplicaChainClient> clients = new ArrayList<>();
+    for (ReplicaChainClient[] c : channels) {
+      if (!kept.contains(c)) {
+        clients.addAll(Arrays.asList(c));
+      }
+    }
+    clients.addAll(retireRedirects());
+    return clients;
+  }
+
+  private List<ReplicaChainClient> retireRedirects() {
+    retired = true;
+    List<ReplicaChainClient> clients = new ArrayList<>();
+    for (String key : redirects.keySet()) {
+      CompletableFuture<ReplicaChainClient> future = redirects.remove(key);
+      if (future != null && future.isDone() && !future.isCompletedExceptionally()) {
+        clients.add(future.join());
+      }
+      // Targets still being opened are closed by their opener once it sees the retired flag
+    }
+    return clients;
+  }
+
+  void close() {
+    for (ReplicaChainClient[] c : channels) {
+      close(c);
+    }
+    for (ReplicaChainClient client : retireRedirects()) {
+      client.close();
+    }
+  }
+
+  private static void close(ReplicaChainClient[] c) {
+    for (ReplicaChainClient client : c) {
+      if (client != null) {
+        client.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package jiffy.storage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import jiffy.storage.block_request_service.Client;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * Block connection over a non-blocking socket channel, driven by a shared
+ * {@link BlockSelector} thread instead of a thread of its own.
+ *
+ * Requests are framed in the calling thread into a reused per-connection buffer and written
+ * straight to the channel; only whatever the socket cannot take right away is copied, queued and
+ * written by the selector once the channel becomes writable. Incoming frames are reassembled by
+ * the selector and demultiplexed as usual.
+ */
+class SelectorBlockConnection extends BlockConnection {
+
+  private static final int INITIAL_READ_BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_FRAME_SIZE = 16384000;
+
+  /**
+   * Collects one framed message and hands it to the connection on flush.
+   */
+  private class FrameOutput extends TTransport {
+
+    private byte[] buf = new byte[1024];
+    private int len = 0;
+
+    @Override
+    public boolean isOpen() {
+      return !broken;
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws TTransportException {
+      throw new TTransportException(TTransportException.UNKNOWN, "Write-only transport");
+    }
+
+    @Override
+    public void write(byte[] b, int off, int n) {
+      if (len + n > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+      }
+      System.arraycopy(b, off, buf, len, n);
+      len += n;
+    }
+
+    @Override
+    public void flush() throws TTransportException {
+      ByteBuffer frame = ByteBuffer.wrap(buf, 0, len);
+      len = 0;
+      enqueue(frame);
+    }
+  }
+
+  private final SocketChannel channel;
+  private final BlockSelector selector;
+  private final Client client;
+
+  private final Queue<ByteBuffer> writeQueue;
+  private ByteBuffer readBuffer;
+
+  SelectorBlockConnection(String host, int port, int timeoutMs) throws TTransportException {
+    super(host, port, timeoutMs);
+    this.channel = open();
+    this.selector = BlockSelector.next();
+    this.client = new Client(new TBinaryProtocol(new TFramedTransport(new FrameOutput())));
+    this.writeQueue = new ArrayDeque<>();
+    this.readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    selector.execute(() -> {
+      try {
+        channel.register(selector.selector(), SelectionKey.OP_READ, this);
+        synchronized (writeQueue) {
+          if (!writeQueue.isEmpty()) {
+            channel.keyFor(selector.selector())
+                .interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          }
+        }
+      } catch (ClosedChannelException e) {
+        fail(new TTransportException(TTransportException.NOT_OPEN, e));
+      }
+    });
+  }
+
+  private SocketChannel open() throws TTransportException {
+    IOException ex = null;
+    int attemptsLeft = 3;
+    while (attemptsLeft > 0) {
+      SocketChannel ch = null;
+      try {
+        ch = SocketChannel.open();
+        ch.socket().setTcpNoDelay(true);
+        ch.socket().connect(new InetSocketAddress(host, port), timeoutMs);
+        ch.configureBlocking(false);
+        return ch;
+      } catch (IOException e) {
+        ex = e;
+        attemptsLeft--;
+        closeQuietly(ch);
+      }
+    }
+    throw new TTransportException(TTransportException.NOT_OPEN,
+        "Could not connect to " + host + ":" + port, ex);
+  }
+
+  /**
+   * Write {@code frame} now if the socket can take it; otherwise queue a copy of what is left,
+   * since the frame's bytes are reused for the next request.
+   */
+  private void enqueue(ByteBuffer frame) throws TTransportException {
+    try {
+      synchronized (writeQueue) {
+        if (writeQueue.isEmpty()) {
+          channel.write(frame);
+          if (!frame.hasRemaining()) {
+            return;
+          }
+          writeQueue.add(copyOf(frame));
+          selector.execute(this::enableWrites);
+        } else {
+          writeQueue.add(copyOf(frame));
+        }
+      }
+    } catch (IOException e) {
+      TTransportException ex = new TTransportException(TTransportException.UNKNOWN, e);
+      fail(ex);
+      throw ex;
+    }
+  }
+
+  private static ByteBuffer copyOf(ByteBuffer frame) {
+    ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+    copy.put(frame);
+    copy.flip();
+    return copy;
+  }
+
+  private void enableWrites() {
+    SelectionKey key = channel.keyFor(selector.selector());
+    if (key != null && key.isValid()) {
+      key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+  }
+
+  /**
+   * Called on the selector thread when the channel can take more bytes.
+   */
+  void onWritable(SelectionKey key) {
+    try {
+      synchronized (writeQueue) {
+        ByteBuffer frame;
+        while ((frame = writeQueue.peek()) != null) {
+          channel.write(frame);
+          if (frame.hasRemaining()) {
+            return;
+          }
+          writeQueue.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+      }
+    } catch (IOException e) {
+      fail(new TTransportException(TTransportException.UNKNOWN, e));
+    }
+  }
+
+  /**
+   * Called on the selector thread when the channel has bytes to read; processes every complete
+   * frame received so far.
+   */
+  void onReadable() {
+    try {
+      if (channel.read(readBuffer) < 0) {
+        fail(new TTransportException(TTransportException.END_OF_FILE,
+            "Connection closed by " + host + ":" + port));
+        return;
+      }
+      readBuffer.flip();
+      while (readBuffer.remaining() >= 4) {
+        int size = readBuffer.getInt(readBuffer.position());
+        if (size < 0 || size > MAX_FRAME_SIZE) {
+          throw new TTransportException(TTransportException.CORRUPTED_DATA,
+              "Invalid frame size " + size + " from " + host + ":" + port);
+        }
+        if (readBuffer.remaining() < 4 + size) {
+          if (readBuffer.capacity() < 4 + size) {
+            ByteBuffer larger = ByteBuffer.allocate(4 + size);
+            larger.put(readBuffer);
+            readBuffer = larger;
+            return;
+          }
+          break;
+        }
+        readBuffer.getInt();
+        // Decoded binaries are views over the frame, so every frame needs its own array
+        byte[] frame = new byte[size];
+        readBuffer.get(frame);
+        processMessage(new TBinaryProtocol(new TMemoryInputTransport(frame)));
+      }
+      readBuffer.compact();
+    } catch (IOException e) {
+      fail(new TTransportException(TTransportException.UNKNOWN, e));
+    } catch (TException e) {
+      fail(e);
+    }
+  }
+
+  @Override
+  Client client() {
+    return client;
+  }
+
+  @Override
+  boolean transportHealthy() {
+    return channel.isOpen();
+  }
+
+  @Override
+  void closeTransport() {
+    closeQuietly(channel);
+    synchronized (writeQueue) {
+      writeQueue.clear();
+    }
+  }
+
+  private static void closeQuietly(SocketChannel ch) {
+    if (ch != null) {
+      try {
+        ch.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+    }
+  }
+}
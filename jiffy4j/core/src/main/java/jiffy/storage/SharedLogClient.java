@@ -0,0 +1,420 @@
+package jiffy.storage;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import jiffy.directory.directory_service.Client;
+import jiffy.directory.rpc_data_status;
+import jiffy.directory.rpc_replica_chain;
+import jiffy.directory.rpc_storage_mode;
+import jiffy.util.ByteBufferUtils;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * Client for a shared log.
+ *
+ * Each log entry carries a position chosen by the writer, its data, and one or more logical
+ * streams it belongs to; scans return the data of the entries in a range of positions that
+ * belong to any of the requested streams. Entries are appended to the partitions {@code 0, 1,
+ * ...} in turn: an entry never spans partitions, and the client asks the server for more
+ * partitions before writing entries that would not fit. Scans and trims go to every partition
+ * holding part of the range in parallel, each clipped to the positions of that partition: the
+ * server rejects ranges starting outside a partition. The first position of each partition is
+ * recorded in the log's tags by the client that writes to it first. Partitions written by
+ * clients that do not record it are sent the range clipped only by the positions that are
+ * known, and a partition rejecting that range is taken to hold none of it, as the other
+ * clients do.
+ *
+ * Which partition to write to is worked out from what this client wrote, as in the other
+ * clients, so concurrent writers should each write to their own log. The client tracks its
+ * write position and is not safe for use by multiple threads.
+ */
+public class SharedLogClient extends DataStructureClient implements Closeable {
+
+  private static final String AUTO_SCALE_TAG = "shared_log.auto_scale";
+  private static final String FIRST_POSITION_TAG = "shared_log.first_position.";
+  private static final long MAX_ALLOCATION_BACKOFF_MS = 64;
+
+  private List<ReplicaChainClient> blocks;
+  // Position of the first entry of each partition, or -1 while it holds none that we know of
+  private List<Long> firstPositions;
+  private boolean autoScale;
+  private long blockSize;
+  private int partition;
+  private long offset;
+
+  public SharedLogClient(Client fs, String path, rpc_data_status dataStatus, int timeoutMs)
+      throws TException {
+    super(fs, path, dataStatus, timeoutMs);
+    this.blocks = new ArrayList<>(dataStatus.data_blocks.size());
+    this.firstPositions = new ArrayList<>(dataStatus.data_blocks.size());
+    String tag = dataStatus.tags == null ? null : dataStatus.tags.get(AUTO_SCALE_TAG);
+    this.autoScale = tag == null || Boolean.parseBoolean(tag);
+    try {
+      addBlocks(dataStatus.data_blocks);
+      this.blockSize = ByteBufferUtils.toLong(blocks.get(0)
+          .runCommand(Collections.singletonList(SharedLogCommands.GET_STORAGE_CAPACITY)).get(1));
+    } catch (TException | RuntimeException e) {
+      close();
+      throw e;
+    }
+    this.partition = blocks.size() - 1;
+    this.offset = 0;
+  }
+
+  private void addBlocks(List<rpc_replica_chain> chains) throws TException {
+    // Partitions this client allocated may not have reached the directory yet
+    for (int i = blocks.size(); i < chains.size(); i++) {
+      addBlock(chains.get(i));
+    }
+    for (int i = 0; i < firstPositions.size(); i++) {
+      String first = dataStatus.tags == null ? null : dataStatus.tags.get(FIRST_POSITION_TAG + i);
+      if (first != null && firstPositions.get(i) < 0) {
+        firstPositions.set(i, Long.parseLong(first));
+      }
+    }
+  }
+
+  private void addBlock(rpc_replica_chain chain) throws TException {
+    blocks.add(new ReplicaChainClient(fs, path, cache, timeoutMs, chain,
+        SharedLogCommands.CMD_TYPES));
+    firstPositions.add(-1L);
+  }
+
+  @Override
+  public void close() {
+    for (ReplicaChainClient block : blocks) {
+      block.close();
+    }
+  }
+
+  /**
+   * Pick up partitions added by other clients; partitions are never removed from a log.
+   */
+  @Override
+  void refresh() throws TException {
+    synchronized (fs) {
+      dataStatus = fs.dstatus(path);
+    }
+    addBlocks(dataStatus.data_blocks);
+  }
+
+  @Override
+  ByteBuffer handleRedirect(List<ByteBuffer> args, ByteBuffer response) {
+    return response;
+  }
+
+  /**
+   * Append an entry at position {@code pos}; returns {@code !ok}.
+   */
+  public ByteBuffer write(long pos, ByteBuffer data, List<ByteBuffer> streams)
+      throws TException {
+    return write(pos, Collections.singletonList(data), streams).get(0);
+  }
+
+  /**
+   * Append {@code records} at positions {@code startPos, startPos + 1, ...}, all in
+   * {@code streams}, keeping up to a pipeline window's worth in flight; returns the status of
+   * each write. Any partitions the batch needs are requested from the server upfront, at once.
+   */
+  public List<ByteBuffer> write(long startPos, List<ByteBuffer> records,
+      List<ByteBuffer> streams) throws TException {
+    if (streams.isEmpty()) {
+      throw new IllegalArgumentException("A log entry must belong to at least one stream");
+    }
+    long streamBytes = 0;
+    for (ByteBuffer stream : streams) {
+      streamBytes += stream.remaining();
+    }
+
+    // Lay the batch out over the partitions first
+    int[] partitions = new int[records.size()];
+    int p = partition;
+    long o = offset;
+    for (int i = 0; i < records.size(); i++) {
+      long size = streamBytes + records.get(i).remaining();
+      if (size > blockSize) {
+        throw new IllegalArgumentException("Log entry of " + size
+            + " bytes does not fit in a partition of " + blockSize + " bytes");
+      }
+      if (o + size > blockSize) {
+        p++;
+        o = 0;
+      }
+      partitions[i] = p;
+      o += size;
+    }
+    if (p >= blocks.size()) {
+      allocate(p - blocks.size() + 1);
+    }
+
+    List<ByteBuffer> responses = new ArrayList<>(records.size());
+    int i = 0;
+    while (i < records.size()) {
+      int target = partitions[i];
+      if (firstPositions.get(target) < 0) {
+        recordFirstPosition(target, startPos + i);
+      }
+      List<List<ByteBuffer>> commands = new ArrayList<>();
+      for (; i < records.size() && partitions[i] == target; i++) {
+        List<ByteBuffer> args = new ArrayList<>(3 + streams.size());
+        args.add(SharedLogCommands.WRITE);
+        args.add(ByteBufferUtils.fromLong(startPos + i));
+        args.add(records.get(i));
+        args.addAll(streams);
+        commands.add(args);
+      }
+      for (List<ByteBuffer> response : blocks.get(target).runCommands(commands)) {
+        responses.add(response.get(0));
+      }
+    }
+    partition = p;
+    offset = o;
+    return responses;
+  }
+
+  /**
+   * Publish the position of the first entry of partition {@code p}, before writing it, so that
+   * scans and trims of any client can clip their ranges to the partition. Another client may
+   * have written to the partition since this one last looked, in which case its position
+   * stands.
+   */
+  private void recordFirstPosition(int p, long pos) throws TException {
+    refresh();
+    if (firstPositions.get(p) >= 0) {
+      return;
+    }
+    synchronized (fs) {
+      fs.addTags(path, Collections.singletonMap(FIRST_POSITION_TAG + p, String.valueOf(pos)));
+    }
+    firstPositions.set(p, pos);
+  }
+
+  /**
+   * The part of {@code [startPos, endPos]} that partition {@code p} may hold, or null if it holds
+   * none: from the first position of the partition, or of the closest partition before it whose
+   * first position is known, up to the next known first position after it.
+   */
+  private long[] clip(int p, long startPos, long endPos) {
+    long first = -1;
+    for (int i = p; i >= 0 && first < 0; i--) {
+      first = firstPositions.get(i);
+    }
+    long last = Long.MAX_VALUE;
+    for (int i = p + 1; i < firstPositions.size(); i++) {
+      if (firstPositions.get(i) >= 0) {
+        last = firstPositions.get(i) - 1;
+        break;
+      }
+    }
+    long from = first < 0 ? startPos : Math.max(startPos, first);
+    long to = Math.min(endPos, last);
+    return from > to ? null : new long[] {from, to};
+  }
+
+  /**
+   * Ask the last partition for {@code count} more, waiting until the server has allocated them.
+   */
+  private void allocate(int count) throws TException {
+    if (!autoScale) {
+      throw new IllegalStateException("Shared log " + path + " is full and does not scale");
+    }
+    ReplicaChainClient last = blocks.get(blocks.size() - 1);
+    long lastName = Long.parseLong(last.getChain().name);
+    List<ByteBuffer> args = ByteBufferUtils.fromByteBuffers(SharedLogCommands.ADD_BLOCKS,
+        ByteBufferUtils.fromLong(lastName), ByteBufferUtils.fromInteger(count));
+    int attempt = 0;
+    while (true) {
+      List<ByteBuffer> response = last.runCommand(args);
+      if (Responses.is(response.get(0), Responses.BLOCK_ALLOCATED)) {
+        for (int i = 1; i < response.size(); i++) {
+          List<String> blockIds = Arrays.asList(ByteBufferUtils.toString(response.get(i))
+              .split("!"));
+          rpc_replica_chain chain = new rpc_replica_chain(blockIds, String.valueOf(lastName + i),
+              "", rpc_storage_mode.rpc_in_memory);
+          addBlock(chain);
+        }
+        return;
+      }
+      if (!Responses.is(response.get(0), Responses.BLOCKS_NOT_READY)) {
+        throw new IllegalStateException("Could not add partitions to " + path + ": "
+            + ByteBufferUtils.toString(response.get(0)));
+      }
+      metrics.fullBackoff();
+      try {
+        Thread.sleep(Math.min(MAX_ALLOCATION_BACKOFF_MS, 1L << Math.min(attempt++, 6)));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new TTransportException(e);
+      }
+    }
+  }
+
+  /**
+   * Data of the entries at positions {@code [startPos, endPos]} that belong to any of
+   * {@code streams}, partition by partition. A partition answering with an error status fails
+   * the scan with an {@link IllegalStateException}.
+   */
+  public List<ByteBuffer> scan(long startPos, long endPos, List<ByteBuffer> streams)
+      throws TException {
+    return AsyncSupport.await(scanAsync(startPos, endPos, streams));
+  }
+
+  /**
+   * Send a scan or trim of a range clipped by {@link #clip} to partition {@code p}. A partition
+   * whose first position is not known may rightly reject the range; its answer is then empty.
+   */
+  private CompletableFuture<List<ByteBuffer>> sendRange(int p, List<ByteBuffer> args) {
+    CompletableFuture<List<ByteBuffer>> future = blocks.get(p).runCommandAsync(args);
+    if (firstPositions.get(p) >= 0) {
+      return future;
+    }
+    return future.thenApply(response -> Responses.is(response.get(0), Responses.INVALID_ARGUMENT)
+        ? Collections.singletonList(Responses.of(Responses.OK)) : response);
+  }
+
+  private CompletableFuture<List<ByteBuffer>> scanAsync(long startPos, long endPos,
+      List<ByteBuffer> streams) {
+    List<CompletableFuture<List<ByteBuffer>>> futures = new ArrayList<>(blocks.size());
+    for (int p = 0; p < blocks.size(); p++) {
+      long[] range = clip(p, startPos, endPos);
+      if (range == null) {
+        continue;
+      }
+      List<ByteBuffer> args = new ArrayList<>(3 + streams.size());
+      args.add(SharedLogCommands.SCAN);
+      args.add(ByteBufferUtils.fromLong(range[0]));
+      args.add(ByteBufferUtils.fromLong(range[1]));
+      args.addAll(streams);
+      futures.add(sendRange(p, args));
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+      List<ByteBuffer> records = new ArrayList<>();
+      for (CompletableFuture<List<ByteBuffer>> future : futures) {
+        List<ByteBuffer> response = future.join();
+        checkStatus("scan", response.get(0));
+        records.addAll(response.subList(1, response.size()));
+      }
+      return records;
+    });
+  }
+
+  private void checkStatus(String op, ByteBuffer status) {
+    if (!Responses.is(status, Responses.OK)) {
+      throw new IllegalStateException("Could not " + op + " " + path + ": "
+          + ByteBufferUtils.toString(status));
+    }
+  }
+
+  /**
+   * Iterate over the entries at positions {@code [startPos, endPos]} that belong to any of
+   * {@code streams}, scanning {@code rangeSize} positions at a time. The next range is fetched
+   * while the caller consumes the current one. Partitions added by other clients since this
+   * one was opened are picked up first.
+   */
+  public Scanner scanner(long startPos, long endPos, int rangeSize, List<ByteBuffer> streams)
+      throws TException {
+    if (rangeSize < 1) {
+      throw new IllegalArgumentException("Range size must be >= 1");
+    }
+    refresh();
+    return new Scanner(startPos, endPos, rangeSize, streams);
+  }
+
+  /**
+   * Invalidate the entries at positions {@code [startPos, endPos]}; returns the number of bytes
+   * trimmed. A partition answering with an error status fails the trim with an
+   * {@link IllegalStateException}.
+   */
+  public long trim(long startPos, long endPos) throws TException {
+    List<CompletableFuture<List<ByteBuffer>>> futures = new ArrayList<>(blocks.size());
+    for (int p = 0; p < blocks.size(); p++) {
+      long[] range = clip(p, startPos, endPos);
+      if (range != null) {
+        futures.add(sendRange(p, ByteBufferUtils.fromByteBuffers(
+            SharedLogCommands.TRIM, ByteBufferUtils.fromLong(range[0]),
+            ByteBufferUtils.fromLong(range[1]))));
+      }
+    }
+    long trimmed = 0;
+    for (CompletableFuture<List<ByteBuffer>> future : futures) {
+      List<ByteBuffer> response = AsyncSupport.await(future);
+      checkStatus("trim", response.get(0));
+      if (response.size() > 1) {
+        trimmed += ByteBufferUtils.toLong(response.get(1));
+      }
+    }
+    return trimmed;
+  }
+
+  /**
+   * Entries of a range scan. Failures to fetch a range are thrown from {@link #hasNext()} as
+   * {@link RuntimeException}s wrapping the {@link TException}.
+   */
+  public class Scanner implements Iterator<ByteBuffer> {
+
+    private final long endPos;
+    private final int rangeSize;
+    private final List<ByteBuffer> streams;
+    private long nextPos;
+    private boolean fetchedAll;
+    private CompletableFuture<List<ByteBuffer>> prefetched;
+    private Iterator<ByteBuffer> current;
+
+    Scanner(long startPos, long endPos, int rangeSize, List<ByteBuffer> streams) {
+      this.endPos = endPos;
+      this.rangeSize = rangeSize;
+      this.streams = new ArrayList<>(streams);
+      this.nextPos = startPos;
+      this.fetchedAll = startPos > endPos;
+      this.current = Collections.emptyIterator();
+      this.prefetched = fetch();
+    }
+
+    private CompletableFuture<List<ByteBuffer>> fetch() {
+      if (fetchedAll) {
+        return null;
+      }
+      long last = endPos - nextPos < rangeSize ? endPos : nextPos + rangeSize - 1;
+      CompletableFuture<List<ByteBuffer>> future = scanAsync(nextPos, last, streams);
+      fetchedAll = last == endPos;
+      nextPos = last + 1;
+      return future;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (!current.hasNext()) {
+        if (prefetched == null) {
+          return false;
+        }
+        List<ByteBuffer> records;
+        try {
+          records = AsyncSupport.await(prefetched);
+        } catch (TException e) {
+          prefetched = null;
+          throw new RuntimeException(e);
+        }
+        // Start on the next range before handing this one to the caller
+        prefetched = fetch();
+        current = records.iterator();
+      }
+      return true;
+    }
+
+    @Override
+    public ByteBuffer next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return current.next();
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package jiffy.storage;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import jiffy.util.ByteBufferUtils;
+
+class SharedLogCommands {
+  static final ByteBuffer WRITE = ByteBufferUtils.fromString("write");
+  static final ByteBuffer SCAN = ByteBufferUtils.fromString("scan");
+  static final ByteBuffer TRIM = ByteBufferUtils.fromString("trim");
+  static final ByteBuffer ADD_BLOCKS = ByteBufferUtils.fromString("add_blocks");
+  static final ByteBuffer GET_STORAGE_CAPACITY = ByteBufferUtils
+      .fromString("get_storage_capacity");
+
+  static final HashMap<ByteBuffer, CommandType> CMD_TYPES;
+  static {
+    CMD_TYPES = new HashMap<>();
+    CMD_TYPES.put(WRITE, CommandType.mutator);
+    CMD_TYPES.put(SCAN, CommandType.accessor);
+    CMD_TYPES.put(TRIM, CommandType.mutator);
+    CMD_TYPES.put(ADD_BLOCKS, CommandType.accessor);
+    CMD_TYPES.put(GET_STORAGE_CAPACITY, CommandType.accessor);
+  }
+}
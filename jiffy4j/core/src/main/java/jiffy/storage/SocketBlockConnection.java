@@ -0,0 +1,99 @@
+package jiffy.storage;
+
+import java.util.concurrent.TimeUnit;
+import jiffy.storage.block_request_service.Client;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Block connection over a blocking socket, with a dedicated reader thread per connection.
+ */
+class SocketBlockConnection extends BlockConnection implements Runnable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SocketBlockConnection.class);
+
+  private final TTransport socket;
+  private final TProtocol protocol;
+  private final Client client;
+  private final Thread reader;
+
+  SocketBlockConnection(String host, int port, int timeoutMs) throws TTransportException {
+    super(host, port, timeoutMs);
+    TSocket socket = new TSocket(host, port);
+    socket.setConnectTimeout(timeoutMs);
+    // Reads block on the dedicated reader thread; callers enforce their own deadlines
+    socket.setSocketTimeout(0);
+    this.socket = socket;
+    // Reads and writes get their own framing: TFramedTransport shares a length scratch buffer
+    // between the two directions, and they run on different threads here
+    this.protocol = new TBinaryProtocol(new TFramedTransport(socket));
+    this.client = new Client(new TBinaryProtocol(new TFramedTransport(socket)));
+    open();
+    this.reader = new Thread(this, "jiffy-block-reader-" + host + ":" + port);
+    this.reader.setDaemon(true);
+    this.reader.start();
+  }
+
+  private void open() throws TTransportException {
+    TTransportException ex = null;
+    int attemptsLeft = 3;
+    while (attemptsLeft > 0) {
+      try {
+        socket.open();
+        return;
+      } catch (TTransportException e) {
+        ex = e;
+        attemptsLeft--;
+      }
+    }
+    throw ex;
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (!broken) {
+        processMessage(protocol);
+      }
+    } catch (TException e) {
+      fail(e);
+    } catch (RuntimeException e) {
+      LOG.warn("Connection to {}:{} failed", host, port, e);
+      fail(new TTransportException(e));
+    }
+  }
+
+  @Override
+  Client client() {
+    return client;
+  }
+
+  @Override
+  boolean transportHealthy() {
+    return socket.isOpen() && reader.isAlive();
+  }
+
+  @Override
+  void closeTransport() {
+    socket.close();
+  }
+
+  @Override
+  void close() {
+    super.close();
+    if (Thread.currentThread() != reader) {
+      try {
+        reader.join(TimeUnit.SECONDS.toMillis(1));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
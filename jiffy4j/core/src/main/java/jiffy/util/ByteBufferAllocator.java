@@ -0,0 +1,34 @@
+package jiffy.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of buffers that the client hands response values back in.
+ */
+public interface ByteBufferAllocator {
+
+  /**
+   * Allocates buffers on the heap; release is a no-op.
+   */
+  ByteBufferAllocator HEAP = new ByteBufferAllocator() {
+    @Override
+    public ByteBuffer allocate(int size) {
+      return ByteBuffer.allocate(size);
+    }
+
+    @Override
+    public void release(ByteBuffer buf) {
+    }
+  };
+
+  /**
+   * Returns a buffer with position 0 and limit {@code size}; its capacity may be larger.
+   */
+  ByteBuffer allocate(int size);
+
+  /**
+   * Hand a buffer obtained from {@link #allocate(int)} back for reuse. The caller must not touch
+   * the buffer afterwards.
+   */
+  void release(ByteBuffer buf);
+}
@@ -19,19 +19,74 @@ public class ByteBufferUtils {
   }
 
   public static ByteBuffer fromInteger(int i) {
-    return fromString(Integer.toString(i));
+    return fromLong(i);
   }
 
+  /**
+   * Encode {@code i} as a decimal string, writing the digits directly into the buffer.
+   */
   public static ByteBuffer fromLong(long i) {
-    return fromString(Long.toString(i));
+    if (i == Long.MIN_VALUE) {
+      return fromString(Long.toString(i));
+    }
+    boolean negative = i < 0;
+    long v = negative ? -i : i;
+    int len = negative ? 2 : 1;
+    for (long t = v / 10; t != 0; t /= 10) {
+      len++;
+    }
+    byte[] digits = new byte[len];
+    int pos = len;
+    do {
+      digits[--pos] = (byte) ('0' + (v % 10));
+      v /= 10;
+    } while (v != 0);
+    if (negative) {
+      digits[0] = '-';
+    }
+    return ByteBuffer.wrap(digits);
   }
 
+  /**
+   * Parse a decimal string in place, without decoding the buffer.
+   */
   public static long toLong(ByteBuffer buf) {
-    return Long.parseLong(toString(buf));
+    int pos = buf.position();
+    int end = buf.limit();
+    if (pos == end) {
+      throw new NumberFormatException("Empty number");
+    }
+    boolean negative = buf.get(pos) == '-';
+    if (negative || buf.get(pos) == '+') {
+      pos++;
+      if (pos == end) {
+        throw new NumberFormatException("Invalid number: " + toString(buf));
+      }
+    }
+    long result = 0;
+    for (; pos < end; pos++) {
+      int digit = buf.get(pos) - '0';
+      if (digit < 0 || digit > 9 || result < (Long.MIN_VALUE + digit) / 10) {
+        throw new NumberFormatException("Invalid number: " + toString(buf));
+      }
+      // Accumulate negatively so that Long.MIN_VALUE parses too
+      result = result * 10 - digit;
+    }
+    if (!negative) {
+      if (result == Long.MIN_VALUE) {
+        throw new NumberFormatException("Invalid number: " + toString(buf));
+      }
+      return -result;
+    }
+    return result;
   }
 
   public static int toInt(ByteBuffer buf) {
-    return Integer.parseInt(toString(buf));
+    long value = toLong(buf);
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      throw new NumberFormatException("Out of int range: " + value);
+    }
+    return (int) value;
   }
 
   public static List<ByteBuffer> fromByteBuffers(ByteBuffer... args) {
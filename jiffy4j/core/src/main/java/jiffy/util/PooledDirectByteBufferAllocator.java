@@ -0,0 +1,105 @@
+package jiffy.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe pool of direct (off-heap) buffers.
+ *
+ * Requests are rounded up to a power-of-two size class between {@code minSize} and
+ * {@code maxSize}; larger requests get an unpooled direct buffer. Released buffers are kept for
+ * reuse until the pool holds {@code maxPooledBytes}, beyond which they are left to the garbage
+ * collector. The pool only takes back the buffers it handed out, by identity, so releasing a
+ * slice or duplicate of one, or any other buffer, is a no-op. Buffers up to {@code maxSize}
+ * are held by the pool from the moment they are handed out, so every one of them must be
+ * released: one that never is stays allocated for the life of the pool.
+ */
+public class PooledDirectByteBufferAllocator implements ByteBufferAllocator {
+
+  private static final int DEFAULT_MIN_SIZE = 64;
+  private static final int DEFAULT_MAX_SIZE = 1 << 20;
+  private static final long DEFAULT_MAX_POOLED_BYTES = 64L << 20;
+
+  private final int minShift;
+  private final int maxSize;
+  private final long maxPooledBytes;
+  private final List<Queue<ByteBuffer>> classes;
+  // Pooled-size buffers handed out and not yet released
+  private final Set<ByteBuffer> outstanding;
+  private final AtomicLong pooledBytes;
+
+  public PooledDirectByteBufferAllocator() {
+    this(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_MAX_POOLED_BYTES);
+  }
+
+  public PooledDirectByteBufferAllocator(int minSize, int maxSize, long maxPooledBytes) {
+    if (minSize < 1 || maxSize < minSize) {
+      throw new IllegalArgumentException(
+          "Invalid size classes [" + minSize + ", " + maxSize + "]");
+    }
+    this.minShift = shiftFor(minSize);
+    this.maxSize = 1 << shiftFor(maxSize);
+    this.maxPooledBytes = maxPooledBytes;
+    int numClasses = shiftFor(maxSize) - minShift + 1;
+    this.classes = new ArrayList<>(numClasses);
+    for (int i = 0; i < numClasses; i++) {
+      classes.add(new ConcurrentLinkedQueue<>());
+    }
+    this.outstanding = Collections.synchronizedSet(
+        Collections.newSetFromMap(new IdentityHashMap<>()));
+    this.pooledBytes = new AtomicLong(0);
+  }
+
+  private static int shiftFor(int size) {
+    return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+  }
+
+  private int classFor(int capacity) {
+    return Math.max(shiftFor(capacity), minShift) - minShift;
+  }
+
+  @Override
+  public ByteBuffer allocate(int size) {
+    if (size > maxSize) {
+      return ByteBuffer.allocateDirect(size);
+    }
+    int index = classFor(size);
+    ByteBuffer buf = classes.get(index).poll();
+    if (buf == null) {
+      buf = ByteBuffer.allocateDirect(1 << (index + minShift));
+    } else {
+      pooledBytes.addAndGet(-buf.capacity());
+    }
+    buf.clear().limit(size);
+    outstanding.add(buf);
+    return buf;
+  }
+
+  @Override
+  public void release(ByteBuffer buf) {
+    if (!outstanding.remove(buf)) {
+      // Not one of ours, or released already
+      return;
+    }
+    int capacity = buf.capacity();
+    if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+      pooledBytes.addAndGet(-capacity);
+      return;
+    }
+    classes.get(classFor(capacity)).add(buf);
+  }
+
+  /**
+   * Number of bytes currently held by the pool.
+   */
+  public long pooledBytes() {
+    return pooledBytes.get();
+  }
+}
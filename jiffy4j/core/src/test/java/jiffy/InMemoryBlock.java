@@ -0,0 +1,584 @@
+package jiffy;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import jiffy.storage.HashSlot;
+import jiffy.util.ByteBufferUtils;
+
+/**
+ * A data structure partition held by {@link InMemoryStorage}.
+ *
+ * Commands are answered in the dialect this client speaks: a single response buffer that is
+ * either a value or a {@code !}-prefixed status, except for queues and shared logs, which answer
+ * with a status followed by any values. Every block ID of a replica chain maps to the same partition, so
+ * replication is not modelled.
+ */
+abstract class InMemoryBlock {
+
+  static final String REDIRECTED = "!redirected";
+
+  final String path;
+  final long capacity;
+  volatile String name;
+
+  private volatile BiConsumer<String, ByteBuffer> notifier;
+
+  InMemoryBlock(String path, String name, long capacity) {
+    this.path = path;
+    this.name = name;
+    this.capacity = capacity;
+    this.notifier = (op, key) -> {
+    };
+  }
+
+  void setNotifier(BiConsumer<String, ByteBuffer> notifier) {
+    this.notifier = notifier;
+  }
+
+  void notify(String op, ByteBuffer key) {
+    notifier.accept(op, key);
+  }
+
+  abstract List<ByteBuffer> run(List<ByteBuffer> args);
+
+  static ByteBuffer copy(ByteBuffer buf) {
+    ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+    copy.put(buf.duplicate());
+    copy.flip();
+    return copy;
+  }
+
+  static List<ByteBuffer> reply(String status) {
+    return Collections.singletonList(ByteBufferUtils.fromString(status));
+  }
+
+  static List<ByteBuffer> reply(ByteBuffer value) {
+    return Collections.singletonList(value.duplicate());
+  }
+
+  /**
+   * A hash table partition owning the slots {@code [slotBegin, slotEnd)}.
+   *
+   * While part of its range is being exported, commands for keys in that range are answered
+   * with {@code !exporting!<target chain>}; the target only serves them when they carry the
+   * {@code !redirected} marker until the export completes. Keys outside the owned range get
+   * {@code !block_moved}, and writes that would take the partition past its capacity get
+   * {@code !full}.
+   */
+  static class HashTable extends InMemoryBlock {
+
+    private final Map<ByteBuffer, ByteBuffer> entries;
+    private long bytes;
+    private int slotBegin;
+    private int slotEnd;
+    private boolean importing;
+    private int exportBegin;
+    private int exportEnd;
+    private String exportTarget;
+
+    HashTable(String path, String name, long capacity) {
+      super(path, name, capacity);
+      this.entries = new HashMap<>();
+      this.bytes = 0;
+      String[] range = name.split("_");
+      this.slotBegin = Integer.parseInt(range[0]);
+      this.slotEnd = Integer.parseInt(range[1]);
+      this.importing = false;
+      this.exportBegin = -1;
+      this.exportEnd = -1;
+      this.exportTarget = null;
+    }
+
+    @Override
+    synchronized List<ByteBuffer> run(List<ByteBuffer> args) {
+      if (args.size() < 2) {
+        return reply("!args_error");
+      }
+      String cmd = ByteBufferUtils.toString(args.get(0));
+      boolean redirected = ByteBufferUtils.toString(args.get(args.size() - 1)).equals(REDIRECTED);
+      ByteBuffer key = args.get(1);
+      int slot = HashSlot.get(key);
+      if (exportTarget != null && !redirected && slot >= exportBegin && slot < exportEnd) {
+        return reply("!exporting!" + exportTarget);
+      }
+      if (slot < slotBegin || slot >= slotEnd || (importing && !redirected)) {
+        return reply("!block_moved");
+      }
+      ByteBuffer value;
+      switch (cmd) {
+        case "exists":
+          return reply(entries.containsKey(key) ? "true" : "false");
+        case "get":
+          value = entries.get(key);
+          return value == null ? reply("!key_not_found") : reply(value);
+        case "put":
+          if (entries.containsKey(key)) {
+            return reply("!duplicate_key");
+          }
+          if (!fits(key, null, args.get(2))) {
+            return reply("!full");
+          }
+          store(key, args.get(2));
+          notify(cmd, key);
+          return reply("!ok");
+        case "upsert":
+          if (!fits(key, entries.get(key), args.get(2))) {
+            return reply("!full");
+          }
+          store(key, args.get(2));
+          notify(cmd, key);
+          return reply("!ok");
+        case "update":
+          value = entries.get(key);
+          if (value == null) {
+            return reply("!key_not_found");
+          }
+          if (!fits(key, value, args.get(2))) {
+            return reply("!full");
+          }
+          store(key, args.get(2));
+          notify(cmd, key);
+          return reply(value);
+        case "remove":
+          value = entries.remove(key);
+          if (value == null) {
+            return reply("!key_not_found");
+          }
+          bytes -= key.remaining() + value.remaining();
+          notify(cmd, key);
+          return reply(value);
+        default:
+          return reply("!args_error");
+      }
+    }
+
+    private boolean fits(ByteBuffer key, ByteBuffer old, ByteBuffer value) {
+      long delta = old == null ? key.remaining() + value.remaining()
+          : value.remaining() - old.remaining();
+      return delta <= 0 || bytes + delta <= capacity;
+    }
+
+    private void store(ByteBuffer key, ByteBuffer value) {
+      ByteBuffer old = entries.put(copy(key), copy(value));
+      bytes += old == null ? key.remaining() + value.remaining()
+          : value.remaining() - old.remaining();
+    }
+
+    /**
+     * Start handing slots {@code [splitSlot, slotEnd)} over to {@code target}, which must be an
+     * importing partition for exactly that range; existing entries are copied across at once.
+     */
+    synchronized void beginExport(int splitSlot, HashTable target, List<String> targetChain) {
+      exportBegin = splitSlot;
+      exportEnd = slotEnd;
+      exportTarget = String.join("!", targetChain);
+      Iterator<Map.Entry<ByteBuffer, ByteBuffer>> it = entries.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<ByteBuffer, ByteBuffer> e = it.next();
+        int slot = HashSlot.get(e.getKey());
+        if (slot >= exportBegin && slot < exportEnd) {
+          target.importEntry(e.getKey(), e.getValue());
+          bytes -= e.getKey().remaining() + e.getValue().remaining();
+          it.remove();
+        }
+      }
+    }
+
+    /**
+     * Give up the exported slots for good; the partition is renamed after its remaining range.
+     */
+    synchronized void completeExport() {
+      slotEnd = exportBegin;
+      exportBegin = -1;
+      exportEnd = -1;
+      exportTarget = null;
+      name = slotBegin + "_" + slotEnd;
+    }
+
+    synchronized void beginImport() {
+      importing = true;
+    }
+
+    synchronized void completeImport() {
+      importing = false;
+    }
+
+    private synchronized void importEntry(ByteBuffer key, ByteBuffer value) {
+      store(key, value);
+    }
+
+    synchronized int slotBegin() {
+      return slotBegin;
+    }
+
+    synchronized int slotEnd() {
+      return slotEnd;
+    }
+
+    synchronized int size() {
+      return entries.size();
+    }
+  }
+
+  /**
+   * A file partition of at most {@code capacity} bytes.
+   *
+   * Writes that run past the end are cut short with {@code !split_write!<next chain>!<bytes
+   * left>}, allocating the next partition through {@code nextPartition} if needed; reads that
+   * run past the end of a full partition return {@code !split_read!<next chain>!<data>}.
+   */
+  static class File extends InMemoryBlock {
+
+    private byte[] data;
+    private final Supplier<List<String>> nextPartition;
+    private int size;
+    private List<String> next;
+
+    File(String path, String name, long capacity, Supplier<List<String>> nextPartition) {
+      super(path, name, capacity);
+      this.data = new byte[0];
+      this.nextPartition = nextPartition;
+      this.size = 0;
+      this.next = null;
+    }
+
+    @Override
+    synchronized List<ByteBuffer> run(List<ByteBuffer> args) {
+      String cmd = ByteBufferUtils.toString(args.get(0));
+      switch (cmd) {
+        case "write":
+          return write(args.get(1), (int) ByteBufferUtils.toLong(args.get(2)));
+        case "read":
+          return read((int) ByteBufferUtils.toLong(args.get(1)), ByteBufferUtils.toInt(args.get(2)));
+        case "seek":
+          return Arrays.asList(ByteBufferUtils.fromLong(size),
+              ByteBufferUtils.fromLong(capacity));
+        default:
+          return reply("!args_error");
+      }
+    }
+
+    private List<ByteBuffer> write(ByteBuffer buf, int offset) {
+      int length = buf.remaining();
+      int n = (int) Math.max(0, Math.min(length, capacity - offset));
+      if (offset + n > data.length) {
+        // Grow geometrically up to the capacity rather than reserving it all upfront
+        long grown = Math.max(offset + n, 2L * data.length);
+        data = Arrays.copyOf(data, (int) Math.min(capacity, grown));
+      }
+      ByteBuffer src = buf.duplicate();
+      src.limit(src.position() + n);
+      src.get(data, offset, n);
+      size = Math.max(size, offset + n);
+      if (n == length) {
+        return reply("!ok");
+      }
+      return reply("!split_write!" + String.join("!", next()) + "!" + (length - n));
+    }
+
+    private List<ByteBuffer> read(int offset, int length) {
+      if (offset >= size) {
+        return reply("!msg_not_found");
+      }
+      int n = Math.min(length, size - offset);
+      if (n < length && size == capacity) {
+        // The head of the data follows the next partition's chain as raw bytes
+        byte[] prefix = ("!split_read!" + String.join("!", next()) + "!")
+            .getBytes(StandardCharsets.UTF_8);
+        ByteBuffer response = ByteBuffer.allocate(prefix.length + n);
+        response.put(prefix).put(data, offset, n);
+        response.flip();
+        return reply(response);
+      }
+      return reply(copy(ByteBuffer.wrap(data, offset, n)));
+    }
+
+    private List<String> next() {
+      if (next == null) {
+        next = nextPartition.get();
+      }
+      return next;
+    }
+  }
+
+  /**
+   * A FIFO queue partition of at most {@code capacity} bytes, each item taking 8 bytes of
+   * metadata on top of its data.
+   *
+   * Once an item does not fit, the partition accepts nothing more and allocates the next
+   * partition through {@code nextPartition}, standing in for the auto-scaling service; from
+   * then on enqueues, and dequeues and reads past the last item, are answered with
+   * {@code !redirected_<op>} and the next partition's chain. Byte counts for {@code length}
+   * are cumulative over the whole queue, carried over by redirected enqueues.
+   */
+  static class FifoQueue extends InMemoryBlock {
+
+    private static final int METADATA_LEN = 8;
+
+    private final List<ByteBuffer> items;
+    private final Supplier<List<String>> nextPartition;
+    private final long createdMs;
+    private long bytes;
+    private boolean full;
+    private int head;
+    private int readHead;
+    // Bytes enqueued into earlier partitions
+    private long base;
+    private long enqueued;
+    private long dequeued;
+    private String next;
+
+    FifoQueue(String path, String name, long capacity, Supplier<List<String>> nextPartition) {
+      super(path, name, capacity);
+      this.items = new ArrayList<>();
+      this.nextPartition = nextPartition;
+      this.createdMs = System.currentTimeMillis();
+      this.bytes = 0;
+      this.full = false;
+      this.head = 0;
+      this.readHead = 0;
+      this.base = 0;
+      this.enqueued = 0;
+      this.dequeued = 0;
+      this.next = null;
+    }
+
+    @Override
+    synchronized List<ByteBuffer> run(List<ByteBuffer> args) {
+      String cmd = ByteBufferUtils.toString(args.get(0));
+      switch (cmd) {
+        case "enqueue":
+          return enqueue(args);
+        case "dequeue":
+          if (head < items.size()) {
+            ByteBuffer item = items.get(head++);
+            readHead = Math.max(readHead, head);
+            dequeued += item.remaining();
+            return ok(item);
+          }
+          return drained("!redirected_dequeue", "0", "0");
+        case "front":
+          return head < items.size() ? ok(items.get(head)) : drained("!redirected_front");
+        case "read_next":
+          return readHead < items.size() ? ok(items.get(readHead++))
+              : drained("!redirected_readnext");
+        case "length":
+          boolean headSize = ByteBufferUtils.toInt(args.get(1)) == 0;
+          if (full && (headSize || head == items.size())) {
+            return replies("!redirected_length", next());
+          }
+          return replies("!ok", String.valueOf(base + (headSize ? enqueued : dequeued)));
+        case "in_rate":
+          return full ? replies("!redirected_rate", next()) : replies("!ok", rate(enqueued));
+        case "out_rate":
+          return full && head == items.size() ? replies("!redirected_rate", next())
+              : replies("!ok", rate(dequeued));
+        default:
+          return reply("!args_error");
+      }
+    }
+
+    private List<ByteBuffer> enqueue(List<ByteBuffer> args) {
+      if (args.size() == 6 && items.isEmpty() && base == 0) {
+        base = ByteBufferUtils.toLong(args.get(2));
+      }
+      ByteBuffer item = args.get(1);
+      if (full || bytes + METADATA_LEN + item.remaining() > capacity) {
+        full = true;
+        return replies("!redirected_enqueue", next(), String.valueOf(base + enqueued), "0",
+            "0");
+      }
+      items.add(copy(item));
+      bytes += METADATA_LEN + item.remaining();
+      enqueued += item.remaining();
+      return reply("!ok");
+    }
+
+    private List<ByteBuffer> drained(String redirect, String... extra) {
+      if (!full) {
+        return reply("!msg_not_found");
+      }
+      List<ByteBuffer> response = new ArrayList<>();
+      response.add(ByteBufferUtils.fromString(redirect));
+      response.add(ByteBufferUtils.fromString(next()));
+      for (String e : extra) {
+        response.add(ByteBufferUtils.fromString(e));
+      }
+      return response;
+    }
+
+    private String rate(long n) {
+      return String.valueOf((double) n / Math.max(1, System.currentTimeMillis() - createdMs));
+    }
+
+    private String next() {
+      if (next == null) {
+        next = String.join("!", nextPartition.get());
+      }
+      return next;
+    }
+
+    private static List<ByteBuffer> ok(ByteBuffer item) {
+      return Arrays.asList(ByteBufferUtils.fromString("!ok"), item.duplicate());
+    }
+
+    private static List<ByteBuffer> replies(String... parts) {
+      List<ByteBuffer> response = new ArrayList<>(parts.length);
+      for (String part : parts) {
+        response.add(ByteBufferUtils.fromString(part));
+      }
+      return response;
+    }
+  }
+
+  /**
+   * A shared log partition of at most {@code capacity} bytes of entries.
+   *
+   * Positions are numbered from the first entry written. As on the storage server, scans and
+   * trims of a non-empty partition must start at one of its positions; other ranges are
+   * answered with {@code !invalid_argument} where the server would fail the request. Ranges
+   * running past the last entry are cut short.
+   * {@code add_blocks} allocates partitions through {@code allocator}, answering
+   * {@code !blocks_not_ready} the first time as the server does while it scales.
+   */
+  static class SharedLog extends InMemoryBlock {
+
+    private static class Entry {
+
+      private final ByteBuffer data;
+      private final List<ByteBuffer> streams;
+      private boolean trimmed;
+
+      Entry(ByteBuffer data, List<ByteBuffer> streams) {
+        this.data = data;
+        this.streams = streams;
+        this.trimmed = false;
+      }
+    }
+
+    private final List<Entry> entries;
+    private final Function<String, List<String>> allocator;
+    private long bytes;
+    private long seqNo;
+    private List<String> allocated;
+
+    SharedLog(String path, String name, long capacity,
+        Function<String, List<String>> allocator) {
+      super(path, name, capacity);
+      this.entries = new ArrayList<>();
+      this.allocator = allocator;
+      this.bytes = 0;
+      this.seqNo = 0;
+      this.allocated = null;
+    }
+
+    @Override
+    synchronized List<ByteBuffer> run(List<ByteBuffer> args) {
+      String cmd = ByteBufferUtils.toString(args.get(0));
+      switch (cmd) {
+        case "write":
+          return args.size() < 4 ? reply("!args_error") : write(args);
+        case "scan":
+          return args.size() < 4 ? reply("!args_error") : scan(args);
+        case "trim":
+          return args.size() != 3 ? reply("!args_error") : trim(args);
+        case "add_blocks":
+          return args.size() != 3 ? reply("!args_error") : addBlocks(args);
+        case "get_storage_capacity":
+          return Arrays.asList(ByteBufferUtils.fromString("!ok"),
+              ByteBufferUtils.fromLong(capacity));
+        default:
+          return reply("!args_error");
+      }
+    }
+
+    private List<ByteBuffer> write(List<ByteBuffer> args) {
+      if (entries.isEmpty()) {
+        seqNo = ByteBufferUtils.toLong(args.get(1));
+      }
+      List<ByteBuffer> streams = new ArrayList<>();
+      long size = args.get(2).remaining();
+      for (ByteBuffer stream : args.subList(3, args.size())) {
+        streams.add(copy(stream));
+        size += stream.remaining();
+      }
+      if (bytes + size > capacity) {
+        return reply("!write_failed");
+      }
+      entries.add(new Entry(copy(args.get(2)), streams));
+      bytes += size;
+      return reply("!ok");
+    }
+
+    private boolean validRange(List<ByteBuffer> args) {
+      long start = ByteBufferUtils.toLong(args.get(1)) - seqNo;
+      long end = ByteBufferUtils.toLong(args.get(2)) - seqNo;
+      return start >= 0 && start < entries.size() && end >= start;
+    }
+
+    private List<ByteBuffer> scan(List<ByteBuffer> args) {
+      if (!entries.isEmpty() && !validRange(args)) {
+        return reply("!invalid_argument");
+      }
+      List<ByteBuffer> streams = args.subList(3, args.size());
+      List<ByteBuffer> response = new ArrayList<>();
+      response.add(ByteBufferUtils.fromString("!ok"));
+      long end = Math.min(ByteBufferUtils.toLong(args.get(2)) - seqNo, entries.size() - 1);
+      for (long i = Math.max(0, ByteBufferUtils.toLong(args.get(1)) - seqNo); i <= end; i++) {
+        Entry entry = entries.get((int) i);
+        if (!entry.trimmed && !Collections.disjoint(entry.streams, streams)) {
+          response.add(entry.data.duplicate());
+        }
+      }
+      return response;
+    }
+
+    private List<ByteBuffer> trim(List<ByteBuffer> args) {
+      if (!entries.isEmpty() && !validRange(args)) {
+        return reply("!invalid_argument");
+      }
+      long trimmed = 0;
+      long end = Math.min(ByteBufferUtils.toLong(args.get(2)) - seqNo, entries.size() - 1);
+      for (long i = Math.max(0, ByteBufferUtils.toLong(args.get(1)) - seqNo); i <= end; i++) {
+        Entry entry = entries.get((int) i);
+        if (!entry.trimmed) {
+          entry.trimmed = true;
+          trimmed += entry.data.remaining();
+          for (ByteBuffer stream : entry.streams) {
+            trimmed += stream.remaining();
+          }
+        }
+      }
+      return Arrays.asList(ByteBufferUtils.fromString("!ok"), ByteBufferUtils.fromLong(trimmed));
+    }
+
+    private List<ByteBuffer> addBlocks(List<ByteBuffer> args) {
+      if (allocated == null) {
+        long last = ByteBufferUtils.toLong(args.get(1));
+        int count = ByteBufferUtils.toInt(args.get(2));
+        allocated = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+          allocated.add(String.join("!", allocator.apply(String.valueOf(last + i))));
+        }
+        return reply("!blocks_not_ready");
+      }
+      List<ByteBuffer> response = new ArrayList<>();
+      response.add(ByteBufferUtils.fromString("!block_allocated"));
+      for (String chain : allocated) {
+        response.add(ByteBufferUtils.fromString(chain));
+      }
+      allocated = null;
+      return response;
+    }
+  }
+}
@@ -0,0 +1,180 @@
+package jiffy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jiffy.directory.directory_service;
+import jiffy.lease.lease_service;
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * A directory, lease and storage service running inside the JVM on loopback, for exercising
+ * the client without the C++ servers.
+ *
+ * The services speak the same Thrift protocols as {@code directoryd} and {@code storaged} and
+ * support hash tables, files, FIFO queues and shared logs, including redirects while a hash
+ * table partition is exported ({@link #beginExport(String, String)}), {@code !full} once a
+ * partition reaches the block capacity, and files, queues and logs spilling over into new
+ * partitions. Storage responses can be delayed to
+ * simulate network latency. Data is never persisted or replicated.
+ *
+ * <pre>
+ *   try (InMemoryCluster cluster = new InMemoryCluster()) {
+ *     JiffyClient client = cluster.connect();
+ *     ...
+ *   }
+ * </pre>
+ */
+public class InMemoryCluster implements Closeable {
+
+  public static final long DEFAULT_BLOCK_CAPACITY = 128L * 1024 * 1024;
+  public static final long DEFAULT_LEASE_PERIOD_MS = 1000;
+  public static final long DEFAULT_GRACE_PERIOD_MS = 1000;
+
+  private static final String HOST = "127.0.0.1";
+  private static final AtomicInteger THREAD_IDS = new AtomicInteger(0);
+
+  private final InMemoryStorage storage;
+  private final InMemoryDirectory directory;
+  private final TServer directoryServer;
+  private final TServer leaseServer;
+  private final int directoryPort;
+  private final int leasePort;
+  private final ExecutorService workers;
+  private final ScheduledExecutorService leaseExpiry;
+
+  public InMemoryCluster() throws IOException {
+    this(DEFAULT_BLOCK_CAPACITY);
+  }
+
+  public InMemoryCluster(long blockCapacity) throws IOException {
+    this(blockCapacity, DEFAULT_LEASE_PERIOD_MS, DEFAULT_GRACE_PERIOD_MS);
+  }
+
+  public InMemoryCluster(long blockCapacity, long leasePeriodMs, long gracePeriodMs)
+      throws IOException {
+    this.workers = Executors.newCachedThreadPool(r -> daemon(r, "jiffy-inmemory-rpc-"));
+    this.leaseExpiry = Executors
+        .newSingleThreadScheduledExecutor(r -> daemon(r, "jiffy-inmemory-lease-"));
+    this.storage = new InMemoryStorage(HOST);
+    this.directory = new InMemoryDirectory(storage, blockCapacity, leasePeriodMs, gracePeriodMs);
+    TServerSocket directorySocket;
+    TServerSocket leaseSocket;
+    try {
+      directorySocket = listen();
+      leaseSocket = listen();
+    } catch (TTransportException e) {
+      storage.close();
+      leaseExpiry.shutdownNow();
+      workers.shutdownNow();
+      throw new IOException(e);
+    }
+    this.directoryPort = directorySocket.getServerSocket().getLocalPort();
+    this.leasePort = leaseSocket.getServerSocket().getLocalPort();
+    this.directoryServer = serve(directorySocket, new directory_service.Processor<>(directory));
+    this.leaseServer = serve(leaseSocket, new lease_service.Processor<>(directory));
+    leaseExpiry.scheduleWithFixedDelay(directory::removeExpired, leasePeriodMs, leasePeriodMs,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private static Thread daemon(Runnable r, String prefix) {
+    Thread t = new Thread(r, prefix + THREAD_IDS.getAndIncrement());
+    t.setDaemon(true);
+    return t;
+  }
+
+  private static TServerSocket listen() throws TTransportException {
+    try {
+      return new TServerSocket(new ServerSocket(0, 128, InetAddress.getByName(HOST)));
+    } catch (IOException e) {
+      throw new TTransportException(e);
+    }
+  }
+
+  private TServer serve(TServerSocket socket, TProcessor processor) {
+    TServer server = new TThreadPoolServer(new TThreadPoolServer.Args(socket)
+        .processor(processor)
+        .protocolFactory(new TBinaryProtocol.Factory())
+        .executorService(workers));
+    workers.execute(server::serve);
+    return server;
+  }
+
+  public String getHost() {
+    return HOST;
+  }
+
+  public int getDirectoryPort() {
+    return directoryPort;
+  }
+
+  public int getLeasePort() {
+    return leasePort;
+  }
+
+  public int getStoragePort() {
+    return storage.port();
+  }
+
+  public JiffyClient connect() throws TException {
+    return new JiffyClient(HOST, directoryPort, leasePort);
+  }
+
+  public JiffyClient connect(int timeoutMs) throws TException {
+    return new JiffyClient(HOST, directoryPort, leasePort, timeoutMs);
+  }
+
+  /**
+   * Delay every storage response and notification by {@code latency}.
+   */
+  public void setLatency(long latency, TimeUnit unit) {
+    storage.setLatency(latency, unit);
+  }
+
+  /**
+   * Start moving the upper half of the hash slots of partition {@code partitionName} of the
+   * hash table at {@code path} to a new partition. Until {@link #completeExport(String, String)}
+   * requests for those slots are answered with {@code !exporting} and served by the new
+   * partition once redirected.
+   */
+  public void beginExport(String path, String partitionName) throws TException {
+    directory.beginExport(path, partitionName);
+  }
+
+  /**
+   * Finish an export: the new partition is added to the hash table's data status, and requests
+   * for the moved slots sent to the old partition get {@code !block_moved}.
+   */
+  public void completeExport(String path, String partitionName) throws TException {
+    directory.completeExport(path, partitionName);
+  }
+
+  /**
+   * Drop the tags of the data structure at {@code path} whose names start with {@code prefix},
+   * as if it had been written by a client that does not set them.
+   */
+  public void removeTags(String path, String prefix) throws TException {
+    directory.removeTags(path, prefix);
+  }
+
+  @Override
+  public void close() {
+    directoryServer.stop();
+    leaseServer.stop();
+    leaseExpiry.shutdownNow();
+    storage.close();
+    workers.shutdownNow();
+  }
+}
@@ -0,0 +1,500 @@
+package jiffy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jiffy.metrics.ClientMetrics;
+import jiffy.metrics.LatencyHistogram;
+import jiffy.storage.FifoQueueClient;
+import jiffy.storage.FileReader;
+import jiffy.storage.FileWriter;
+import jiffy.storage.HashTableClient;
+import jiffy.storage.SharedLogClient;
+import jiffy.util.ByteBufferUtils;
+import org.apache.thrift.TException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InMemoryClusterTest {
+
+  private InMemoryCluster cluster;
+
+  @Before
+  public void setUp() throws IOException {
+    // Odd capacity so that writes of strings end on partition boundaries only where a test
+    // means them to
+    cluster = new InMemoryCluster(1001);
+  }
+
+  @After
+  public void tearDown() {
+    cluster.close();
+  }
+
+  private ByteBuffer makeBB(int i) {
+    return ByteBufferUtils.fromString(String.valueOf(i));
+  }
+
+  private ByteBuffer makeBB(String str) {
+    return ByteBufferUtils.fromString(str);
+  }
+
+  @Test
+  public void testHashTable() throws TException, IOException {
+    try (JiffyClient client = cluster.connect()) {
+      HashTableClient kv = client.createHashTable("/a/table", "local://tmp", 2, 1);
+      for (int i = 0; i < 50; i++) {
+        Assert.assertEquals(makeBB("!ok"), kv.put(makeBB(i), makeBB(i)));
+      }
+      Assert.assertEquals(makeBB("!duplicate_key"), kv.put(makeBB(0), makeBB(0)));
+      for (int i = 0; i < 50; i++) {
+        Assert.assertEquals(makeBB(i), kv.update(makeBB(i), makeBB(i + 1000)));
+        Assert.assertTrue(kv.exists(makeBB(i)));
+      }
+      Assert.assertEquals(makeBB("!key_not_found"), kv.get(makeBB(1000)));
+      Assert.assertEquals(makeBB(1000), kv.remove(makeBB(0)));
+      Assert.assertFalse(kv.exists(makeBB(0)));
+      Assert.assertTrue(client.fs().exists("/a"));
+    }
+  }
+
+  @Test
+  public void testExportRedirectsAndMoves() throws TException, IOException {
+    try (JiffyClient client = cluster.connect()) {
+      HashTableClient kv = client.createHashTable("/table", "local://tmp", 1, 1);
+      for (int i = 0; i < 50; i++) {
+        Assert.assertEquals(makeBB("!ok"), kv.put(makeBB(i), makeBB(i)));
+      }
+      cluster.beginExport("/table", "0_65536");
+      for (int i = 0; i < 50; i++) {
+        Assert.assertEquals(makeBB(i), kv.get(makeBB(i)));
+      }
+      for (int i = 50; i < 60; i++) {
+        Assert.assertEquals(makeBB("!ok"), kv.put(makeBB(i), makeBB(i)));
+      }
+      cluster.completeExport("/table", "0_65536");
+      for (int i = 0; i < 60; i++) {
+        Assert.assertEquals(makeBB(i), kv.get(makeBB(i)));
+      }
+      Assert.assertEquals(2, client.fs().dstatus("/table").data_blocks.size());
+    }
+  }
+
+  @Test
+  public void testFileSpillsIntoNewPartitions() throws TException, IOException {
+    try (JiffyClient client = cluster.connect()) {
+      FileWriter os = client.createFile("/file", "local://tmp");
+      StringBuilder written = new StringBuilder();
+      for (int i = 0; i < 500; i++) {
+        Assert.assertEquals(makeBB("!ok"), os.write(makeBB(i)));
+        written.append(i);
+      }
+      Assert.assertTrue(client.fs().dstatus("/file").data_blocks.size() > 1);
+
+      FileReader is = client.openFile("/file");
+      StringBuilder read = new StringBuilder();
+      for (int i = 0; i < 500; i++) {
+        read.append(ByteBufferUtils.toString(is.read(String.valueOf(i).length())));
+      }
+      Assert.assertEquals(written.toString(), read.toString());
+      Assert.assertEquals(makeBB("!msg_not_found"), is.read(1));
+    }
+  }
+
+  @Test
+  public void testFileReadsBinaryDataAcrossPartitions() throws TException, IOException {
+    try (JiffyClient client = cluster.connect()) {
+      // Chunks of 7 bytes fill partitions of 1001 exactly, so reads start on the boundaries
+      byte[] data = new byte[3003];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = (byte) (i * 31);
+      }
+      FileWriter os = client.createFile("/binary", "local://tmp");
+      for (int i = 0; i < data.length; i += 7) {
+        Assert.assertEquals(makeBB("!ok"), os.write(ByteBuffer.wrap(data, i, 7)));
+      }
+
+      FileReader is = client.openFile("/binary");
+      ByteBuffer read = ByteBuffer.allocate(data.length);
+      while (read.remaining() >= 7) {
+        ByteBuffer chunk = ByteBuffer.allocate(7);
+        Assert.assertEquals(7, is.read(chunk));
+        chunk.flip();
+        read.put(chunk);
+      }
+      Assert.assertEquals(-1, is.read(ByteBuffer.allocate(1)));
+      Assert.assertArrayEquals(data, read.array());
+
+      // A single read spanning all partitions is stitched into the caller's buffer
+      Assert.assertTrue(is.seek(0));
+      ByteBuffer all = ByteBuffer.allocate(data.length);
+      is.readFully(all);
+      Assert.assertArrayEquals(data, all.array());
+      Assert.assertEquals(makeBB("!msg_not_found"), is.read(1));
+    }
+  }
+
+  @Test
+  public void testFileReaderFollowsDataWrittenAfterReadingAhead() throws TException, IOException {
+    try (JiffyClient client = cluster.connect()) {
+      // Fill the first partition exactly, so that the reader ends up on its boundary
+      byte[] data = new byte[1001 + 500];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = (byte) i;
+      }
+      FileWriter os = client.createFile("/tail", "local://tmp");
+      Assert.assertEquals(makeBB("!ok"), os.write(ByteBuffer.wrap(data, 0, 1001)));
+
+      FileReader is = client.openFile("/tail");
+      is.setReadAhead(256);
+      ByteBuffer read = ByteBuffer.allocate(data.length);
+      while (read.position() < 1001) {
+        ByteBuffer chunk = read.duplicate();
+        chunk.limit(Math.min(chunk.position() + 10, 1001));
+        Assert.assertTrue(is.read(chunk) > 0);
+        read.position(chunk.position());
+      }
+      Assert.assertEquals(-1, is.read(ByteBuffer.allocate(10)));
+
+      // The rest spills into a partition the reader has not seen yet
+      Assert.assertEquals(makeBB("!ok"), os.write(ByteBuffer.wrap(data, 1001, 500)));
+      is.readFully(read);
+      Assert.assertArrayEquals(data, read.array());
+      Assert.assertEquals(-1, is.read(ByteBuffer.allocate(10)));
+    }
+  }
+
+  @Test
+  public void testFileReaderWithoutReadAheadFollowsNewPartitions() throws TException, IOException {
+    try (JiffyClient client = cluster.connect()) {
+      byte[] data = new byte[1001 + 300];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = (byte) (i * 3);
+      }
+      FileWriter os = client.createFile("/direct", "local://tmp");
+      Assert.assertEquals(makeBB("!ok"), os.write(ByteBuffer.wrap(data, 0, 1001)));
+
+      // Nothing has asked for the partition capacity by the time the reader reaches the end
+      FileReader is = client.openFile("/direct");
+      is.setReadAhead(0);
+      ByteBuffer read = ByteBuffer.allocate(data.length);
+      read.limit(1001);
+      is.readFully(read);
+      read.limit(read.capacity());
+
+      Assert.assertEquals(makeBB("!ok"), os.write(ByteBuffer.wrap(data, 1001, 300)));
+      is.readFully(read);
+      Assert.assertArrayEquals(data, read.array());
+      Assert.assertEquals(-1, is.read(ByteBuffer.allocate(10)));
+    }
+  }
+
+  @Test
+  public void testFileReaderReadsAheadIntoNewPartitions() throws TException, IOException {
+    try (JiffyClient client = cluster.connect()) {
+      byte[] data = new byte[3 * 1001 + 200];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = (byte) (i * 7);
+      }
+      FileWriter os = client.createFile("/ahead", "local://tmp");
+      Assert.assertEquals(makeBB("!ok"), os.write(ByteBuffer.wrap(data, 0, 500)));
+
+      // Opened while the file has a single partition; reads ahead find the ones added since
+      FileReader is = client.openFile("/ahead");
+      is.setReadAhead(512);
+      Assert.assertEquals(makeBB("!ok"), os.write(ByteBuffer.wrap(data, 500, data.length - 500)));
+      ByteBuffer read = ByteBuffer.allocate(data.length);
+      while (read.hasRemaining()) {
+        ByteBuffer chunk = read.duplicate();
+        chunk.limit(Math.min(chunk.position() + 50, chunk.limit()));
+        Assert.assertTrue(is.read(chunk) > 0);
+        read.position(chunk.position());
+      }
+      Assert.assertArrayEquals(data, read.array());
+      Assert.assertEquals(-1, is.read(ByteBuffer.allocate(10)));
+    }
+  }
+
+  @Test
+  public void testPositionalFileReadsSpanPartitions() throws TException, IOException {
+    try (JiffyClient client = cluster.connect()) {
+      byte[] data = new byte[3500];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = (byte) (i * 13);
+      }
+      FileWriter os = client.createFile("/pread", "local://tmp");
+      Assert.assertEquals(makeBB("!ok"), os.write(ByteBuffer.wrap(data)));
+
+      FileReader is = client.openFile("/pread");
+      ByteBuffer all = ByteBuffer.allocate(data.length);
+      Assert.assertEquals(data.length, is.pread(0, all));
+      Assert.assertArrayEquals(data, all.array());
+
+      ByteBuffer tail = ByteBuffer.allocate(1000);
+      Assert.assertEquals(500, is.pread(3000, tail));
+      Assert.assertEquals(500, tail.position());
+      Assert.assertEquals(-1, is.pread(data.length, ByteBuffer.allocate(10)));
+
+      List<Long> positions = Arrays.asList(990L, 1995L, 10L);
+      List<ByteBuffer> dsts = Arrays.asList(ByteBuffer.allocate(30), ByteBuffer.allocate(1100),
+          ByteBuffer.allocate(5));
+      Assert.assertEquals(Arrays.asList(30, 1100, 5), is.multiPread(positions, dsts));
+      for (int i = 0; i < positions.size(); i++) {
+        int from = positions.get(i).intValue();
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, from, from + dsts.get(i).capacity()),
+            dsts.get(i).array());
+      }
+
+      // Positional reads leave the reader where it was
+      ByteBuffer head = ByteBuffer.allocate(10);
+      is.readFully(head);
+      Assert.assertArrayEquals(Arrays.copyOf(data, 10), head.array());
+    }
+  }
+
+  @Test
+  public void testFileSeeksWithinKnownSizeLocally() throws TException, IOException {
+    ClientMetrics metrics = ClientMetrics.get();
+    boolean enabled = metrics.isEnabled();
+    metrics.setEnabled(true);
+    try (JiffyClient client = cluster.connect()) {
+      // Exactly three full partitions
+      byte[] data = new byte[3003];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = (byte) (i * 17);
+      }
+      FileWriter os = client.createFile("/seek", "local://tmp");
+      Assert.assertEquals(makeBB("!ok"), os.write(ByteBuffer.wrap(data)));
+
+      FileReader is = client.openFile("/seek");
+      Assert.assertTrue(is.seek(2500));
+      long seeks = seekCommands(metrics);
+      for (int i = 0; i < 100; i++) {
+        Assert.assertTrue(is.seek(i * 37 % data.length));
+      }
+      Assert.assertTrue(is.seek(1990));
+      Assert.assertTrue(is.skip(5));
+      Assert.assertEquals(1995, is.position());
+      Assert.assertEquals(seeks, seekCommands(metrics));
+      ByteBuffer read = ByteBuffer.allocate(20);
+      is.readFully(read);
+      Assert.assertArrayEquals(Arrays.copyOfRange(data, 1995, 2015), read.array());
+
+      Assert.assertTrue(is.seek(data.length));
+      Assert.assertEquals(-1, is.read(ByteBuffer.allocate(1)));
+      Assert.assertFalse(is.skip(1));
+      Assert.assertFalse(is.skip(-data.length - 1));
+      Assert.assertEquals(data.length, is.position());
+    } finally {
+      metrics.setEnabled(enabled);
+    }
+  }
+
+  private static long seekCommands(ClientMetrics metrics) {
+    LatencyHistogram.Snapshot seeks = metrics.snapshot().getCommands().get("seek");
+    return seeks == null ? 0 : seeks.getCount();
+  }
+
+  @Test
+  public void testPartitionMetricsDroppedWhenLastClientCloses() throws TException, IOException {
+    ClientMetrics metrics = ClientMetrics.get();
+    boolean enabled = metrics.isEnabled();
+    metrics.setEnabled(true);
+    try (JiffyClient client = cluster.connect()) {
+      HashTableClient first = client.createHashTable("/metered", "local://tmp", 2, 1);
+      HashTableClient second = client.openHashTable("/metered");
+      for (int i = 0; i < 20; i++) {
+        Assert.assertEquals(makeBB("!ok"), first.put(makeBB(i), makeBB(i)));
+        Assert.assertEquals(makeBB(i), second.get(makeBB(i)));
+      }
+      Assert.assertEquals(2, metrics.snapshot().getPartitions().get("/metered").size());
+
+      first.close();
+      Assert.assertEquals(2, metrics.snapshot().getPartitions().get("/metered").size());
+      second.close();
+      Assert.assertFalse(metrics.snapshot().getPartitions().containsKey("/metered"));
+    } finally {
+      metrics.setEnabled(enabled);
+    }
+  }
+
+  @Test
+  public void testBufferedFileWritesCoalesceAcrossPartitions() throws TException, IOException {
+    try (JiffyClient client = cluster.connect()) {
+      byte[] data = new byte[5000];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = (byte) (i * 7);
+      }
+      FileWriter os = client.createFile("/buffered", "local://tmp");
+      os.setWriteBuffer(256, 2);
+      int written = 0;
+      for (int size = 1; written < 3000; size = size % 13 + 1) {
+        Assert.assertEquals(makeBB("!ok"), os.write(ByteBuffer.wrap(data, written, size)));
+        written += size;
+      }
+      // Large writes go straight from the caller's buffer
+      Assert.assertEquals(makeBB("!ok"),
+          os.write(ByteBuffer.wrap(data, written, data.length - written)));
+      Assert.assertEquals(makeBB("!ok"), os.sync());
+      Assert.assertTrue(client.fs().dstatus("/buffered").data_blocks.size() > 4);
+
+      FileReader is = client.openFile("/buffered");
+      ByteBuffer read = ByteBuffer.allocate(data.length);
+      is.readFully(read);
+      Assert.assertArrayEquals(data, read.array());
+      Assert.assertEquals(-1, is.read(ByteBuffer.allocate(1)));
+    }
+  }
+
+  @Test
+  public void testQueueHandsOffBetweenPartitions() throws TException, IOException {
+    try (JiffyClient client = cluster.connect()) {
+      FifoQueueClient producer = client.createQueue("/queue", "local://tmp");
+      FifoQueueClient consumer = client.openQueue("/queue");
+      FifoQueueClient reader = client.openQueue("/queue");
+      Assert.assertEquals(makeBB("!msg_not_found"), consumer.dequeue());
+      long bytes = 0;
+      for (int i = 0; i < 100; i++) {
+        Assert.assertEquals(makeBB("!ok"), producer.enqueue(makeBB(i)));
+        bytes += String.valueOf(i).length();
+      }
+      List<ByteBuffer> batch = new ArrayList<>();
+      for (int i = 100; i < 300; i++) {
+        batch.add(makeBB(i));
+        bytes += String.valueOf(i).length();
+      }
+      producer.enqueue(batch);
+      Assert.assertTrue(client.fs().dstatus("/queue").data_blocks.size() > 2);
+      Assert.assertEquals(bytes, producer.length());
+
+      for (int i = 0; i < 300; i++) {
+        Assert.assertEquals(makeBB(i), reader.readNext());
+      }
+      Assert.assertEquals(makeBB("!msg_not_found"), reader.readNext());
+
+      Assert.assertEquals(makeBB(0), consumer.front());
+      for (int i = 0; i < 50; i++) {
+        Assert.assertEquals(makeBB(i), consumer.dequeue());
+      }
+      List<ByteBuffer> items = consumer.dequeue(300);
+      Assert.assertEquals(250, items.size());
+      for (int i = 0; i < 250; i++) {
+        Assert.assertEquals(makeBB(i + 50), items.get(i));
+      }
+      Assert.assertEquals(makeBB("!msg_not_found"), consumer.dequeue());
+      Assert.assertEquals(0, consumer.length());
+      producer.close();
+      consumer.close();
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testSharedLogSpansPartitions() throws TException, IOException {
+    try (JiffyClient client = cluster.connect()) {
+      SharedLogClient log = client.createSharedLog("/log", "local://tmp");
+      List<ByteBuffer> even = Collections.singletonList(makeBB("even"));
+      List<ByteBuffer> odd = Collections.singletonList(makeBB("odd"));
+      for (int i = 0; i < 100; i += 2) {
+        Assert.assertEquals(makeBB("!ok"), log.write(i, makeBB(i), even));
+        Assert.assertEquals(makeBB("!ok"), log.write(i + 1, makeBB(i + 1), odd));
+      }
+      List<ByteBuffer> batch = new ArrayList<>();
+      for (int i = 100; i < 300; i++) {
+        batch.add(makeBB(i));
+      }
+      List<ByteBuffer> both = Arrays.asList(makeBB("even"), makeBB("odd"));
+      for (ByteBuffer status : log.write(100, batch, both)) {
+        Assert.assertEquals(makeBB("!ok"), status);
+      }
+      Assert.assertTrue(client.fs().dstatus("/log").data_blocks.size() > 2);
+
+      List<ByteBuffer> scanned = log.scan(0, 20, odd);
+      Assert.assertEquals(10, scanned.size());
+      for (int i = 0; i < 10; i++) {
+        Assert.assertEquals(makeBB(2 * i + 1), scanned.get(i));
+      }
+
+      SharedLogClient reader = client.openSharedLog("/log");
+      Iterator<ByteBuffer> it = reader.scanner(0, 299, 16, even);
+      for (int i = 0; i < 100; i += 2) {
+        Assert.assertEquals(makeBB(i), it.next());
+      }
+      for (int i = 100; i < 300; i++) {
+        Assert.assertEquals(makeBB(i), it.next());
+      }
+      Assert.assertFalse(it.hasNext());
+
+      // Ranges are clipped to each partition, which rejects starts outside of it
+      List<ByteBuffer> tail = reader.scan(250, 260, both);
+      Assert.assertEquals(11, tail.size());
+      for (int i = 0; i < tail.size(); i++) {
+        Assert.assertEquals(makeBB(250 + i), tail.get(i));
+      }
+      try {
+        reader.scan(1000, 1010, both);
+        Assert.fail("Scan past the end of the log should fail");
+      } catch (IllegalStateException e) {
+        Assert.assertTrue(e.getMessage().contains("!invalid_argument"));
+      }
+
+      Assert.assertEquals("0".length() + "even".length(), log.trim(0, 0));
+      Assert.assertEquals(makeBB(2), log.scan(0, 2, even).get(0));
+      Assert.assertTrue(reader.trim(200, 299) > 0);
+      Assert.assertEquals(50, log.scan(150, 299, both).size());
+      reader.close();
+      log.close();
+    }
+  }
+
+  @Test
+  public void testSharedLogWithoutFirstPositions() throws TException, IOException {
+    try (JiffyClient client = cluster.connect()) {
+      // Entries of 4 bytes, so partitions of 1001 bytes start at positions 0, 250 and 500
+      SharedLogClient log = client.createSharedLog("/untagged", "local://tmp");
+      List<ByteBuffer> streams = Collections.singletonList(makeBB("s"));
+      List<ByteBuffer> batch = new ArrayList<>();
+      for (int i = 0; i < 600; i++) {
+        batch.add(makeBB(String.format("%03d", i)));
+      }
+      for (ByteBuffer status : log.write(0, batch, streams)) {
+        Assert.assertEquals(makeBB("!ok"), status);
+      }
+      log.close();
+      Assert.assertEquals(3, client.fs().dstatus("/untagged").data_blocks.size());
+
+      // As written by a client that does not record where each partition starts
+      cluster.removeTags("/untagged", "shared_log.first_position.");
+      SharedLogClient reader = client.openSharedLog("/untagged");
+      Iterator<ByteBuffer> it = reader.scanner(0, 599, 50, streams);
+      for (int i = 0; i < 600; i++) {
+        Assert.assertEquals(batch.get(i), it.next());
+      }
+      Assert.assertFalse(it.hasNext());
+      Assert.assertEquals(batch.subList(260, 281), reader.scan(260, 280, streams));
+
+      Assert.assertEquals(100 * 4, reader.trim(500, 599));
+      Assert.assertTrue(reader.scan(500, 599, streams).isEmpty());
+      Assert.assertEquals(batch.subList(250, 500), reader.scan(250, 499, streams));
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testLatency() throws TException, IOException {
+    cluster.setLatency(20, TimeUnit.MILLISECONDS);
+    try (JiffyClient client = cluster.connect()) {
+      HashTableClient kv = client.createHashTable("/table", "local://tmp", 1, 1);
+      long start = System.nanoTime();
+      Assert.assertEquals(makeBB("!ok"), kv.put(makeBB(1), makeBB(1)));
+      Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+  }
+}
@@ -0,0 +1,659 @@
+package jiffy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import jiffy.directory.Flags;
+import jiffy.directory.Permissions;
+import jiffy.directory.directory_service;
+import jiffy.directory.directory_service_exception;
+import jiffy.directory.rpc_data_status;
+import jiffy.directory.rpc_dir_entry;
+import jiffy.directory.rpc_file_status;
+import jiffy.directory.rpc_file_type;
+import jiffy.directory.rpc_perm_options;
+import jiffy.directory.rpc_replica_chain;
+import jiffy.directory.rpc_storage_mode;
+import jiffy.lease.lease_service;
+import jiffy.lease.lease_service_exception;
+import jiffy.lease.rpc_lease_ack;
+
+/**
+ * In-memory directory tree backing the directory and lease services of {@link InMemoryCluster}.
+ *
+ * Paths and error messages follow the C++ directory service, so callers that match on them
+ * behave the same. Partitions are allocated on an {@link InMemoryStorage}; backing paths are
+ * recorded but sync, dump and load do nothing. Leases work as in the real service: renewing a
+ * path touches it, and unpinned paths that go unrenewed for longer than the lease and grace
+ * periods are removed by {@link #removeExpired()}.
+ */
+class InMemoryDirectory implements directory_service.Iface, lease_service.Iface {
+
+  private static class Node {
+
+    final TreeMap<String, Node> children;
+    final rpc_file_status status;
+    final rpc_data_status data;
+    // Live partition objects in data_blocks order
+    final List<InMemoryBlock> partitions;
+
+    Node(rpc_data_status data, int permissions) {
+      boolean file = data != null;
+      this.children = file ? null : new TreeMap<>();
+      this.status = new rpc_file_status(file ? rpc_file_type.rpc_regular
+          : rpc_file_type.rpc_directory, permissions, System.currentTimeMillis());
+      this.data = data;
+      this.partitions = file ? new ArrayList<>() : null;
+    }
+
+    boolean isDirectory() {
+      return children != null;
+    }
+  }
+
+  /**
+   * A hash table partition handing the upper half of its slots over to a new partition.
+   */
+  private static class Export {
+
+    final InMemoryBlock.HashTable source;
+    final InMemoryBlock.HashTable target;
+    final List<String> targetChain;
+
+    Export(InMemoryBlock.HashTable source, InMemoryBlock.HashTable target,
+        List<String> targetChain) {
+      this.source = source;
+      this.target = target;
+      this.targetChain = targetChain;
+    }
+  }
+
+  private final InMemoryStorage storage;
+  private final long blockCapacity;
+  private final long leasePeriodMs;
+  private final long gracePeriodMs;
+  private final Node root;
+  private final Map<String, Export> exports;
+
+  InMemoryDirectory(InMemoryStorage storage, long blockCapacity, long leasePeriodMs,
+      long gracePeriodMs) {
+    this.storage = storage;
+    this.blockCapacity = blockCapacity;
+    this.leasePeriodMs = leasePeriodMs;
+    this.gracePeriodMs = gracePeriodMs;
+    this.root = new Node(null, Permissions.all);
+    this.exports = new HashMap<>();
+  }
+
+  long getLeasePeriodMs() {
+    return leasePeriodMs;
+  }
+
+  private static List<String> elements(String path) {
+    List<String> names = new ArrayList<>();
+    for (String name : path.split("/")) {
+      if (!name.isEmpty() && !name.equals(".")) {
+        names.add(name);
+      }
+    }
+    return names;
+  }
+
+  private static String parentOf(String path) {
+    List<String> names = elements(path);
+    return "/" + String.join("/", names.subList(0, Math.max(0, names.size() - 1)));
+  }
+
+  private static String nameOf(String path) {
+    List<String> names = elements(path);
+    return names.isEmpty() ? "/" : names.get(names.size() - 1);
+  }
+
+  private Node find(String path) {
+    Node node = root;
+    for (String name : elements(path)) {
+      if (!node.isDirectory()) {
+        return null;
+      }
+      node = node.children.get(name);
+      if (node == null) {
+        return null;
+      }
+    }
+    return node;
+  }
+
+  private Node node(String path) throws directory_service_exception {
+    Node node = find(path);
+    if (node == null) {
+      throw new directory_service_exception("Path does not exist: " + path);
+    }
+    return node;
+  }
+
+  private Node directory(String path) throws directory_service_exception {
+    Node node = node(path);
+    if (!node.isDirectory()) {
+      throw new directory_service_exception("Path corresponds to a file: " + path);
+    }
+    return node;
+  }
+
+  private Node file(String path) throws directory_service_exception {
+    Node node = node(path);
+    if (node.isDirectory()) {
+      throw new directory_service_exception("Path corresponds to a directory: " + path);
+    }
+    return node;
+  }
+
+  @Override
+  public synchronized void createDirectory(String path) throws directory_service_exception {
+    Node parent = directory(parentOf(path));
+    parent.children.putIfAbsent(nameOf(path), new Node(null, Permissions.all));
+  }
+
+  @Override
+  public synchronized void createDirectories(String path) throws directory_service_exception {
+    Node node = root;
+    String soFar = "";
+    for (String name : elements(path)) {
+      soFar += "/" + name;
+      Node child = node.children.get(name);
+      if (child == null) {
+        child = new Node(null, Permissions.all);
+        node.children.put(name, child);
+      } else if (!child.isDirectory()) {
+        throw new directory_service_exception("Cannot create directory: " + soFar + " is a file.");
+      }
+      node = child;
+    }
+  }
+
+  @Override
+  public synchronized rpc_data_status open(String path) throws directory_service_exception {
+    return dstatus(path);
+  }
+
+  @Override
+  public synchronized rpc_data_status create(String path, String type, String backingPath,
+      int numBlocks, int chainLength, int flags, int permissions, List<String> partitionNames,
+      List<String> partitionMetadata, Map<String, String> tags, String hostName)
+      throws directory_service_exception {
+    Node parent = parentForCreate(path, numBlocks, chainLength);
+    if (parent.children.containsKey(nameOf(path))) {
+      throw new directory_service_exception("Child node already exists: " + nameOf(path));
+    }
+    return createFile(parent, path, type, backingPath, numBlocks, chainLength, flags,
+        permissions, partitionNames, partitionMetadata, tags);
+  }
+
+  @Override
+  public synchronized rpc_data_status openOrCreate(String path, String type, String backingPath,
+      int numBlocks, int chainLength, int flags, int permissions, List<String> partitionNames,
+      List<String> partitionMetadata, Map<String, String> tags)
+      throws directory_service_exception {
+    Node parent = parentForCreate(path, numBlocks, chainLength);
+    Node existing = parent.children.get(nameOf(path));
+    if (existing != null) {
+      if (existing.isDirectory()) {
+        throw new directory_service_exception(
+            "Cannot open or create " + path + ": is a directory");
+      }
+      return new rpc_data_status(existing.data);
+    }
+    return createFile(parent, path, type, backingPath, numBlocks, chainLength, flags,
+        permissions, partitionNames, partitionMetadata, tags);
+  }
+
+  private Node parentForCreate(String path, int numBlocks, int chainLength)
+      throws directory_service_exception {
+    if (numBlocks == 0) {
+      throw new directory_service_exception("File cannot have zero blocks");
+    }
+    if (chainLength == 0) {
+      throw new directory_service_exception("Chain length cannot be zero");
+    }
+    if (elements(path).isEmpty()) {
+      throw new directory_service_exception("Path is a directory: " + path);
+    }
+    String parentPath = parentOf(path);
+    Node parent = find(parentPath);
+    if (parent == null) {
+      createDirectories(parentPath);
+      parent = find(parentPath);
+    } else if (!parent.isDirectory()) {
+      throw new directory_service_exception(
+          "Cannot create file in dir " + parentPath + ": " + nameOf(parentPath) + " is a file.");
+    }
+    return parent;
+  }
+
+  private rpc_data_status createFile(Node parent, String path, String type, String backingPath,
+      int numBlocks, int chainLength, int flags, int permissions, List<String> partitionNames,
+      List<String> partitionMetadata, Map<String, String> tags) {
+    rpc_data_status data = new rpc_data_status(type, backingPath, chainLength, new ArrayList<>(),
+        flags, tags == null ? new HashMap<>() : new HashMap<>(tags));
+    Node node = new Node(data, permissions);
+    for (int i = 0; i < numBlocks; i++) {
+      addPartition(node, path, partitionNames.get(i), partitionMetadata.get(i));
+    }
+    parent.children.put(nameOf(path), node);
+    return new rpc_data_status(data);
+  }
+
+  private rpc_replica_chain addPartition(Node node, String path, String name, String metadata) {
+    InMemoryBlock block = newBlock(node.data.type, path, name);
+    List<String> blockIds = storage.add(block, node.data.chain_length);
+    rpc_replica_chain chain = new rpc_replica_chain(blockIds, name, metadata,
+        rpc_storage_mode.rpc_in_memory);
+    node.data.data_blocks.add(chain);
+    node.partitions.add(block);
+    return chain;
+  }
+
+  private InMemoryBlock newBlock(String type, String path, String name) {
+    switch (type) {
+      case "hashtable":
+        return new InMemoryBlock.HashTable(path, name, blockCapacity);
+      case "file":
+        int next = Integer.parseInt(name) + 1;
+        return new InMemoryBlock.File(path, name, blockCapacity,
+            () -> nextPartition(path, String.valueOf(next)));
+      case "fifoqueue":
+        int following = Integer.parseInt(name) + 1;
+        return new InMemoryBlock.FifoQueue(path, name, blockCapacity,
+            () -> nextPartition(path, String.valueOf(following)));
+      case "shared_log":
+        return new InMemoryBlock.SharedLog(path, name, blockCapacity,
+            partition -> nextPartition(path, partition));
+      default:
+        throw new IllegalArgumentException("Unsupported data structure type: " + type);
+    }
+  }
+
+  private synchronized List<String> nextPartition(String path, String name) {
+    Node node = find(path);
+    if (node == null || node.isDirectory()) {
+      throw new IllegalStateException("Data structure removed while being written: " + path);
+    }
+    for (rpc_replica_chain chain : node.data.data_blocks) {
+      if (chain.name.equals(name)) {
+        return chain.block_ids;
+      }
+    }
+    return addPartition(node, path, name, "regular").block_ids;
+  }
+
+  @Override
+  public synchronized boolean exists(String path) {
+    return find(path) != null;
+  }
+
+  @Override
+  public synchronized long lastWriteTime(String path) throws directory_service_exception {
+    return node(path).status.last_write_time;
+  }
+
+  @Override
+  public synchronized void setPermissions(String path, int perms, rpc_perm_options opts)
+      throws directory_service_exception {
+    rpc_file_status status = node(path).status;
+    switch (opts) {
+      case rpc_replace:
+        status.setPermissions(perms & Permissions.mask);
+        break;
+      case rpc_add:
+        status.setPermissions(status.permissions | (perms & Permissions.mask));
+        break;
+      case rpc_remove:
+        status.setPermissions(status.permissions & ~(perms & Permissions.mask));
+        break;
+      default:
+        break;
+    }
+  }
+
+  @Override
+  public synchronized int getPermissions(String path) throws directory_service_exception {
+    return node(path).status.permissions;
+  }
+
+  @Override
+  public synchronized void remove(String path) throws directory_service_exception {
+    if (elements(path).isEmpty()) {
+      if (root.children.isEmpty()) {
+        return;
+      }
+      throw new directory_service_exception("Directory not empty: " + path);
+    }
+    Node parent = directory(parentOf(path));
+    Node child = parent.children.get(nameOf(path));
+    if (child == null) {
+      throw new directory_service_exception("Path does not exist: " + path);
+    }
+    if (child.isDirectory() && !child.children.isEmpty()) {
+      throw new directory_service_exception("Directory not empty: " + path);
+    }
+    parent.children.remove(nameOf(path));
+    clear(child);
+  }
+
+  @Override
+  public synchronized void removeAll(String path) throws directory_service_exception {
+    if (elements(path).isEmpty()) {
+      for (Node child : root.children.values()) {
+        clear(child);
+      }
+      root.children.clear();
+      return;
+    }
+    Node parent = directory(parentOf(path));
+    Node child = parent.children.remove(nameOf(path));
+    if (child == null) {
+      throw new directory_service_exception("Node does not exist: " + nameOf(path));
+    }
+    clear(child);
+  }
+
+  private void clear(Node node) {
+    if (node.isDirectory()) {
+      for (Node child : node.children.values()) {
+        clear(child);
+      }
+    } else {
+      for (rpc_replica_chain chain : node.data.data_blocks) {
+        storage.remove(chain.block_ids);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void sync(String path, String backingPath)
+      throws directory_service_exception {
+    node(path);
+  }
+
+  @Override
+  public synchronized void dump(String path, String backingPath)
+      throws directory_service_exception {
+    node(path);
+  }
+
+  @Override
+  public synchronized void load(String path, String backingPath)
+      throws directory_service_exception {
+    node(path);
+  }
+
+  @Override
+  public synchronized void rename(String oldPath, String newPath)
+      throws directory_service_exception {
+    if (oldPath.equals(newPath)) {
+      return;
+    }
+    Node oldParent = directory(parentOf(oldPath));
+    Node child = oldParent.children.get(nameOf(oldPath));
+    if (child == null) {
+      throw new directory_service_exception("Path does not exist: " + oldPath);
+    }
+    Node newParent = directory(parentOf(newPath));
+    String newName = nameOf(newPath);
+    Node target = newParent.children.get(newName);
+    if (target != null) {
+      if (target.isDirectory()) {
+        newParent = target;
+        newName = nameOf(oldPath);
+      } else {
+        newParent.children.remove(newName);
+        clear(target);
+      }
+    }
+    oldParent.children.remove(nameOf(oldPath));
+    newParent.children.put(newName, child);
+  }
+
+  @Override
+  public synchronized rpc_file_status status(String path) throws directory_service_exception {
+    return new rpc_file_status(node(path).status);
+  }
+
+  @Override
+  public synchronized List<rpc_dir_entry> directoryEntries(String path)
+      throws directory_service_exception {
+    List<rpc_dir_entry> entries = new ArrayList<>();
+    directory(path).children.forEach((name, child) ->
+        entries.add(new rpc_dir_entry(name, new rpc_file_status(child.status))));
+    return entries;
+  }
+
+  @Override
+  public synchronized List<rpc_dir_entry> recursiveDirectoryEntries(String path)
+      throws directory_service_exception {
+    List<rpc_dir_entry> entries = new ArrayList<>();
+    collectEntries(directory(path), entries);
+    return entries;
+  }
+
+  private void collectEntries(Node dir, List<rpc_dir_entry> entries) {
+    dir.children.forEach((name, child) -> {
+      entries.add(new rpc_dir_entry(name, new rpc_file_status(child.status)));
+      if (child.isDirectory()) {
+        collectEntries(child, entries);
+      }
+    });
+  }
+
+  @Override
+  public synchronized rpc_data_status dstatus(String path) throws directory_service_exception {
+    return new rpc_data_status(file(path).data);
+  }
+
+  @Override
+  public synchronized void addTags(String path, Map<String, String> tags)
+      throws directory_service_exception {
+    file(path).data.tags.putAll(tags);
+  }
+
+  /**
+   * Drop the tags of {@code path} whose names start with {@code prefix}.
+   */
+  synchronized void removeTags(String path, String prefix) throws directory_service_exception {
+    file(path).data.tags.keySet().removeIf(name -> name.startsWith(prefix));
+  }
+
+  @Override
+  public synchronized boolean isRegularFile(String path) throws directory_service_exception {
+    return !node(path).isDirectory();
+  }
+
+  @Override
+  public synchronized boolean isDirectory(String path) throws directory_service_exception {
+    return node(path).isDirectory();
+  }
+
+  @Override
+  public synchronized rpc_replica_chain resloveFailures(String path, rpc_replica_chain chain)
+      throws directory_service_exception {
+    // Blocks never fail here
+    return chain;
+  }
+
+  @Override
+  public synchronized rpc_replica_chain addReplicaToChain(String path, rpc_replica_chain chain)
+      throws directory_service_exception {
+    return chain;
+  }
+
+  @Override
+  public synchronized rpc_replica_chain addDataBlock(String path, String partitionName,
+      String partitionMetadata) throws directory_service_exception {
+    Node node = file(path);
+    return new rpc_replica_chain(addPartition(node, path, partitionName, partitionMetadata));
+  }
+
+  @Override
+  public synchronized void removeDataBlock(String path, String partitionName)
+      throws directory_service_exception {
+    Node node = file(path);
+    int i = partitionIndex(node, path, partitionName);
+    storage.remove(node.data.data_blocks.remove(i).block_ids);
+    node.partitions.remove(i);
+  }
+
+  @Override
+  public synchronized void requestPartitionDataUpdate(String path, String oldPartitionName,
+      String newPartitionName, String partitionMetadata) throws directory_service_exception {
+    Node node = file(path);
+    rpc_replica_chain chain = node.data.data_blocks
+        .get(partitionIndex(node, path, oldPartitionName));
+    chain.setName(newPartitionName);
+    chain.setMetadata(partitionMetadata);
+  }
+
+  @Override
+  public synchronized long getStorageCapacity(String path, String partitionName)
+      throws directory_service_exception {
+    Node node = file(path);
+    return node.partitions.get(partitionIndex(node, path, partitionName)).capacity;
+  }
+
+  private static int partitionIndex(Node node, String path, String name)
+      throws directory_service_exception {
+    List<rpc_replica_chain> chains = node.data.data_blocks;
+    for (int i = 0; i < chains.size(); i++) {
+      if (chains.get(i).name.equals(name)) {
+        return i;
+      }
+    }
+    throw new directory_service_exception(
+        "Cannot find partition: " + name + " under file: " + path);
+  }
+
+  /**
+   * Start moving the upper half of the slots of hash table partition {@code partitionName} to
+   * a new partition: from now on the source answers requests for those slots with
+   * {@code !exporting}, and the new partition serves them when redirected.
+   */
+  synchronized void beginExport(String path, String partitionName)
+      throws directory_service_exception {
+    Node node = file(path);
+    InMemoryBlock.HashTable source = hashTablePartition(node, path, partitionName);
+    int split = (source.slotBegin() + source.slotEnd()) / 2;
+    if (split == source.slotBegin()) {
+      throw new directory_service_exception("Partition too small to split: " + partitionName);
+    }
+    String targetName = split + "_" + source.slotEnd();
+    InMemoryBlock.HashTable target = new InMemoryBlock.HashTable(path, targetName,
+        blockCapacity);
+    target.beginImport();
+    List<String> targetChain = storage.add(target, node.data.chain_length);
+    if (exports.putIfAbsent(path + "@" + partitionName,
+        new Export(source, target, targetChain)) != null) {
+      storage.remove(targetChain);
+      throw new directory_service_exception("Export already in progress for " + partitionName);
+    }
+    source.beginExport(split, target, targetChain);
+  }
+
+  /**
+   * Finish an export started by {@link #beginExport(String, String)}: both partitions are
+   * renamed after their new slot ranges, the new one joins the data status, and the source
+   * answers requests for the exported slots with {@code !block_moved}.
+   */
+  synchronized void completeExport(String path, String partitionName)
+      throws directory_service_exception {
+    Export export = exports.remove(path + "@" + partitionName);
+    if (export == null) {
+      throw new directory_service_exception("No export in progress for " + partitionName);
+    }
+    Node node = file(path);
+    rpc_replica_chain chain = node.data.data_blocks
+        .get(partitionIndex(node, path, partitionName));
+    export.source.completeExport();
+    export.target.completeImport();
+    chain.setName(export.source.name);
+    node.data.data_blocks.add(new rpc_replica_chain(export.targetChain, export.target.name,
+        "regular", rpc_storage_mode.rpc_in_memory));
+    node.partitions.add(export.target);
+  }
+
+  private InMemoryBlock.HashTable hashTablePartition(Node node, String path, String name)
+      throws directory_service_exception {
+    InMemoryBlock block = node.partitions.get(partitionIndex(node, path, name));
+    if (!(block instanceof InMemoryBlock.HashTable)) {
+      throw new directory_service_exception("Not a hash table partition: " + name);
+    }
+    return (InMemoryBlock.HashTable) block;
+  }
+
+  @Override
+  public synchronized rpc_lease_ack renewLeases(List<String> toRenew)
+      throws lease_service_exception {
+    long now = System.currentTimeMillis();
+    long renewed = 0;
+    for (String path : toRenew) {
+      if (!touch(path, now)) {
+        throw new lease_service_exception("Path does not exist: " + path);
+      }
+      renewed++;
+    }
+    return new rpc_lease_ack(renewed, leasePeriodMs);
+  }
+
+  private boolean touch(String path, long now) {
+    Node node = root;
+    for (String name : elements(path)) {
+      if (!node.isDirectory()) {
+        return false;
+      }
+      node = node.children.get(name);
+      if (node == null) {
+        return false;
+      }
+      node.status.setLastWriteTime(now);
+    }
+    touchAll(node, now);
+    return true;
+  }
+
+  private void touchAll(Node node, long now) {
+    node.status.setLastWriteTime(now);
+    if (node.isDirectory()) {
+      for (Node child : node.children.values()) {
+        touchAll(child, now);
+      }
+    }
+  }
+
+  /**
+   * Remove every unpinned path whose lease ran out more than a grace period ago.
+   */
+  synchronized void removeExpired() {
+    removeExpired(root, System.currentTimeMillis());
+  }
+
+  private boolean removeExpired(Node dir, long now) {
+    boolean cleared = true;
+    for (String name : new ArrayList<>(dir.children.keySet())) {
+      Node child = dir.children.get(name);
+      if (now - child.status.last_write_time < leasePeriodMs + gracePeriodMs) {
+        cleared = false;
+      } else if (child.isDirectory()) {
+        if (removeExpired(child, now)) {
+          dir.children.remove(name);
+        } else {
+          cleared = false;
+        }
+      } else if ((child.data.flags & Flags.PINNED) != 0) {
+        cleared = false;
+      } else {
+        dir.children.remove(name);
+        clear(child);
+      }
+    }
+    return cleared;
+  }
+}
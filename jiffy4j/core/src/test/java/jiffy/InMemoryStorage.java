@@ -0,0 +1,310 @@
+package jiffy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import jiffy.storage.BlockNameParser;
+import jiffy.storage.block_request_service;
+import jiffy.storage.block_response_service;
+import jiffy.storage.response_type;
+import jiffy.storage.sequence_id;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TSocket;
+
+/**
+ * In-process storage server speaking the block request/response protocol over framed binary
+ * Thrift on a loopback socket.
+ *
+ * Each connection gets a reader thread; command responses are routed to whichever connection
+ * registered the request's client ID, as the real server does. Responses and notifications can
+ * be held back by a fixed latency (see {@link #setLatency(long, TimeUnit)}); they are still
+ * delivered in the order they were produced as long as the latency is not changed while
+ * requests are in flight.
+ */
+class InMemoryStorage implements Closeable {
+
+  /**
+   * A message to a client, written through a response service stub.
+   */
+  private interface Message {
+
+    void send(block_response_service.Client client) throws TException;
+  }
+
+  private final String host;
+  private final ServerSocket serverSocket;
+  private final Thread acceptor;
+  private final Set<Connection> connections;
+  private final Map<Integer, InMemoryBlock> blocks;
+  private final Map<Long, Connection> responders;
+  private final Map<Integer, Map<Connection, Set<String>>> subscriptions;
+  private final AtomicInteger blockIds;
+  private final AtomicLong clientIds;
+  private final AtomicLong serverSeqNo;
+  private final ScheduledExecutorService delivery;
+  private volatile long latencyNanos;
+  private volatile boolean closed;
+
+  InMemoryStorage(String host) throws IOException {
+    this.host = host;
+    this.serverSocket = new ServerSocket(0, 128, InetAddress.getByName(host));
+    this.connections = ConcurrentHashMap.newKeySet();
+    this.blocks = new ConcurrentHashMap<>();
+    this.responders = new ConcurrentHashMap<>();
+    this.subscriptions = new ConcurrentHashMap<>();
+    this.blockIds = new AtomicInteger(0);
+    this.clientIds = new AtomicLong(0);
+    this.serverSeqNo = new AtomicLong(0);
+    this.delivery = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "jiffy-inmemory-delivery");
+      t.setDaemon(true);
+      return t;
+    });
+    this.latencyNanos = 0;
+    this.closed = false;
+    this.acceptor = new Thread(this::accept, "jiffy-inmemory-storage-" + port());
+    this.acceptor.setDaemon(true);
+    this.acceptor.start();
+  }
+
+  int port() {
+    return serverSocket.getLocalPort();
+  }
+
+  void setLatency(long latency, TimeUnit unit) {
+    this.latencyNanos = unit.toNanos(latency);
+  }
+
+  /**
+   * Serve {@code block} from a new replica chain of {@code chainLength} block IDs, and return
+   * their names.
+   */
+  List<String> add(InMemoryBlock block, int chainLength) {
+    List<Integer> ids = new ArrayList<>(chainLength);
+    List<String> names = new ArrayList<>(chainLength);
+    for (int i = 0; i < chainLength; i++) {
+      int id = blockIds.getAndIncrement();
+      ids.add(id);
+      names.add(host + ":" + port() + ":" + port() + ":" + id);
+    }
+    for (int id : ids) {
+      blocks.put(id, block);
+    }
+    block.setNotifier((op, key) -> notifySubscribers(ids, op, key));
+    return names;
+  }
+
+  InMemoryBlock get(String blockName) {
+    return blocks.get(BlockNameParser.parse(blockName).getBlockId());
+  }
+
+  void remove(List<String> blockNames) {
+    for (String name : blockNames) {
+      int id = BlockNameParser.parse(name).getBlockId();
+      blocks.remove(id);
+      subscriptions.remove(id);
+    }
+  }
+
+  private void accept() {
+    while (!closed) {
+      try {
+        Socket socket = serverSocket.accept();
+        socket.setTcpNoDelay(true);
+        Connection connection = new Connection(socket);
+        connections.add(connection);
+        connection.start();
+      } catch (IOException | TException e) {
+        // Socket closed on shutdown, or a client went away while connecting
+      }
+    }
+  }
+
+  private void notifySubscribers(List<Integer> ids, String op, ByteBuffer key) {
+    ByteBuffer data = InMemoryBlock.copy(key);
+    for (int id : ids) {
+      Map<Connection, Set<String>> subscribers = subscriptions.get(id);
+      if (subscribers == null) {
+        continue;
+      }
+      subscribers.forEach((connection, ops) -> {
+        boolean subscribed;
+        synchronized (ops) {
+          subscribed = ops.contains(op);
+        }
+        if (subscribed) {
+          deliver(connection, client -> client.notification(op, data.duplicate()));
+        }
+      });
+    }
+  }
+
+  private void deliver(Connection connection, Message message) {
+    long delay = latencyNanos;
+    if (delay <= 0) {
+      connection.send(message);
+    } else {
+      delivery.schedule(() -> connection.send(message), delay, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      serverSocket.close();
+    } catch (IOException ignored) {
+    }
+    for (Connection connection : connections) {
+      connection.close();
+    }
+    delivery.shutdownNow();
+  }
+
+  /**
+   * One client connection: a reader thread feeding the request processor, and a lock
+   * serializing the frames written back to the client from the reader and delivery threads.
+   */
+  private class Connection implements Runnable, block_request_service.Iface {
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final TProtocol in;
+    private final block_request_service.Processor<Connection> processor;
+    private final Thread reader;
+
+    Connection(Socket socket) throws IOException, TException {
+      this.socket = socket;
+      this.out = socket.getOutputStream();
+      this.in = new TBinaryProtocol(new TFramedTransport(new TSocket(socket)));
+      this.processor = new block_request_service.Processor<>(this);
+      this.reader = new Thread(this, "jiffy-inmemory-connection-" + socket.getPort());
+      this.reader.setDaemon(true);
+    }
+
+    void start() {
+      reader.start();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!closed) {
+          TMemoryBuffer reply = new TMemoryBuffer(64);
+          processor.process(in, new TBinaryProtocol(new TFramedTransport(reply)));
+          if (reply.length() > 0) {
+            write(reply);
+          }
+        }
+      } catch (TException | IOException e) {
+        // Client disconnected
+      } finally {
+        close();
+      }
+    }
+
+    void send(Message message) {
+      TMemoryBuffer buf = new TMemoryBuffer(64);
+      try {
+        message.send(new block_response_service.Client(
+            new TBinaryProtocol(new TFramedTransport(buf))));
+        write(buf);
+      } catch (TException | IOException e) {
+        close();
+      }
+    }
+
+    private synchronized void write(TMemoryBuffer buf) throws IOException {
+      out.write(buf.getArray(), 0, buf.length());
+      out.flush();
+    }
+
+    void close() {
+      connections.remove(this);
+      responders.values().removeIf(c -> c == this);
+      for (Map<Connection, Set<String>> subscribers : subscriptions.values()) {
+        subscribers.remove(this);
+      }
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+      }
+    }
+
+    @Override
+    public long getClientId() {
+      return clientIds.getAndIncrement();
+    }
+
+    @Override
+    public void registerClientId(int blockId, long clientId) {
+      responders.put(clientId, this);
+    }
+
+    @Override
+    public void commandRequest(sequence_id seq, int blockId, List<ByteBuffer> args) {
+      List<ByteBuffer> result = runCommand(blockId, args);
+      seq.setServerSeqNo(serverSeqNo.getAndIncrement());
+      Connection responder = responders.get(seq.getClientId());
+      if (responder != null) {
+        deliver(responder, client -> client.response(seq, result));
+      }
+    }
+
+    @Override
+    public void chainRequest(sequence_id seq, int blockId, List<ByteBuffer> args) {
+      // Chains are not replicated here, so there is nothing to forward
+      commandRequest(seq, blockId, args);
+    }
+
+    @Override
+    public List<ByteBuffer> runCommand(int blockId, List<ByteBuffer> args) {
+      InMemoryBlock block = blocks.get(blockId);
+      if (block == null) {
+        return InMemoryBlock.reply("!block_moved");
+      }
+      return block.run(args);
+    }
+
+    @Override
+    public void subscribe(int blockId, List<String> ops) {
+      Set<String> subscribed = subscriptions
+          .computeIfAbsent(blockId, id -> new ConcurrentHashMap<>())
+          .computeIfAbsent(this, c -> Collections.synchronizedSet(new HashSet<>()));
+      subscribed.addAll(ops);
+      send(client -> client.control(response_type.subscribe, ops, ""));
+    }
+
+    @Override
+    public void unsubscribe(int blockId, List<String> ops) {
+      Map<Connection, Set<String>> subscribers = subscriptions.get(blockId);
+      if (subscribers != null) {
+        Set<String> subscribed = subscribers.get(this);
+        if (subscribed != null) {
+          subscribed.removeAll(ops);
+        }
+      }
+      send(client -> client.control(response_type.unsubscribe, ops, ""));
+    }
+  }
+}
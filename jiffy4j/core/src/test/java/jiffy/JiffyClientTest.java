@@ -2,9 +2,13 @@ package jiffy;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import jiffy.directory.Flags;
 import jiffy.directory.Permissions;
 import jiffy.storage.FileReader;
@@ -145,6 +149,38 @@ public class JiffyClientTest {
     }
   }
 
+  private void multiKvOps(HashTableClient kv) throws TException {
+    System.out.println("==> Testing multi-key KV ops");
+    List<ByteBuffer> keys = new ArrayList<>();
+    List<ByteBuffer> values = new ArrayList<>();
+    List<ByteBuffer> missing = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      keys.add(makeBB(i));
+      values.add(makeBB(i + 1000));
+      missing.add(makeBB(i + 1000));
+    }
+
+    for (ByteBuffer response : kv.multiPut(keys, values)) {
+      Assert.assertEquals(makeBB("!ok"), response);
+    }
+
+    Assert.assertEquals(values, kv.multiGet(keys));
+
+    for (ByteBuffer response : kv.multiGet(missing)) {
+      Assert.assertEquals(makeBB("!key_not_found"), response);
+    }
+
+    for (boolean exists : kv.multiExists(keys)) {
+      Assert.assertTrue(exists);
+    }
+
+    Assert.assertEquals(values, kv.multiRemove(keys));
+
+    for (boolean exists : kv.multiExists(keys)) {
+      Assert.assertFalse(exists);
+    }
+  }
+
   private void fileOps(FileWriter os, FileReader is) throws TException {
     for (int i = 0; i < 1000; i++) {
       Assert.assertEquals(makeBB("!ok"), os.write(makeBB(i)));
@@ -192,6 +228,53 @@ public class JiffyClientTest {
     }
   }
 
+  @Test
+  public void testMultiKeyOps() throws InterruptedException, TException, IOException {
+    startServers(false, false);
+    try (JiffyClient client = directoryServer.connect()) {
+      client.createHashTable("/a/file.txt", "local://tmp", 4, 1);
+      HashTableClient kv = client.openHashTable("/a/file.txt");
+      multiKvOps(kv);
+    } finally {
+      stopServers();
+    }
+  }
+
+  @Test
+  public void testConcurrentHashTable() throws Exception {
+    startServers(false, false);
+    try (JiffyClient client = directoryServer.connect()) {
+      client.createHashTable("/a/file.txt", "local://tmp", 4, 1);
+      HashTableClient kv = client.openHashTable("/a/file.txt");
+      int numThreads = 8;
+      int numKeys = 1000;
+      ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+      try {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+          final int base = t * numKeys;
+          futures.add(executor.submit(() -> {
+            for (int i = base; i < base + numKeys; i++) {
+              Assert.assertEquals(makeBB("!ok"), kv.put(makeBB(i), makeBB(i)));
+              Assert.assertEquals(makeBB(i), kv.get(makeBB(i)));
+            }
+            return null;
+          }));
+        }
+        for (Future<?> future : futures) {
+          future.get();
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+      for (int i = 0; i < numThreads * numKeys; i++) {
+        Assert.assertEquals(makeBB(i), kv.remove(makeBB(i)));
+      }
+    } finally {
+      stopServers();
+    }
+  }
+
   @Test
   public void testFile() throws InterruptedException, TException, IOException {
     startServers(false, false);
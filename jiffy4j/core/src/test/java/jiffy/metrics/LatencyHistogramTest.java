@@ -0,0 +1,83 @@
+package jiffy.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import jiffy.util.ByteBufferUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testBucketsCoverValuesWithBoundedError() {
+    int previous = -1;
+    for (long v = 0; v < (1L << 36); v = v < 1000 ? v + 1 : v + v / 7) {
+      int index = LatencyHistogram.indexOf(v);
+      Assert.assertTrue(index >= previous);
+      Assert.assertTrue(LatencyHistogram.lowestValueAt(index) <= v);
+      Assert.assertTrue(Math.abs(LatencyHistogram.valueAt(index) - v) <= v / 32);
+      previous = index;
+    }
+    Assert.assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.indexOf(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram("test");
+    for (int i = 1; i <= 10000; i++) {
+      histogram.record(i * 1000L);
+    }
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    Assert.assertEquals(10000, snapshot.getCount());
+    Assert.assertEquals(5000500.0, snapshot.getMean(), 0.0);
+    Assert.assertEquals(10000000, snapshot.getMax());
+    Assert.assertEquals(5000000, snapshot.getValueAtPercentile(50), 5000000 / 32);
+    Assert.assertEquals(9900000, snapshot.getValueAtPercentile(99), 9900000 / 32);
+    Assert.assertEquals(10000000, snapshot.getValueAtPercentile(100));
+
+    histogram.reset();
+    Assert.assertEquals(0, histogram.getCount());
+    Assert.assertEquals(0, histogram.snapshot().getValueAtPercentile(99));
+  }
+
+  @Test
+  public void testDisabledMetricsRecordNothing() {
+    ClientMetrics metrics = new ClientMetrics(false, false);
+    ByteBuffer cmd = ByteBufferUtils.fromString("get");
+    metrics.recordCommand(cmd, null, metrics.start());
+    metrics.retry();
+    Assert.assertTrue(metrics.snapshot().getCommands().isEmpty());
+    Assert.assertEquals(0, metrics.getRetries());
+
+    metrics.setEnabled(true);
+    LatencyHistogram partition = metrics.partition("/table", "0_65536");
+    metrics.recordCommand(cmd, partition, metrics.start());
+    metrics.retry();
+    Assert.assertEquals(1, metrics.snapshot().getCommands().get("get").getCount());
+    Assert.assertEquals(1, partition.getCount());
+    Assert.assertEquals(1, metrics.getRetries());
+  }
+
+  @Test
+  public void testPartitionsAreDroppedOnLastRelease() throws JMException {
+    ClientMetrics metrics = new ClientMetrics(true, true);
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("jiffy.client:type=PartitionLatency,path="
+        + ObjectName.quote("/released") + ",partition=" + ObjectName.quote("0_65536"));
+
+    LatencyHistogram first = metrics.partition("/released", "0_65536");
+    Assert.assertSame(first, metrics.partition("/released", "0_65536"));
+    Assert.assertTrue(server.isRegistered(name));
+
+    metrics.releasePartition("/released", "0_65536");
+    Assert.assertTrue(server.isRegistered(name));
+    Assert.assertTrue(metrics.snapshot().getPartitions().containsKey("/released"));
+
+    metrics.releasePartition("/released", "0_65536");
+    Assert.assertFalse(server.isRegistered(name));
+    Assert.assertFalse(metrics.snapshot().getPartitions().containsKey("/released"));
+  }
+}
@@ -0,0 +1,101 @@
+package jiffy.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import jiffy.util.ByteBufferUtils;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CommandCodecTest {
+
+  private byte[] bytes(TMemoryBuffer buffer) {
+    return Arrays.copyOf(buffer.getArray(), buffer.length());
+  }
+
+  @Test
+  public void testMatchesGeneratedClient() throws TException {
+    List<ByteBuffer> args = ByteBufferUtils.fromByteBuffers(HashTableCommands.PUT,
+        ByteBufferUtils.fromString("key"), ByteBufferUtils.fromString("value"));
+
+    TMemoryBuffer expected = new TMemoryBuffer(128);
+    new block_request_service.Client(new TBinaryProtocol(expected))
+        .sendCommandRequest(new sequence_id(7, 42, -1), 3, args);
+
+    TMemoryBuffer actual = new TMemoryBuffer(128);
+    CommandCodec.writeCommandRequest(new TBinaryProtocol(actual), 7, 42, 3, args);
+
+    // The generated client numbers its messages; oneway requests ignore the sequence number
+    byte[] e = bytes(expected);
+    byte[] a = bytes(actual);
+    Assert.assertEquals(e.length, a.length);
+    int seqIdOffset = 4 + 4 + "command_request".length();
+    for (int i = 0; i < e.length; i++) {
+      if (i < seqIdOffset || i >= seqIdOffset + 4) {
+        Assert.assertEquals("Mismatch at byte " + i, e[i], a[i]);
+      }
+    }
+  }
+
+  @Test
+  public void testDirectAndSlicedArguments() throws TException {
+    byte[] value = new byte[20000];
+    for (int i = 0; i < value.length; i++) {
+      value[i] = (byte) i;
+    }
+    ByteBuffer direct = ByteBuffer.allocateDirect(value.length);
+    direct.put(value).flip();
+    ByteBuffer sliced = ByteBuffer.wrap(new byte[value.length + 10], 5, value.length).slice();
+    sliced.put(value).flip();
+
+    TMemoryBuffer expected = new TMemoryBuffer(value.length);
+    CommandCodec.writeCommandRequest(new TBinaryProtocol(expected), 1, 2, 3,
+        ByteBufferUtils.fromByteBuffers(HashTableCommands.PUT, ByteBuffer.wrap(value)));
+    ByteBuffer readOnly = ByteBuffer.wrap(value).asReadOnlyBuffer();
+    for (ByteBuffer buf : Arrays.asList(direct, sliced, readOnly)) {
+      TMemoryBuffer actual = new TMemoryBuffer(value.length);
+      CommandCodec.writeCommandRequest(new TBinaryProtocol(actual), 1, 2, 3,
+          ByteBufferUtils.fromByteBuffers(HashTableCommands.PUT, buf));
+      Assert.assertArrayEquals(bytes(expected), bytes(actual));
+      Assert.assertEquals(0, buf.position());
+    }
+
+    int hash = HashSlot.get(ByteBuffer.wrap(value));
+    Assert.assertEquals(hash, HashSlot.get(direct));
+    Assert.assertEquals(hash, HashSlot.get(sliced));
+  }
+
+  @Test
+  public void testClassifyResponses() {
+    ByteBuffer exporting = ByteBufferUtils.fromString("!exporting!host:1:2:3:4:5");
+    Assert.assertTrue(Responses.isStatus(exporting));
+    Assert.assertTrue(Responses.startsWith(exporting, Responses.EXPORTING));
+    Assert.assertFalse(Responses.is(exporting, Responses.EXPORTING));
+    Assert.assertEquals(0, exporting.position());
+
+    Assert.assertTrue(Responses.is(ByteBufferUtils.fromString("!full"), Responses.FULL));
+    Assert.assertFalse(Responses.is(ByteBufferUtils.fromString("!fu"), Responses.FULL));
+    Assert.assertFalse(Responses.isStatus(ByteBufferUtils.fromString("value")));
+    Assert.assertFalse(Responses.isStatus(ByteBuffer.allocate(0)));
+  }
+
+  @Test
+  public void testNumbers() {
+    long[] values = {0, 7, -7, 10, 1234567890123L, Integer.MAX_VALUE, Integer.MIN_VALUE,
+        Long.MAX_VALUE, Long.MIN_VALUE};
+    for (long v : values) {
+      ByteBuffer buf = ByteBufferUtils.fromLong(v);
+      Assert.assertEquals(Long.toString(v), ByteBufferUtils.toString(buf));
+      Assert.assertEquals(v, ByteBufferUtils.toLong(buf));
+    }
+    Assert.assertEquals(-12, ByteBufferUtils.toInt(ByteBufferUtils.fromInteger(-12)));
+  }
+
+  @Test(expected = NumberFormatException.class)
+  public void testInvalidNumber() {
+    ByteBufferUtils.toLong(ByteBufferUtils.fromString("12a"));
+  }
+}
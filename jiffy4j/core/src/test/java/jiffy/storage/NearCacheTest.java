@@ -0,0 +1,103 @@
+package jiffy.storage;
+
+import java.nio.ByteBuffer;
+import jiffy.util.ByteBufferUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NearCacheTest {
+
+  private ByteBuffer bytes(int n) {
+    return ByteBuffer.allocate(n);
+  }
+
+  private void put(NearCache cache, ByteBuffer key, ByteBuffer value) {
+    cache.put(key, value, cache.stamp(key));
+  }
+
+  @Test
+  public void testHitsMissesAndCopies() {
+    NearCache cache = new NearCache(1 << 20);
+    ByteBuffer key = ByteBufferUtils.fromString("key");
+    Assert.assertNull(cache.get(key, null));
+    put(cache, key, ByteBufferUtils.fromString("value"));
+
+    ByteBuffer hit = cache.get(ByteBufferUtils.fromString("key"), null);
+    Assert.assertEquals("value", ByteBufferUtils.toString(hit));
+    hit.put(0, (byte) 'V');
+    Assert.assertEquals("value", ByteBufferUtils.toString(cache.get(key, null)));
+    Assert.assertEquals(2, cache.hitCount());
+    Assert.assertEquals(1, cache.missCount());
+
+    cache.invalidate(key);
+    Assert.assertNull(cache.get(key, null));
+    Assert.assertEquals(1, cache.invalidationCount());
+    Assert.assertEquals(0, cache.sizeInBytes());
+  }
+
+  @Test
+  public void testInvalidationDuringFetchIsNotCached() {
+    NearCache cache = new NearCache(1 << 20, NearCache.Eviction.LRU, true);
+    ByteBuffer key = ByteBufferUtils.fromString("key");
+    long stamp = cache.stamp(key);
+    cache.invalidate(key);
+    cache.put(key, ByteBufferUtils.fromString("stale"), stamp);
+    Assert.assertNull(cache.get(key, null));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedByBytes() {
+    // 16 segments of 1KB; keep every key in the same segment
+    NearCache cache = new NearCache(16 * 1024);
+    ByteBuffer[] keys = new ByteBuffer[4];
+    int found = 0;
+    int segment = -1;
+    for (int i = 0; found < keys.length; i++) {
+      ByteBuffer key = ByteBufferUtils.fromInteger(i);
+      int hash = key.hashCode();
+      int s = (hash ^ (hash >>> 16)) & 15;
+      if (segment == -1 || s == segment) {
+        segment = s;
+        keys[found++] = key;
+      }
+    }
+    for (int i = 0; i < 3; i++) {
+      put(cache, keys[i], bytes(200));
+    }
+    Assert.assertNotNull(cache.get(keys[0], null));
+    put(cache, keys[3], bytes(200));
+    Assert.assertEquals(1, cache.evictionCount());
+    Assert.assertNull(cache.get(keys[1], null));
+    Assert.assertNotNull(cache.get(keys[0], null));
+    Assert.assertNotNull(cache.get(keys[3], null));
+    Assert.assertTrue(cache.sizeInBytes() <= 1024);
+  }
+
+  @Test
+  public void testTinyLfuRejectsColdKeys() {
+    NearCache cache = new NearCache(16 * 1024, NearCache.Eviction.TINY_LFU, false);
+    ByteBuffer hot = null;
+    ByteBuffer cold = null;
+    for (int i = 0; cold == null; i++) {
+      ByteBuffer key = ByteBufferUtils.fromInteger(i);
+      int hash = key.hashCode();
+      if (((hash ^ (hash >>> 16)) & 15) != 0) {
+        continue;
+      }
+      if (hot == null) {
+        hot = key;
+      } else {
+        cold = key;
+      }
+    }
+    for (int i = 0; i < 5; i++) {
+      cache.get(hot, null);
+    }
+    put(cache, hot, bytes(800));
+    cache.get(cold, null);
+    put(cache, cold, bytes(800));
+    Assert.assertNotNull(cache.get(hot, null));
+    Assert.assertNull(cache.get(cold, null));
+    Assert.assertEquals(0, cache.evictionCount());
+  }
+}
@@ -0,0 +1,132 @@
+package jiffy.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import jiffy.InMemoryCluster;
+import jiffy.JiffyClient;
+import jiffy.util.ByteBufferUtils;
+import org.apache.thrift.TException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Many clients and threads with requests in flight at once over the pooled connections to one
+ * storage server, under whichever transport {@code jiffy.client.transport} selects.
+ */
+public class PipelinedRequestsTest {
+
+  private static final int THREADS = 8;
+  private static final int REQUESTS_PER_THREAD = 200;
+
+  private InMemoryCluster cluster;
+
+  @Before
+  public void setUp() throws IOException {
+    cluster = new InMemoryCluster();
+    // Hold responses back so that every thread has many requests in flight
+    cluster.setLatency(1, TimeUnit.MILLISECONDS);
+  }
+
+  @After
+  public void tearDown() {
+    cluster.close();
+  }
+
+  /**
+   * Values of varied sizes, some spanning several socket reads, so frames arrive split and
+   * coalesced.
+   */
+  private static ByteBuffer value(int thread, int i) {
+    int size = i % 10 == 0 ? 200 * 1024 + i : 16 + i % 97;
+    byte[] data = new byte[size];
+    for (int j = 0; j < size; j++) {
+      data[j] = (byte) (thread * 31 + i + j);
+    }
+    return ByteBuffer.wrap(data);
+  }
+
+  private static ByteBuffer key(int thread, int i) {
+    return ByteBufferUtils.fromString(thread + ":" + i);
+  }
+
+  @Test
+  public void testConcurrentPipelinedRequestsOnSharedEndpoint() throws Exception {
+    JiffyClient[] clients = {cluster.connect(), cluster.connect()};
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    try {
+      clients[0].createHashTable("/table", "local://tmp", 4, 1);
+      HashTableClient[] tables = {clients[0].openHashTable("/table"),
+          clients[1].openHashTable("/table")};
+
+      List<Future<?>> done = new ArrayList<>();
+      for (int t = 0; t < THREADS; t++) {
+        int thread = t;
+        HashTableClient kv = tables[t % tables.length];
+        done.add(pool.submit(() -> {
+          List<CompletableFuture<ByteBuffer>> puts = new ArrayList<>();
+          for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+            puts.add(kv.putAsync(key(thread, i), value(thread, i)));
+          }
+          for (CompletableFuture<ByteBuffer> put : puts) {
+            Assert.assertEquals(Responses.OK, put.join());
+          }
+          List<CompletableFuture<ByteBuffer>> gets = new ArrayList<>();
+          for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+            gets.add(kv.getAsync(key(thread, i)));
+          }
+          for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+            Assert.assertEquals(value(thread, i), gets.get(i).join());
+          }
+          return null;
+        }));
+      }
+      for (Future<?> f : done) {
+        f.get(60, TimeUnit.SECONDS);
+      }
+
+      // Values written by one client are read back by the other
+      List<ByteBuffer> keys = new ArrayList<>();
+      for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+        keys.add(key(0, i));
+      }
+      List<ByteBuffer> values = tables[1].multiGet(keys);
+      for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+        Assert.assertEquals(value(0, i), values.get(i));
+      }
+    } finally {
+      pool.shutdownNow();
+      for (JiffyClient client : clients) {
+        closeQuietly(client);
+      }
+    }
+  }
+
+  private static void closeQuietly(JiffyClient client) {
+    try {
+      client.close();
+    } catch (IOException | RuntimeException e) {
+      // Ignore
+    }
+  }
+
+  @Test
+  public void testTransportSelectedByProperty() throws TException {
+    boolean nio = BlockConnection.Transport.fromProperty() == BlockConnection.Transport.NIO;
+    BlockConnection connection = BlockClientCache.getInstance()
+        .get(cluster.getHost(), cluster.getStoragePort(), 1000);
+    try {
+      Assert.assertEquals(nio, connection instanceof SelectorBlockConnection);
+    } finally {
+      BlockClientCache.getInstance().release(connection);
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package jiffy.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import jiffy.directory.rpc_data_status;
+import jiffy.directory.rpc_replica_chain;
+import jiffy.directory.rpc_storage_mode;
+import jiffy.util.ByteBufferUtils;
+import org.apache.thrift.TException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RoutingTableTest {
+
+  private rpc_replica_chain chain(int begin, int end, String... blocks) {
+    return new rpc_replica_chain(Arrays.asList(blocks), begin + "_" + end, "regular",
+        rpc_storage_mode.rpc_in_memory);
+  }
+
+  private rpc_data_status status(rpc_replica_chain... chains) {
+    rpc_data_status status = new rpc_data_status();
+    status.data_blocks = Arrays.asList(chains);
+    return status;
+  }
+
+  @Test
+  public void testRoutesBySlotRange() throws TException {
+    List<rpc_replica_chain> opened = new ArrayList<>();
+    RoutingTable table = RoutingTable.build(null,
+        status(chain(32768, 65536, "b"), chain(0, 32768, "a")),
+        c -> {
+          opened.add(c);
+          return new ReplicaChainClient[0];
+        });
+    Assert.assertEquals(2, opened.size());
+    Assert.assertEquals(0, table.version());
+    for (int i = 0; i < 1000; i++) {
+      int slot = HashSlot.get(ByteBufferUtils.fromInteger(i));
+      int expected = slot >= 32768 ? 0 : 1;
+      Assert.assertEquals(expected, table.index(ByteBufferUtils.fromInteger(i)));
+    }
+  }
+
+  @Test
+  public void testRefreshReconnectsOnlyChangedPartitions() throws TException {
+    List<rpc_replica_chain> opened = new ArrayList<>();
+    RoutingTable.ChannelFactory factory = c -> {
+      opened.add(c);
+      return new ReplicaChainClient[0];
+    };
+    RoutingTable v0 = RoutingTable.build(null,
+        status(chain(0, 32768, "a"), chain(32768, 65536, "b")), factory);
+    opened.clear();
+
+    // Partition b splits, and its upper half moves to a new block
+    RoutingTable v1 = RoutingTable.build(v0,
+        status(chain(0, 32768, "a"), chain(32768, 49152, "b"), chain(49152, 65536, "c")),
+        factory);
+    Assert.assertEquals(1, v1.version());
+    Assert.assertEquals(2, opened.size());
+    Assert.assertEquals("32768_49152", opened.get(0).name);
+    Assert.assertEquals("49152_65536", opened.get(1).name);
+    Assert.assertEquals(3, v1.numPartitions());
+    Assert.assertTrue(v0.retiredBy(v1).isEmpty());
+  }
+
+  @Test
+  public void testRedirectTargetsAreShared() throws TException {
+    RoutingTable table = RoutingTable.build(null, status(chain(0, 65536, "a")),
+        c -> new ReplicaChainClient[0]);
+    List<rpc_replica_chain> opened = new ArrayList<>();
+    RoutingTable.RedirectFactory failing = c -> {
+      opened.add(c);
+      throw new TException("unreachable");
+    };
+    Assert.assertTrue(table.redirect(chain(0, 65536, "x"), failing, Runnable::run)
+        .isCompletedExceptionally());
+    // A failed target is not cached, so the next redirect tries again
+    Assert.assertTrue(table.redirect(chain(0, 65536, "x"), failing, Runnable::run)
+        .isCompletedExceptionally());
+    Assert.assertEquals(2, opened.size());
+
+    List<Runnable> pending = new ArrayList<>();
+    Assert.assertSame(table.redirect(chain(0, 65536, "y"), failing, pending::add),
+        table.redirect(chain(0, 65536, "y"), failing, pending::add));
+    Assert.assertEquals(1, pending.size());
+  }
+}
@@ -0,0 +1,55 @@
+package jiffy.util;
+
+import java.nio.ByteBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PooledDirectByteBufferAllocatorTest {
+
+  @Test
+  public void testReleasedBuffersAreReused() {
+    PooledDirectByteBufferAllocator pool = new PooledDirectByteBufferAllocator(64, 1024, 1 << 20);
+    ByteBuffer buf = pool.allocate(100);
+    Assert.assertTrue(buf.isDirect());
+    Assert.assertEquals(128, buf.capacity());
+    Assert.assertEquals(100, buf.limit());
+
+    pool.release(buf);
+    Assert.assertEquals(128, pool.pooledBytes());
+    Assert.assertSame(buf, pool.allocate(120));
+    Assert.assertEquals(0, pool.pooledBytes());
+  }
+
+  @Test
+  public void testForeignBuffersAreNotPooled() {
+    PooledDirectByteBufferAllocator pool = new PooledDirectByteBufferAllocator(64, 1024, 1 << 20);
+    ByteBuffer buf = pool.allocate(256);
+
+    // A slice of a direct buffer with a size-class capacity is still not the pool's
+    ByteBuffer parent = ByteBuffer.allocateDirect(512);
+    parent.position(128).limit(384);
+    pool.release(parent.slice());
+    pool.release(buf.duplicate());
+    pool.release(ByteBuffer.allocateDirect(256));
+    Assert.assertEquals(0, pool.pooledBytes());
+
+    pool.release(buf);
+    pool.release(buf);
+    Assert.assertEquals(256, pool.pooledBytes());
+  }
+
+  @Test
+  public void testPoolIsBounded() {
+    PooledDirectByteBufferAllocator pool = new PooledDirectByteBufferAllocator(64, 1024, 1024);
+    ByteBuffer a = pool.allocate(1024);
+    ByteBuffer b = pool.allocate(1024);
+    pool.release(a);
+    pool.release(b);
+    Assert.assertEquals(1024, pool.pooledBytes());
+
+    ByteBuffer large = pool.allocate(4096);
+    Assert.assertTrue(large.isDirect());
+    pool.release(large);
+    Assert.assertEquals(1024, pool.pooledBytes());
+  }
+}
@@ -1,6 +1,9 @@
 package jiffy.hadoop.fs;
 
 import java.nio.ByteBuffer;
+import jiffy.partition.HashPartitionNameBuilder;
+import jiffy.storage.HashSlot;
+import jiffy.util.ByteBufferUtils;
 
 class JiffyBlock {
   private static final int METADATA_OFFSET = 0;
@@ -9,7 +12,15 @@ class JiffyBlock {
   private ByteBuffer data;
 
   JiffyBlock(long blockSize) {
-    ref = data = ByteBuffer.allocate((int) (blockSize + Integer.BYTES));
+    this(blockSize, false);
+  }
+
+  /**
+   * A writable block, optionally kept off-heap so it is handed to the client without a copy.
+   */
+  JiffyBlock(long blockSize, boolean direct) {
+    int size = (int) (blockSize + Integer.BYTES);
+    ref = data = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
     data.putInt(0);
   }
 
@@ -19,12 +30,77 @@ class JiffyBlock {
     data.position(Integer.BYTES);
   }
 
+  /**
+   * Key of block {@code blockNum} of a file striped over {@code stripes} partitions. Blocks go
+   * round-robin over the slot ranges the partitions are created with, so consecutive blocks are
+   * on different partitions: the key is the block number, salted until it hashes into the range
+   * of its stripe. Files with a single stripe use the bare block number.
+   */
+  static ByteBuffer key(long blockNum, int stripes) {
+    String key = String.valueOf(blockNum);
+    if (stripes <= 1) {
+      return ByteBufferUtils.fromString(key);
+    }
+    String[] range = new HashPartitionNameBuilder(stripes)
+        .partitionName((int) (blockNum % stripes)).split("_");
+    int begin = Integer.parseInt(range[0]);
+    int end = Integer.parseInt(range[1]);
+    for (int salt = 0; ; salt++) {
+      String salted = key + "_" + salt;
+      int slot = HashSlot.get(salted);
+      if (slot >= begin && slot < end) {
+        return ByteBufferUtils.fromString(salted);
+      }
+    }
+  }
+
+  /**
+   * The keys of one stream's blocks. Salting a key takes about {@code stripes} hash trials, so
+   * the most recently keyed blocks are remembered: a stream keys the same block again on every
+   * seek back, positioned read and flush. Safe to share between threads; a lost race only costs
+   * recomputing a key.
+   */
+  static class Keys {
+    private static final int CACHED_KEYS = 64;
+
+    private static final class Entry {
+      private final long blockNum;
+      private final ByteBuffer key;
+
+      private Entry(long blockNum, ByteBuffer key) {
+        this.blockNum = blockNum;
+        this.key = key;
+      }
+    }
+
+    private final int stripes;
+    // Direct-mapped by block number; entries are immutable, so a racy read sees a whole one
+    private final Entry[] entries = new Entry[CACHED_KEYS];
+
+    Keys(int stripes) {
+      this.stripes = stripes;
+    }
+
+    ByteBuffer get(long blockNum) {
+      int i = (int) (blockNum % CACHED_KEYS);
+      Entry entry = entries[i];
+      if (entry == null || entry.blockNum != blockNum) {
+        entry = new Entry(blockNum, key(blockNum, stripes));
+        entries[i] = entry;
+      }
+      return entry.key.duplicate();
+    }
+  }
+
   void seek(long targetPos) {
     data.position((int)targetPos + Integer.BYTES);
   }
 
+  /**
+   * Bytes used in the block stored at {@code buf}'s position.
+   */
   static int usedBytes(ByteBuffer buf) {
-    return buf.getInt(METADATA_OFFSET);
+    return buf.getInt(buf.position() + METADATA_OFFSET);
   }
 
   int usedBytes() {
@@ -61,6 +137,16 @@ class JiffyBlock {
     data.get(b, off, len);
   }
 
+  /**
+   * Copy {@code len} bytes into {@code dst} without an intermediate array.
+   */
+  void get(ByteBuffer dst, int len) {
+    ByteBuffer src = data.duplicate();
+    src.limit(src.position() + len);
+    dst.put(src);
+    data.position(src.limit());
+  }
+
   void reset() {
     data.position(METADATA_OFFSET);
     data.putInt(0);
@@ -76,7 +162,14 @@ class JiffyBlock {
     data.putInt(METADATA_OFFSET, position());
   }
 
+  /**
+   * The used part of the block with its length header, as stored; the unused tail is never
+   * uploaded.
+   */
   ByteBuffer getData() {
-    return (ByteBuffer) data.duplicate().clear();
+    ByteBuffer buf = data.duplicate();
+    buf.clear();
+    buf.limit(Integer.BYTES + usedBytes());
+    return buf;
   }
 }
@@ -3,18 +3,26 @@ package jiffy.hadoop.fs;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import jiffy.JiffyClient;
 import jiffy.directory.directory_service_exception;
 import jiffy.directory.rpc_data_status;
 import jiffy.directory.rpc_dir_entry;
 import jiffy.directory.rpc_file_status;
 import jiffy.directory.rpc_file_type;
+import jiffy.directory.rpc_replica_chain;
+import jiffy.storage.BlockNameParser;
+import jiffy.storage.BlockNameParser.BlockMetadata;
+import jiffy.storage.HashSlot;
 import jiffy.storage.HashTableClient;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.CreateFlag;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
@@ -31,7 +39,16 @@ import org.apache.thrift.TException;
 public class JiffyFileSystem extends FileSystem {
 
   private static final int DEFAULT_NUM_BLOCKS = 1;
-  private static final int MAXIMUM_BLOCK_SIZE = 16384;
+  // Bounds the salting needed to stripe block keys over the partitions
+  private static final int MAXIMUM_NUM_BLOCKS = 1024;
+  private static final long DEFAULT_BLOCK_SIZE = 4 * 1024 * 1024;
+  // Whole blocks go in a single request, which must stay below the transport's frame limit
+  private static final int MAXIMUM_BLOCK_SIZE = 8 * 1024 * 1024;
+  // Capacity of a storage server block, which holds one partition
+  private static final long DEFAULT_PARTITION_SIZE = 128 * 1024 * 1024;
+  private static final String BLOCK_SIZE_KEY = "BlockSize";
+  private static final String FILE_LENGTH_KEY = "FileLength";
+  private static final String STRIPES_KEY = "Stripes";
   private static final String DEFAULT_PERSISTENT_PATH = "local://tmp";
   private static final String DEFAULT_GROUP = "defaultgroup";
   private static final String DEFAULT_USER = System.getProperty("user.name");
@@ -45,6 +62,14 @@ public class JiffyFileSystem extends FileSystem {
   private String persistentPath;
   private String group;
   private String user;
+  private long blockSize;
+  private int blocksPerFile;
+  private long expectedFileSize;
+  private long partitionSize;
+  private boolean directBuffers;
+  private int writeBehindBlocks;
+  private int readAheadBlocks;
+  private long lengthUpdateIntervalMs;
 
   @Override
   public void initialize(URI uri, Configuration conf) throws IOException {
@@ -68,6 +93,16 @@ public class JiffyFileSystem extends FileSystem {
     this.persistentPath = conf.get("jiffy.persistent_path", DEFAULT_PERSISTENT_PATH);
     this.group = conf.get("jiffy.group", DEFAULT_GROUP);
     this.user = conf.get("jiffy.user", DEFAULT_USER);
+    this.blockSize = conf.getLongBytes("jiffy.block.size", DEFAULT_BLOCK_SIZE);
+    this.blocksPerFile = conf.getInt("jiffy.blocks.per.file", DEFAULT_NUM_BLOCKS);
+    this.expectedFileSize = conf.getLongBytes("jiffy.expected.file.size", 0);
+    this.partitionSize = conf.getLongBytes("jiffy.partition.size", DEFAULT_PARTITION_SIZE);
+    this.directBuffers = conf.getBoolean("jiffy.direct_buffers", false);
+    this.writeBehindBlocks = conf.getInt("jiffy.write_behind_blocks",
+        JiffyOutputStream.DEFAULT_MAX_IN_FLIGHT);
+    this.readAheadBlocks = conf.getInt("jiffy.read_ahead_blocks",
+        JiffyInputStream.DEFAULT_READ_AHEAD_BLOCKS);
+    this.lengthUpdateIntervalMs = conf.getLong("jiffy.length_update_interval_ms", 0);
   }
 
   JiffyClient getClient() {
@@ -80,6 +115,33 @@ public class JiffyFileSystem extends FileSystem {
     super.close();
   }
 
+  @Override
+  public long getDefaultBlockSize(Path f) {
+    return blockSize;
+  }
+
+  @Override
+  @Deprecated
+  public long getDefaultBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Partitions to spread a new file over: {@code jiffy.blocks.per.file}, or as many as it takes
+   * to hold {@code jiffy.expected.file.size} bytes in partitions of {@code jiffy.partition.size}
+   * bytes, if more.
+   */
+  private int numBlocks() {
+    long forExpectedSize = (expectedFileSize + partitionSize - 1) / partitionSize;
+    return (int) Math.max(1, Math.min(MAXIMUM_NUM_BLOCKS,
+        Math.max(blocksPerFile, forExpectedSize)));
+  }
+
+  private static int stripes(rpc_data_status dataStatus) {
+    String stripes = dataStatus.getTags().get(STRIPES_KEY);
+    return stripes == null ? 1 : Integer.parseInt(stripes);
+  }
+
   @Override
   public String getScheme() {
     return "jfs";
@@ -100,9 +162,11 @@ public class JiffyFileSystem extends FileSystem {
     String pathStr = makeAbsolute(path).toString();
     try {
       HashTableClient kv = client.openHashTable(pathStr);
-      long fileLength = Long.parseLong(kv.getDataStatus().tags.get("FileLength"));
-      long blockSize = Long.parseLong(kv.getDataStatus().tags.get("BlockSize"));
-      return new FSDataInputStream(new JiffyInputStream(client, pathStr, kv, blockSize, fileLength));
+      rpc_data_status dataStatus = kv.getDataStatus();
+      long fileLength = Long.parseLong(dataStatus.tags.get(FILE_LENGTH_KEY));
+      long blockSize = Long.parseLong(dataStatus.tags.get(BLOCK_SIZE_KEY));
+      return new FSDataInputStream(new JiffyInputStream(client, pathStr, kv, blockSize,
+          stripes(dataStatus), readAheadBlocks, fileLength));
     } catch (directory_service_exception e) {
       String msg = e.getMsg();
       if (msg.startsWith("Path corresponds to a directory")) {
@@ -119,19 +183,22 @@ public class JiffyFileSystem extends FileSystem {
       int bufferSize, short replication, long blockSize, Progressable progress) throws IOException {
     String pathStr = makeAbsolute(path).toString();
     int actualBlockSize = Math.toIntExact(Math.min(MAXIMUM_BLOCK_SIZE, blockSize));
+    int numBlocks = numBlocks();
     try {
       Map<String, String> tags = new HashMap<>();
-      tags.put("BlockSize", String.valueOf(actualBlockSize));
-      tags.put("FileLength", String.valueOf(0));
+      tags.put(BLOCK_SIZE_KEY, String.valueOf(actualBlockSize));
+      tags.put(FILE_LENGTH_KEY, String.valueOf(0));
+      tags.put(STRIPES_KEY, String.valueOf(numBlocks));
       HashTableClient kv;
       if (overwrite) {
-        kv = client.openOrCreateHashTable(pathStr, persistentPath, DEFAULT_NUM_BLOCKS, replication, 0,
+        kv = client.openOrCreateHashTable(pathStr, persistentPath, numBlocks, replication, 0,
             fsPermission.toShort(), tags);
       } else {
-        kv = client.createHashTable(pathStr, persistentPath, DEFAULT_NUM_BLOCKS, replication, 0,
+        kv = client.createHashTable(pathStr, persistentPath, numBlocks, replication, 0,
             fsPermission.toShort(), tags);
       }
-      return new FSDataOutputStream(new JiffyOutputStream(client, pathStr, kv, actualBlockSize),
+      return new FSDataOutputStream(new JiffyOutputStream(client, pathStr, kv, actualBlockSize,
+          stripes(kv.getDataStatus()), directBuffers, writeBehindBlocks, lengthUpdateIntervalMs),
           statistics);
     } catch (directory_service_exception e) {
       String msg = e.getMsg();
@@ -192,13 +259,73 @@ public class JiffyFileSystem extends FileSystem {
     return true;
   }
 
+  /**
+   * Each block of {@code file} overlapping {@code [start, start + len)}, on the hosts of the
+   * replica chain whose slot range holds the block's key, tail first since that is where reads
+   * are served.
+   */
+  @Override
+  public BlockLocation[] getFileBlockLocations(FileStatus file, long start, long len)
+      throws IOException {
+    if (file == null) {
+      return null;
+    }
+    if (start < 0 || len < 0) {
+      throw new IllegalArgumentException("Invalid start or len parameter");
+    }
+    if (file.getLen() <= start) {
+      return new BlockLocation[0];
+    }
+    String pathStr = makeAbsolute(file.getPath()).toString();
+    rpc_data_status dataStatus;
+    try {
+      dataStatus = client.fs().dstatus(pathStr);
+    } catch (TException e) {
+      throw new IOException(e);
+    }
+    long blockSize = Long.parseLong(dataStatus.getTags().get(BLOCK_SIZE_KEY));
+    int stripes = stripes(dataStatus);
+    long end = Math.min(file.getLen(), start + len);
+    List<BlockLocation> locations = new ArrayList<>();
+    for (long blockNum = start / blockSize; blockNum * blockSize < end; blockNum++) {
+      rpc_replica_chain chain = chainOf(dataStatus, HashSlot.get(JiffyBlock.key(blockNum,
+          stripes)));
+      Set<String> names = new LinkedHashSet<>();
+      Set<String> hosts = new LinkedHashSet<>();
+      for (int i = chain.getBlockIdsSize() - 1; i >= 0; i--) {
+        BlockMetadata block = BlockNameParser.parse(chain.getBlockIds().get(i));
+        names.add(block.getHost() + ":" + block.getServicePort());
+        hosts.add(block.getHost());
+      }
+      long offset = blockNum * blockSize;
+      locations.add(new BlockLocation(names.toArray(new String[0]), hosts.toArray(new String[0]),
+          offset, Math.min(blockSize, file.getLen() - offset)));
+    }
+    return locations.toArray(new BlockLocation[0]);
+  }
+
+  /**
+   * The partition of a hash table that holds {@code slot}; partitions are named after the
+   * {@code begin_end} slot range they hold.
+   */
+  private static rpc_replica_chain chainOf(rpc_data_status dataStatus, int slot)
+      throws IOException {
+    for (rpc_replica_chain chain : dataStatus.getDataBlocks()) {
+      String[] range = chain.getName().split("_");
+      if (slot >= Integer.parseInt(range[0]) && slot < Integer.parseInt(range[1])) {
+        return chain;
+      }
+    }
+    throw new IOException("No partition holds hash slot " + slot);
+  }
+
   private FileStatus toFileStatus(Path path, rpc_file_status fileStatus) throws TException {
     FsPermission perm = new FsPermission((short) fileStatus.getPermissions());
     long fileTS = 100; // TODO: Remove hardcoded file timestamp
     if (fileStatus.getType() == rpc_file_type.rpc_regular) {
       rpc_data_status dataStatus = client.fs().dstatus(path.toString());
-      long fileLength = Long.parseLong(dataStatus.getTags().get("FileLength"));
-      long blockSize = Long.parseLong(dataStatus.getTags().get("BlockSize"));
+      long fileLength = Long.parseLong(dataStatus.getTags().get(FILE_LENGTH_KEY));
+      long blockSize = Long.parseLong(dataStatus.getTags().get(BLOCK_SIZE_KEY));
       int chainLength = dataStatus.getChainLength();
       return new FileStatus(fileLength, false, chainLength, blockSize, fileTS, fileTS,
           perm, user, group, addScheme(path));
@@ -2,29 +2,68 @@ package jiffy.hadoop.fs;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import jiffy.JiffyClient;
 import jiffy.storage.HashTableClient;
-import jiffy.util.ByteBufferUtils;
+import jiffy.storage.Responses;
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.CanUnbuffer;
 import org.apache.hadoop.fs.FSInputStream;
-import org.apache.thrift.TException;
 
-public class JiffyInputStream extends FSInputStream {
+/**
+ * Reads a file written by {@link JiffyOutputStream}, a block at a time.
+ *
+ * Once the stream reads blocks in order, the next {@code readAheadBlocks} blocks are fetched in
+ * the background while the current one is consumed; a seek to another block drops them.
+ * Positional reads fetch the blocks they span in parallel and neither take the stream's lock
+ * nor move its position. {@link #unbuffer()} releases the current block and the blocks read
+ * ahead until the next read.
+ */
+public class JiffyInputStream extends FSInputStream implements ByteBufferReadable, CanUnbuffer {
+  static final int DEFAULT_READ_AHEAD_BLOCKS = 2;
+
+  /**
+   * Get of the block {@code blockNum}.
+   */
+  private static class Fetch {
+    private final long blockNum;
+    private final CompletableFuture<ByteBuffer> value;
+
+    Fetch(long blockNum, CompletableFuture<ByteBuffer> value) {
+      this.blockNum = blockNum;
+      this.value = value;
+    }
+  }
 
   private final JiffyClient mm;
-  private boolean closed;
+  private volatile boolean closed;
   private long filePos;
 
   private long blockSize;
+  private final JiffyBlock.Keys keys;
+  private final int readAheadBlocks;
   private long fileLength;
   private long currentBlockNum;
   private JiffyBlock currentBlock;
+  // Blocks after the current one, in order
+  private final ArrayDeque<Fetch> readAhead;
 
   private HashTableClient client;
   private String path;
 
   JiffyInputStream(JiffyClient mm, String path, HashTableClient client, long blockSize,
       long fileLength) {
+    this(mm, path, client, blockSize, 1, DEFAULT_READ_AHEAD_BLOCKS, fileLength);
+  }
+
+  JiffyInputStream(JiffyClient mm, String path, HashTableClient client, long blockSize,
+      int stripes, int readAheadBlocks, long fileLength) {
     this.mm = mm;
     this.path = path;
     this.filePos = 0;
@@ -33,6 +72,9 @@ public class JiffyInputStream extends FSInputStream {
     this.currentBlock = null;
     this.fileLength = fileLength;
     this.blockSize = blockSize;
+    this.keys = new JiffyBlock.Keys(stripes);
+    this.readAheadBlocks = Math.max(0, readAheadBlocks);
+    this.readAhead = new ArrayDeque<>();
   }
 
   @Override
@@ -48,9 +90,12 @@ public class JiffyInputStream extends FSInputStream {
     if (closed) {
       throw new IOException("Stream closed");
     }
-    return (int) (fileLength - filePos);
+    return (int) Math.min(Integer.MAX_VALUE, fileLength - filePos);
   }
 
+  /**
+   * Move to {@code targetPos}; the block it falls in is fetched by the next read.
+   */
   @Override
   public synchronized void seek(long targetPos) throws IOException {
     if (closed) {
@@ -63,12 +108,9 @@ public class JiffyInputStream extends FSInputStream {
       throw new EOFException("Cannot seek to negative position");
     }
     filePos = targetPos;
-    if (filePos == 0 && fileLength == 0) {
-      return;
+    if (currentBlock != null && currentBlockNum == currentBlockNum()) {
+      currentBlock.seek(filePos % blockSize);
     }
-    resetBuf();
-    long bufferPos = filePos % blockSize;
-    currentBlock.seek(bufferPos);
   }
 
   @Override
@@ -86,9 +128,7 @@ public class JiffyInputStream extends FSInputStream {
     }
     int result = -1;
     if (filePos < fileLength) {
-      if (currentBlock == null || !currentBlock.hasRemaining()) {
-        resetBuf();
-      }
+      resetBuf();
       result = currentBlock.get() & 0xFF;
       filePos++;
     }
@@ -104,9 +144,7 @@ public class JiffyInputStream extends FSInputStream {
       return 0;
     }
     if (filePos < fileLength) {
-      if (currentBlock == null || !currentBlock.hasRemaining()) {
-        resetBuf();
-      }
+      resetBuf();
       int realLen = Math.min(len, currentBlock.usedBytes() - currentBlock.position());
       currentBlock.get(buf, off, realLen);
       filePos += realLen;
@@ -115,11 +153,89 @@ public class JiffyInputStream extends FSInputStream {
     return -1;
   }
 
+  /**
+   * Copy up to the rest of the current block into {@code buf}; returns -1 at the end of the
+   * file.
+   */
+  @Override
+  public synchronized int read(ByteBuffer buf) throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (!buf.hasRemaining()) {
+      return 0;
+    }
+    if (filePos < fileLength) {
+      resetBuf();
+      int realLen = Math.min(buf.remaining(),
+          currentBlock.usedBytes() - currentBlock.position());
+      currentBlock.get(buf, realLen);
+      filePos += realLen;
+      return realLen;
+    }
+    return -1;
+  }
+
+  /**
+   * Read up to {@code len} bytes at {@code position}, fetching all the blocks they span at once.
+   * Does not take the stream's lock or change its position.
+   */
+  @Override
+  public int read(long position, byte[] buf, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    validatePositionedReadArgs(position, buf, off, len);
+    if (len == 0) {
+      return 0;
+    }
+    if (position >= fileLength) {
+      return -1;
+    }
+    long end = Math.min(fileLength, position + len);
+    List<Fetch> fetches = new ArrayList<>();
+    for (long blockNum = position / blockSize; blockNum * blockSize < end; blockNum++) {
+      fetches.add(fetch(blockNum));
+    }
+    int read = 0;
+    for (Fetch fetch : fetches) {
+      ByteBuffer value = await(fetch);
+      long blockStart = fetch.blockNum * blockSize;
+      int from = (int) (Math.max(position, blockStart) - blockStart);
+      int to = (int) Math.min(JiffyBlock.usedBytes(value), end - blockStart);
+      if (to <= from) {
+        break;
+      }
+      ByteBuffer data = value.duplicate();
+      data.position(data.position() + Integer.BYTES + from);
+      data.get(buf, off + read, to - from);
+      read += to - from;
+      if (to < blockSize) {
+        // Short block, so nothing follows
+        break;
+      }
+    }
+    return read == 0 ? -1 : read;
+  }
+
+  /**
+   * Release the current block and any blocks read ahead; the next read fetches them again.
+   */
+  @Override
+  public synchronized void unbuffer() {
+    currentBlock = null;
+    currentBlockNum = -1;
+    dropReadAhead();
+  }
+
   @Override
   public void close() throws IOException {
     if (closed) {
       return;
     }
+    synchronized (this) {
+      dropReadAhead();
+    }
     super.close();
     mm.close(path);
     closed = true;
@@ -147,23 +263,77 @@ public class JiffyInputStream extends FSInputStream {
     return filePos / blockSize;
   }
 
+  /**
+   * Make the block {@code filePos} falls in current, positioned at {@code filePos}, and keep the
+   * blocks after it in flight if it follows the previous one.
+   */
   private void resetBuf() throws IOException {
-    if (currentBlockNum != currentBlockNum()) {
-      try {
-        currentBlockNum = currentBlockNum();
-        ByteBuffer value = client.get(ByteBufferUtils.fromString(String.valueOf(currentBlockNum)));
-        if (ByteBufferUtils.toString(value).equals("!key_not_found")) {
-          throw new EOFException("EOF");
-        }
-        if (currentBlock == null) {
-          currentBlock = new JiffyBlock(value);
-        } else {
-          currentBlock.setData(value);
-        }
-      } catch (TException e) {
-        throw new IOException(e);
+    long blockNum = currentBlockNum();
+    if (currentBlock != null && currentBlockNum == blockNum) {
+      return;
+    }
+    boolean sequential = blockNum == currentBlockNum + 1
+        || (!readAhead.isEmpty() && readAhead.peek().blockNum <= blockNum);
+    while (!readAhead.isEmpty() && readAhead.peek().blockNum < blockNum) {
+      readAhead.poll().value.cancel(false);
+    }
+    Fetch fetch;
+    if (!readAhead.isEmpty() && readAhead.peek().blockNum == blockNum) {
+      fetch = readAhead.poll();
+    } else {
+      dropReadAhead();
+      fetch = fetch(blockNum);
+    }
+    currentBlockNum = blockNum;
+    if (sequential) {
+      long next = readAhead.isEmpty() ? blockNum + 1 : readAhead.peekLast().blockNum + 1;
+      long lastBlockNum = (fileLength - 1) / blockSize;
+      for (; readAhead.size() < readAheadBlocks && next <= lastBlockNum; next++) {
+        readAhead.add(fetch(next));
       }
+    } else {
+      dropReadAhead();
+    }
+    ByteBuffer value;
+    try {
+      value = await(fetch);
+    } catch (IOException e) {
+      currentBlock = null;
+      currentBlockNum = -1;
+      throw e;
+    }
+    if (currentBlock == null) {
+      currentBlock = new JiffyBlock(value);
+    } else {
+      currentBlock.setData(value);
     }
+    currentBlock.seek(filePos % blockSize);
   }
 
+  private void dropReadAhead() {
+    while (!readAhead.isEmpty()) {
+      readAhead.poll().value.cancel(false);
+    }
+  }
+
+  private Fetch fetch(long blockNum) {
+    return new Fetch(blockNum, client.getAsync(keys.get(blockNum)));
+  }
+
+  private ByteBuffer await(Fetch fetch) throws IOException {
+    ByteBuffer value;
+    try {
+      value = fetch.value.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted reading block " + fetch.blockNum + " of "
+          + path);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+    if (Responses.is(value, Responses.KEY_NOT_FOUND)) {
+      throw new EOFException("EOF");
+    }
+    return value;
+  }
 }
@@ -1,39 +1,92 @@
 package jiffy.hadoop.fs;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import jiffy.JiffyClient;
 import jiffy.storage.HashTableClient;
+import jiffy.storage.Responses;
 import jiffy.util.ByteBufferUtils;
+import org.apache.hadoop.fs.Syncable;
 import org.apache.thrift.TException;
 
-public class JiffyOutputStream extends OutputStream {
+/**
+ * Writes a file block by block into a hash table keyed by block number, with blocks striped
+ * round-robin over the table's partitions (see {@link JiffyBlock#key(long, int)}).
+ *
+ * Full blocks are uploaded in the background, up to {@code maxInFlight} at a time, while the
+ * next block fills up. The file length is tracked locally and only published to the directory
+ * on {@link #hflush()}, {@link #hsync()} and {@link #close()}, and, if
+ * {@code lengthUpdateIntervalMs} is positive, at most that often as uploads complete; plain
+ * {@link #flush()} calls, which Hadoop makes constantly, never wait on the directory or the
+ * network otherwise.
+ */
+public class JiffyOutputStream extends OutputStream implements Syncable {
   private final static String FILE_LENGTH_KEY = "FileLength";
+  static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+  /**
+   * Upload of the block {@code blockNum}.
+   */
+  private static class Upload {
+    private final JiffyBlock block;
+    private final long blockNum;
+    private final CompletableFuture<ByteBuffer> status;
+
+    Upload(JiffyBlock block, long blockNum, CompletableFuture<ByteBuffer> status) {
+      this.block = block;
+      this.blockNum = blockNum;
+      this.status = status;
+    }
+  }
+
   private final JiffyClient mm;
   private final String path;
   private boolean closed;
   private JiffyBlock block;
   private long blockNum;
   private long blockSize;
+  private final JiffyBlock.Keys keys;
   private HashTableClient client;
+  private final boolean directBuffers;
+  private final int maxInFlight;
+  private final long lengthUpdateIntervalMs;
+  // Oldest first; blocks are reused once their upload is done
+  private final ArrayDeque<Upload> uploads;
+  private final ArrayDeque<JiffyBlock> freeBlocks;
+  private long publishedLength;
+  private long publishedAtMs;
 
   JiffyOutputStream(JiffyClient mm, String path, HashTableClient client, long blockSize) {
+    this(mm, path, client, blockSize, 1, false, DEFAULT_MAX_IN_FLIGHT, 0);
+  }
+
+  JiffyOutputStream(JiffyClient mm, String path, HashTableClient client, long blockSize,
+      int stripes, boolean directBuffers, int maxInFlight, long lengthUpdateIntervalMs) {
     this.mm = mm;
     this.path = path;
     this.blockNum = 0;
     this.blockSize = blockSize;
+    this.keys = new JiffyBlock.Keys(stripes);
     this.client = client;
-    this.block = new JiffyBlock(blockSize);
+    this.directBuffers = directBuffers;
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.lengthUpdateIntervalMs = lengthUpdateIntervalMs;
+    this.block = new JiffyBlock(blockSize, directBuffers);
+    this.uploads = new ArrayDeque<>();
+    this.freeBlocks = new ArrayDeque<>();
+    // Unknown, so that the first update is always published
+    this.publishedLength = -1;
+    this.publishedAtMs = System.currentTimeMillis();
   }
 
-  private String fileLength() {
-    return String.valueOf(blockNum * blockSize + block.usedBytes());
-  }
-
-  private ByteBuffer blockKey() {
-    return ByteBufferUtils.fromString(String.valueOf(blockNum));
+  private long fileLength() {
+    return blockNum * blockSize + block.usedBytes();
   }
 
   @Override
@@ -43,7 +96,7 @@ public class JiffyOutputStream extends OutputStream {
     }
 
     if (block.remaining() == 0) {
-      flush();
+      uploadBlock();
     }
     block.write((byte) b);
   }
@@ -60,28 +113,62 @@ public class JiffyOutputStream extends OutputStream {
       len -= toWrite;
 
       if (block.remaining() == 0) {
-        flush();
+        uploadBlock();
       }
     }
   }
 
+  /**
+   * Publishes the length of the data uploaded so far if the update interval has passed; data
+   * is made visible to readers by {@link #hflush()}.
+   */
   @Override
   public synchronized void flush() throws IOException {
     if (closed) {
       throw new IOException("Stream closed");
     }
+    publishLengthIfDue();
+  }
+
+  /**
+   * Upload everything written so far and publish the file length, so that new readers see all
+   * of it.
+   */
+  @Override
+  public synchronized void hflush() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    while (!uploads.isEmpty()) {
+      complete(uploads.poll());
+    }
     try {
       if (block.usedBytes() > 0) {
-        client.upsert(blockKey(), block.getData());
-        mm.fs().addTags(path, Collections.singletonMap(FILE_LENGTH_KEY, fileLength()));
-        if (block.remaining() == 0) {
-          block.reset();
-          blockNum++;
-        }
+        checkStatus(blockNum, client.upsert(keys.get(blockNum), block.getData()));
       }
     } catch (TException e) {
       throw new IOException(e);
     }
+    publishLength(fileLength());
+  }
+
+  /**
+   * {@link #hflush()}, then persist the file to its backing path.
+   */
+  @Override
+  public synchronized void hsync() throws IOException {
+    hflush();
+    try {
+      mm.sync(path, client.getDataStatus().backing_path);
+    } catch (TException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  @Deprecated
+  public void sync() throws IOException {
+    hflush();
   }
 
   @Override
@@ -89,10 +176,78 @@ public class JiffyOutputStream extends OutputStream {
     if (closed) {
       return;
     }
-    flush();
-    super.close();
-    mm.close(path);
-    closed = true;
+    try {
+      hflush();
+    } finally {
+      super.close();
+      mm.close(path);
+      closed = true;
+    }
+  }
+
+  /**
+   * Start uploading the current, full block and move on to the next one, first waiting for the
+   * oldest upload if too many are in flight.
+   */
+  private void uploadBlock() throws IOException {
+    while (uploads.size() >= maxInFlight) {
+      complete(uploads.poll());
+    }
+    uploads.add(new Upload(block, blockNum, client.upsertAsync(keys.get(blockNum),
+        block.getData())));
+    blockNum++;
+    block = freeBlocks.isEmpty() ? new JiffyBlock(blockSize, directBuffers) : freeBlocks.poll();
+    block.reset();
+    publishLengthIfDue();
+  }
+
+  private void complete(Upload upload) throws IOException {
+    ByteBuffer status;
+    try {
+      status = upload.status.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted writing block " + upload.blockNum + " of "
+          + path);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+    checkStatus(upload.blockNum, status);
+    freeBlocks.add(upload.block);
+  }
+
+  private void checkStatus(long blockNum, ByteBuffer status) throws IOException {
+    if (Responses.isStatus(status) && !Responses.is(status, Responses.OK)) {
+      throw new IOException("Failed to write block " + blockNum + " of " + path + ": "
+          + ByteBufferUtils.toString(status));
+    }
   }
 
+  /**
+   * Publish the length of the blocks uploaded without gaps so far, if the update interval has
+   * passed since the last time.
+   */
+  private void publishLengthIfDue() throws IOException {
+    if (lengthUpdateIntervalMs <= 0
+        || System.currentTimeMillis() - publishedAtMs < lengthUpdateIntervalMs) {
+      return;
+    }
+    while (!uploads.isEmpty() && uploads.peek().status.isDone()) {
+      complete(uploads.poll());
+    }
+    publishLength((uploads.isEmpty() ? blockNum : uploads.peek().blockNum) * blockSize);
+  }
+
+  private void publishLength(long length) throws IOException {
+    publishedAtMs = System.currentTimeMillis();
+    if (length <= publishedLength) {
+      return;
+    }
+    try {
+      mm.fs().addTags(path, Collections.singletonMap(FILE_LENGTH_KEY, String.valueOf(length)));
+    } catch (TException e) {
+      throw new IOException(e);
+    }
+    publishedLength = length;
+  }
 }
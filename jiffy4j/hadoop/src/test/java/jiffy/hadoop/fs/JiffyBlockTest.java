@@ -0,0 +1,45 @@
+package jiffy.hadoop.fs;
+
+import java.nio.ByteBuffer;
+import jiffy.partition.HashPartitionNameBuilder;
+import jiffy.storage.HashSlot;
+import jiffy.util.ByteBufferUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JiffyBlockTest {
+
+  @Test
+  public void singleStripeKeysAreBlockNumbers() {
+    Assert.assertEquals("0", ByteBufferUtils.toString(JiffyBlock.key(0, 1)));
+    Assert.assertEquals("42", ByteBufferUtils.toString(JiffyBlock.key(42, 1)));
+  }
+
+  @Test
+  public void blocksAreStripedRoundRobin() {
+    int stripes = 7;
+    HashPartitionNameBuilder names = new HashPartitionNameBuilder(stripes);
+    for (long blockNum = 0; blockNum < 100; blockNum++) {
+      ByteBuffer key = JiffyBlock.key(blockNum, stripes);
+      Assert.assertEquals(key, JiffyBlock.key(blockNum, stripes));
+      String[] range = names.partitionName((int) (blockNum % stripes)).split("_");
+      int slot = HashSlot.get(ByteBufferUtils.toString(key));
+      Assert.assertTrue(slot >= Integer.parseInt(range[0]));
+      Assert.assertTrue(slot < Integer.parseInt(range[1]));
+    }
+  }
+
+  @Test
+  public void cachedKeysMatchComputedKeys() {
+    int stripes = 7;
+    JiffyBlock.Keys keys = new JiffyBlock.Keys(stripes);
+    for (int pass = 0; pass < 2; pass++) {
+      for (long blockNum = 0; blockNum < 200; blockNum++) {
+        Assert.assertEquals(JiffyBlock.key(blockNum, stripes), keys.get(blockNum));
+      }
+    }
+    // Callers get their own view of a cached key
+    keys.get(3).position(1);
+    Assert.assertEquals(JiffyBlock.key(3, stripes), keys.get(3));
+  }
+}
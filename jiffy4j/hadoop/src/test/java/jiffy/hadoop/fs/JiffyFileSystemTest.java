@@ -1,9 +1,11 @@
 package jiffy.hadoop.fs;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import jiffy.StorageServer;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.RandomStringUtils;
+import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
@@ -306,6 +308,78 @@ public class JiffyFileSystemTest {
     }
   }
 
+  @Test
+  public void lengthIsPublishedOnHflush() throws InterruptedException, IOException {
+    startServers();
+    try (JiffyFileSystem fs = nameServer.connectFS()) {
+      Path filePath = new Path(randomFilename());
+      byte[] data = randomData(5000).getBytes();
+      FSDataOutputStream out = fs.create(filePath, false, 0, (short) 1, 1024);
+      out.write(data, 0, 3000);
+      out.flush();
+      Assert.assertEquals(0, fs.getFileStatus(filePath).getLen());
+
+      out.hflush();
+      Assert.assertEquals(3000, fs.getFileStatus(filePath).getLen());
+      Assert.assertEquals(3000, testRead(data, fs.open(filePath), new byte[64]));
+
+      out.write(data, 3000, 2000);
+      out.close();
+      Assert.assertEquals(data.length, fs.getFileStatus(filePath).getLen());
+      Assert.assertEquals(data.length, testRead(data, fs.open(filePath), new byte[64]));
+    } finally {
+      stopServers();
+    }
+  }
+
+  @Test
+  public void positionalAndByteBufferReadsSpanBlocks() throws InterruptedException, IOException {
+    startServers();
+    try (JiffyFileSystem fs = nameServer.connectFS()) {
+      Path filePath = new Path(randomFilename());
+      byte[] data = randomData(5000).getBytes();
+      createFileWithData(fs, filePath, data, 1024);
+
+      FSDataInputStream in = fs.open(filePath);
+      in.seek(100);
+      byte[] buf = new byte[2000];
+      Assert.assertEquals(2000, in.read(1000, buf, 0, 2000));
+      Assert.assertArrayEquals(ArrayUtils.subarray(data, 1000, 3000), buf);
+      Assert.assertEquals(100, in.getPos());
+
+      ByteBuffer bb = ByteBuffer.allocateDirect(2000);
+      Assert.assertEquals(924, in.read(bb));
+      bb.flip();
+      Assert.assertEquals(ByteBuffer.wrap(data, 100, 924), bb);
+
+      in.unbuffer();
+      Assert.assertEquals(data.length - 1024, testRead(ArrayUtils.subarray(data, 1024,
+          data.length), in, new byte[64]));
+    } finally {
+      stopServers();
+    }
+  }
+
+  @Test
+  public void blockLocationsCoverRequestedRange() throws InterruptedException, IOException {
+    startServers();
+    try (JiffyFileSystem fs = nameServer.connectFS()) {
+      Path filePath = new Path(randomFilename());
+      byte[] data = randomData(5000).getBytes();
+      createFileWithData(fs, filePath, data, 1024);
+
+      BlockLocation[] locations = fs.getFileBlockLocations(filePath, 1500, 3000);
+      Assert.assertEquals(4, locations.length);
+      for (int i = 0; i < locations.length; i++) {
+        Assert.assertEquals((i + 1) * 1024, locations[i].getOffset());
+        Assert.assertTrue(locations[i].getHosts().length > 0);
+      }
+      Assert.assertEquals(5000 - 4 * 1024, locations[3].getLength());
+    } finally {
+      stopServers();
+    }
+  }
+
   private int testRead(byte[] data, FSDataInputStream in, byte[] buf) throws IOException {
     int totalBytesRead = 0;
     byte[] targetSlice;
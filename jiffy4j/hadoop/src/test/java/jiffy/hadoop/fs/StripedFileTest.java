@@ -0,0 +1,105 @@
+package jiffy.hadoop.fs;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import jiffy.InMemoryCluster;
+import jiffy.storage.HashTableClient;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.thrift.TException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes and reads back files striped over several partitions, against an in-process cluster.
+ */
+public class StripedFileTest {
+
+  private static final int BLOCK_SIZE = 1024;
+  private static final int STRIPES = 4;
+
+  private InMemoryCluster cluster;
+  private JiffyFileSystem fs;
+
+  @Before
+  public void setUp() throws IOException {
+    cluster = new InMemoryCluster();
+    Configuration conf = new Configuration();
+    conf.setInt("jiffy.lease_port", cluster.getLeasePort());
+    conf.setLong("jiffy.block.size", BLOCK_SIZE);
+    conf.setInt("jiffy.blocks.per.file", STRIPES);
+    fs = new JiffyFileSystem();
+    fs.initialize(URI.create("jfs://" + cluster.getHost() + ":" + cluster.getDirectoryPort()
+        + "/"), conf);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    fs.close();
+    cluster.close();
+  }
+
+  private static byte[] randomBytes(int n) {
+    byte[] data = new byte[n];
+    new Random(n).nextBytes(data);
+    return data;
+  }
+
+  @Test
+  public void testStripedFileReadsBack() throws IOException {
+    Path path = new Path("/striped");
+    byte[] data = randomBytes(10 * BLOCK_SIZE + 123);
+    try (FSDataOutputStream out = fs.create(path)) {
+      out.write(data, 0, 5000);
+      out.hflush();
+      out.write(data, 5000, data.length - 5000);
+    }
+    Assert.assertEquals(data.length, fs.getFileStatus(path).getLen());
+
+    byte[] read = new byte[data.length];
+    try (FSDataInputStream in = fs.open(path)) {
+      in.readFully(read);
+      Assert.assertEquals(-1, in.read());
+    }
+    Assert.assertArrayEquals(data, read);
+
+    try (FSDataInputStream in = fs.open(path)) {
+      byte[] span = new byte[3 * BLOCK_SIZE];
+      in.readFully(BLOCK_SIZE / 2, span);
+      for (int i = 0; i < span.length; i++) {
+        Assert.assertEquals(data[BLOCK_SIZE / 2 + i], span[i]);
+      }
+      in.seek(data.length - 10);
+      byte[] tail = new byte[10];
+      in.readFully(tail);
+      for (int i = 0; i < tail.length; i++) {
+        Assert.assertEquals(data[data.length - 10 + i], tail[i]);
+      }
+    }
+  }
+
+  @Test
+  public void testPartialBlocksStoreOnlyTheirData() throws IOException, TException {
+    Path path = new Path("/small");
+    byte[] data = randomBytes(10);
+    try (FSDataOutputStream out = fs.create(path)) {
+      out.write(data);
+    }
+
+    HashTableClient table = fs.getClient().openHashTable(path.toString());
+    ByteBuffer stored = table.get(JiffyBlock.key(0, STRIPES));
+    Assert.assertEquals(Integer.BYTES + data.length, stored.remaining());
+
+    byte[] read = new byte[data.length];
+    try (FSDataInputStream in = fs.open(path)) {
+      in.readFully(read);
+    }
+    Assert.assertArrayEquals(data, read);
+  }
+}